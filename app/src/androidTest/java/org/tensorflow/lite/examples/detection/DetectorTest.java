@@ -16,96 +16,218 @@
 
 package org.tensorflow.lite.examples.detection;
 
-import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
 import static java.lang.Math.abs;
 import static java.lang.Math.max;
 import static java.lang.Math.min;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
+import android.content.Context;
 import android.content.res.AssetManager;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Matrix;
 import android.graphics.RectF;
-import android.util.Size;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import androidx.test.platform.app.InstrumentationRegistry;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Scanner;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.tensorflow.lite.examples.detection.env.ImageUtils;
-import org.tensorflow.lite.examples.detection.tflite.Classifier;
+import org.tensorflow.lite.examples.detection.env.LatencyHistogram;
+import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.Utils;
 import org.tensorflow.lite.examples.detection.tflite.Classifier.Recognition;
-import org.tensorflow.lite.examples.detection.tflite.TFLiteObjectDetectionAPIModel;
+import org.tensorflow.lite.examples.detection.tflite.YoloV4Classifier;
 
-/** Golden test for Object Detection Reference app. */
+/**
+ * Golden accuracy and performance test for the YOLOv4-tiny model DetectorActivity runs.
+ *
+ * <p>Each image in {@link #GOLDEN_IMAGES} is scaled to the model input, as MainActivity does, and
+ * its detections are compared with {@code <image>_results.txt} from the test assets. Per-stage
+ * latency and Java allocations per recognition are compared with {@code perf_<device>.txt}, since
+ * latency only means something on the device it was measured on.
+ *
+ * <p>The model is not checked in (see the README), so both tests are skipped until it is placed
+ * in the app's assets. With the model present, missing detection results fail the test, since
+ * they belong with the model; a missing performance baseline only skips, since one is needed per
+ * device. Either way what was measured is written to the app's external files dir under {@code
+ * golden/}; review it and copy it into {@code app/src/androidTest/assets}. Options, passed as
+ * {@code adb shell am instrument -e <name> <value>}:
+ *
+ * <ul>
+ *   <li>{@code recordGolden true}: record every golden file instead of checking, skipping both
+ *       tests.
+ *   <li>{@code latencyMargin 0.25}: allowed p50 latency growth over the baseline, per stage.
+ *   <li>{@code allocationMargin 0.1}: allowed growth of allocations per recognition.
+ * </ul>
+ */
 @RunWith(AndroidJUnit4.class)
 public class DetectorTest {
+  private static final Logger LOGGER = new Logger();
 
-  private static final int MODEL_INPUT_SIZE = 300;
-  private static final boolean IS_MODEL_QUANTIZED = true;
-  private static final String MODEL_FILE = "detect.tflite";
-  private static final String LABELS_FILE = "file:///android_asset/labelmap.txt";
-  private static final Size IMAGE_SIZE = new Size(640, 480);
+  private static final boolean IS_MODEL_QUANTIZED = false;
+  // Must match DetectorActivity; the bundled detect.tflite is an SSD model this classifier cannot
+  // decode.
+  private static final String MODEL_FILE = "yolov4-tiny-421.tflite";
+  private static final String LABELS_FILE = "file:///android_asset/_darknet.labels";
+  // Looked up in the test assets, then in the app's.
+  private static final String[] GOLDEN_IMAGES = {"kite.png", "table.jpg"};
 
-  private Classifier detector;
-  private Bitmap croppedBitmap;
-  private Matrix frameToCropTransform;
-  private Matrix cropToFrameTransform;
+  private static final int WARMUP_RUNS = 5;
+  private static final int MEASURED_RUNS = 30;
+  private static final float DEFAULT_LATENCY_MARGIN = 0.25f;
+  private static final float DEFAULT_ALLOCATION_MARGIN = 0.1f;
+  // Absolute slack on top of the margins, so sub-millisecond stages and a handful of allocations
+  // from the runtime do not make the test flaky.
+  private static final float LATENCY_SLACK_MS = 0.5f;
+  private static final int ALLOCATION_SLACK = 8;
+
+  private static final int[] STAGES = {
+    YoloV4Classifier.STAGE_PREPROCESS,
+    YoloV4Classifier.STAGE_INTERPRETER,
+    YoloV4Classifier.STAGE_DECODE,
+    YoloV4Classifier.STAGE_NMS
+  };
+  private static final String[] STAGE_NAMES = {"preprocess", "interpreter", "decode", "nms"};
+
+  private YoloV4Classifier detector;
+  private boolean recordGolden;
+  private float latencyMargin;
+  private float allocationMargin;
 
   @Before
   public void setUp() throws IOException {
     AssetManager assetManager =
-        InstrumentationRegistry.getInstrumentation().getContext().getAssets();
-    detector =
-        TFLiteObjectDetectionAPIModel.create(
-            assetManager,
-            MODEL_FILE,
-            LABELS_FILE,
-            MODEL_INPUT_SIZE,
-            IS_MODEL_QUANTIZED);
-    int cropSize = MODEL_INPUT_SIZE;
-    int previewWidth = IMAGE_SIZE.getWidth();
-    int previewHeight = IMAGE_SIZE.getHeight();
-    int sensorOrientation = 0;
-    croppedBitmap = Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888);
-
-    frameToCropTransform =
-        ImageUtils.getTransformationMatrix(
-            previewWidth, previewHeight,
-            cropSize, cropSize,
-            sensorOrientation, false);
-    cropToFrameTransform = new Matrix();
-    frameToCropTransform.invert(cropToFrameTransform);
+        InstrumentationRegistry.getInstrumentation().getTargetContext().getAssets();
+    assumeTrue(
+        MODEL_FILE + " is not in the app's assets; add it as the README describes",
+        Arrays.asList(assetManager.list("")).contains(MODEL_FILE));
+    detector = YoloV4Classifier.create(assetManager, MODEL_FILE, LABELS_FILE, IS_MODEL_QUANTIZED);
+
+    Bundle arguments = InstrumentationRegistry.getArguments();
+    recordGolden = Boolean.parseBoolean(arguments.getString("recordGolden", "false"));
+    latencyMargin =
+        Float.parseFloat(
+            arguments.getString("latencyMargin", String.valueOf(DEFAULT_LATENCY_MARGIN)));
+    allocationMargin =
+        Float.parseFloat(
+            arguments.getString("allocationMargin", String.valueOf(DEFAULT_ALLOCATION_MARGIN)));
+  }
+
+  @After
+  public void tearDown() {
+    if (detector != null) {
+      detector.close();
+    }
   }
 
   @Test
   public void detectionResultsShouldNotChange() throws Exception {
-    Canvas canvas = new Canvas(croppedBitmap);
-    canvas.drawBitmap(loadImage("table.jpg"), frameToCropTransform, null);
-    final List<Recognition> results = detector.recognizeImage(croppedBitmap);
-    final List<Recognition> expected = loadRecognitions("table_results.txt");
-
-    for (Recognition target : expected) {
-      // Find a matching result in results
-      boolean matched = false;
-      for (Recognition item : results) {
-        RectF bbox = new RectF();
-        cropToFrameTransform.mapRect(bbox, item.getLocation());
-        if (item.getTitle().equals(target.getTitle())
-            && matchBoundingBoxes(bbox, target.getLocation())
-            && matchConfidence(item.getConfidence(), target.getConfidence())) {
-          matched = true;
-          break;
+    List<String> recorded = new ArrayList<>();
+    List<String> missing = new ArrayList<>();
+    for (String image : GOLDEN_IMAGES) {
+      final List<Recognition> results = detector.recognizeImage(loadInput(image));
+      final String goldenFile = baseName(image) + "_results.txt";
+      final List<Recognition> expected = recordGolden ? null : loadRecognitions(goldenFile);
+      if (expected == null) {
+        String path = writeGolden(goldenFile, formatRecognitions(results));
+        (recordGolden ? recorded : missing).add(path);
+        continue;
+      }
+
+      for (Recognition target : expected) {
+        // Find a matching result in results
+        boolean matched = false;
+        for (Recognition item : results) {
+          if (item.getTitle().equals(target.getTitle())
+              && matchBoundingBoxes(item.getLocation(), target.getLocation())
+              && matchConfidence(item.getConfidence(), target.getConfidence())) {
+            matched = true;
+            break;
+          }
         }
+        assertWithMessage("%s: expected %s in %s", image, target, results)
+            .that(matched)
+            .isTrue();
       }
-      assertThat(matched).isTrue();
+    }
+    if (!missing.isEmpty()) {
+      fail("Golden results missing from the test assets, recorded for review: " + missing);
+    }
+    assumeTrue("Recorded golden results " + recorded, recorded.isEmpty());
+  }
+
+  @Test
+  public void latencyAndAllocationsShouldNotRegress() throws Exception {
+    final Bitmap input = loadInput(GOLDEN_IMAGES[0]);
+    for (int i = 0; i < WARMUP_RUNS; ++i) {
+      detector.recognizeImage(input);
+    }
+    for (int stage : STAGES) {
+      detector.getStageHistogram(stage).clear();
+    }
+
+    final LatencyHistogram total = new LatencyHistogram();
+    Debug.resetThreadAllocCount();
+    Debug.startAllocCounting();
+    for (int i = 0; i < MEASURED_RUNS; ++i) {
+      final long startNanos = System.nanoTime();
+      detector.recognizeImage(input);
+      total.record(System.nanoTime() - startNanos);
+    }
+    Debug.stopAllocCounting();
+    final int allocations = Debug.getThreadAllocCount() / MEASURED_RUNS;
+
+    final Map<String, Float> measured = new LinkedHashMap<>();
+    for (int i = 0; i < STAGES.length; ++i) {
+      measured.put(
+          STAGE_NAMES[i], detector.getStageHistogram(STAGES[i]).getPercentileMicros(0.5) / 1000f);
+    }
+    measured.put("total", total.getPercentileMicros(0.5) / 1000f);
+    measured.put("allocations", (float) allocations);
+    LOGGER.i("Measured p50 ms and allocations per recognition: %s", measured);
+
+    final String baselineFile = "perf_" + Build.MODEL.replaceAll("[^A-Za-z0-9]", "_") + ".txt";
+    final Map<String, Float> baseline = recordGolden ? null : loadBaseline(baselineFile);
+    if (baseline == null) {
+      String path = writeGolden(baselineFile, formatBaseline(measured));
+      assumeTrue(
+          (recordGolden ? "Recorded performance baseline " : "No performance baseline for "
+                  + Build.MODEL + ", recorded for review: ")
+              + path,
+          false);
+      return;
+    }
+
+    for (Map.Entry<String, Float> entry : baseline.entrySet()) {
+      final String name = entry.getKey();
+      final Float value = measured.get(name);
+      assertWithMessage("%s: no measurement for %s", baselineFile, name).that(value).isNotNull();
+      final float limit =
+          name.equals("allocations")
+              ? entry.getValue() * (1 + allocationMargin) + ALLOCATION_SLACK
+              : entry.getValue() * (1 + latencyMargin) + LATENCY_SLACK_MS;
+      assertWithMessage("%s regressed: %s, baseline %s", name, value, entry.getValue())
+          .that(value)
+          .isAtMost(limit);
     }
   }
 
@@ -125,11 +247,43 @@ public class DetectorTest {
     return overlappedArea > 0.95 * areaA && overlappedArea > 0.95 * areaB;
   }
 
+  // The image scaled to the model input, so results are in input coordinates.
+  private Bitmap loadInput(String fileName) throws Exception {
+    return Utils.processBitmap(loadImage(fileName), detector.getInputSize());
+  }
+
   private static Bitmap loadImage(String fileName) throws Exception {
+    try (InputStream inputStream = openTestAsset(fileName)) {
+      return BitmapFactory.decodeStream(inputStream);
+    } catch (FileNotFoundException e) {
+      AssetManager assetManager =
+          InstrumentationRegistry.getInstrumentation().getTargetContext().getAssets();
+      try (InputStream inputStream = assetManager.open(fileName)) {
+        return BitmapFactory.decodeStream(inputStream);
+      }
+    }
+  }
+
+  private static InputStream openTestAsset(String fileName) throws IOException {
     AssetManager assetManager =
         InstrumentationRegistry.getInstrumentation().getContext().getAssets();
-    InputStream inputStream = assetManager.open(fileName);
-    return BitmapFactory.decodeStream(inputStream);
+    return assetManager.open(fileName);
+  }
+
+  private static String baseName(String fileName) {
+    int dot = fileName.lastIndexOf('.');
+    return dot < 0 ? fileName : fileName.substring(0, dot);
+  }
+
+  // Writes a golden file for review under the app's external files dir and returns its path.
+  private static String writeGolden(String fileName, String contents) throws IOException {
+    Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    File file = new File(context.getExternalFilesDir("golden"), fileName);
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+      writer.write(contents);
+    }
+    LOGGER.i("Recorded %s:\n%s", file, contents);
+    return file.getPath();
   }
 
   // The format of result:
@@ -139,11 +293,15 @@ public class DetectorTest {
   // Apple 99 25 30 75 80 0.99
   // Banana 25 90 75 200 0.98
   // ...
+  // Returns null if the file is not in the test assets.
   private static List<Recognition> loadRecognitions(String fileName) throws Exception {
-    AssetManager assetManager =
-        InstrumentationRegistry.getInstrumentation().getContext().getAssets();
-    InputStream inputStream = assetManager.open(fileName);
-    Scanner scanner = new Scanner(inputStream);
+    InputStream inputStream;
+    try {
+      inputStream = openTestAsset(fileName);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    Scanner scanner = new Scanner(inputStream).useLocale(Locale.US);
     List<Recognition> result = new ArrayList<>();
     while (scanner.hasNext()) {
       String category = scanner.next();
@@ -160,6 +318,57 @@ public class DetectorTest {
       Recognition recognition = new Recognition(null, category, confidence, boundingBox);
       result.add(recognition);
     }
+    scanner.close();
+    return result;
+  }
+
+  private static String formatRecognitions(List<Recognition> recognitions) {
+    StringBuilder builder = new StringBuilder();
+    for (Recognition recognition : recognitions) {
+      RectF box = recognition.getLocation();
+      builder.append(
+          String.format(
+              Locale.US,
+              "%s %f %f %f %f %f\n",
+              recognition.getTitle().replace(' ', '_'),
+              box.left,
+              box.top,
+              box.right,
+              box.bottom,
+              recognition.getConfidence()));
+    }
+    return builder.toString();
+  }
+
+  // The format of a baseline, one measurement per line:
+  // name value
+  // where value is the p50 in milliseconds for a stage or "total", and the count per recognition
+  // for "allocations". Returns null if the file is not in the test assets.
+  private static Map<String, Float> loadBaseline(String fileName) throws Exception {
+    InputStream inputStream;
+    try {
+      inputStream = openTestAsset(fileName);
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    Scanner scanner = new Scanner(inputStream).useLocale(Locale.US);
+    Map<String, Float> result = new LinkedHashMap<>();
+    while (scanner.hasNext()) {
+      String name = scanner.next();
+      if (!scanner.hasNextFloat()) {
+        break;
+      }
+      result.put(name, scanner.nextFloat());
+    }
+    scanner.close();
     return result;
   }
+
+  private static String formatBaseline(Map<String, Float> measurements) {
+    StringBuilder builder = new StringBuilder();
+    for (Map.Entry<String, Float> entry : measurements.entrySet()) {
+      builder.append(String.format(Locale.US, "%s %.3f\n", entry.getKey(), entry.getValue()));
+    }
+    return builder.toString();
+  }
 }
@@ -49,9 +49,11 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 import android.widget.Toast;
 import com.google.android.material.bottomsheet.BottomSheetBehavior;
-import java.nio.ByteBuffer;
-import org.tensorflow.lite.examples.detection.env.ImageUtils;
+import org.tensorflow.lite.examples.detection.env.CameraFrame;
+import org.tensorflow.lite.examples.detection.env.FrameExchanger;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.ParallelYuvConverter;
+import org.tensorflow.lite.examples.detection.env.YuvToTensorConverter;
 
 public abstract class CameraActivity extends AppCompatActivity
     implements OnImageAvailableListener,
@@ -63,24 +65,30 @@ public abstract class CameraActivity extends AppCompatActivity
   private static final int PERMISSIONS_REQUEST = 1;
 
   private static final String PERMISSION_CAMERA = Manifest.permission.CAMERA;
+  // One frame being written by the camera, one waiting and up to three held by the processing
+  // stages: two in the detection pipeline and one being tracked between detections.
+  private static final int CAMERA_FRAME_BUFFERS = 5;
   protected int previewWidth = 0;
   protected int previewHeight = 0;
   private boolean debug = false;
   private Handler handler;
   private HandlerThread handlerThread;
+  private Handler preprocessHandler;
+  private HandlerThread preprocessThread;
+  private Handler postprocessHandler;
+  private HandlerThread postprocessThread;
   private boolean useCamera2API;
-  private boolean isProcessingFrame = false;
-  private byte[][] yuvBytes = new byte[3][];
-  private int[] rgbBytes = null;
-  private int yRowStride;
-  private Runnable postInferenceCallback;
-  private Runnable imageConverter;
+  // Written by the camera thread, read by the processing threads.
+  private volatile FrameExchanger<CameraFrame> frameExchanger;
+  private ParallelYuvConverter argbConverter;
+  private long frameSequence = 0;
 
   private LinearLayout bottomSheetLayout;
   private LinearLayout gestureLayout;
   private BottomSheetBehavior<LinearLayout> sheetBehavior;
 
   protected TextView frameValueTextView, cropValueTextView, inferenceTimeTextView;
+  protected TextView stageTimesTextView, frameRateTextView, latencyTextView;
   protected ImageView bottomSheetArrowImageView;
   private ImageView plusImageView, minusImageView;
   private SwitchCompat apiSwitchCompat;
@@ -162,6 +170,16 @@ public abstract class CameraActivity extends AppCompatActivity
     frameValueTextView = findViewById(R.id.frame_info);
     cropValueTextView = findViewById(R.id.crop_info);
     inferenceTimeTextView = findViewById(R.id.inference_info);
+    stageTimesTextView = findViewById(R.id.stage_times_info);
+    frameRateTextView = findViewById(R.id.frame_rate_info);
+    latencyTextView = findViewById(R.id.latency_info);
+
+    // Long-pressing the stage times logs the recent pipeline trace.
+    stageTimesTextView.setOnLongClickListener(
+        v -> {
+          dumpTrace();
+          return true;
+        });
 
     apiSwitchCompat.setOnCheckedChangeListener(this);
 
@@ -169,61 +187,75 @@ public abstract class CameraActivity extends AppCompatActivity
     minusImageView.setOnClickListener(this);
   }
 
-  protected int[] getRgbBytes() {
-    imageConverter.run();
-    return rgbBytes;
+  /**
+   * Returns the newest camera frame not yet processed, or null if there is none. The frame must be
+   * handed back with {@link #releaseCameraFrame(CameraFrame)}; at most three may be held at a time.
+   */
+  protected CameraFrame takeCameraFrame() {
+    final FrameExchanger<CameraFrame> exchanger = frameExchanger;
+    return exchanger != null ? exchanger.take() : null;
+  }
+
+  protected void releaseCameraFrame(final CameraFrame frame) {
+    frameExchanger.release(frame);
+  }
+
+  /** Camera frames that were skipped or overwritten before they could be processed. */
+  protected long getSkippedFrameCount() {
+    final FrameExchanger<CameraFrame> exchanger = frameExchanger;
+    return exchanger != null ? exchanger.getDroppedCount() + exchanger.getReplacedCount() : 0;
   }
 
-  protected int getLuminanceStride() {
-    return yRowStride;
+  /**
+   * Returns a converter to sample camera frames straight into the model input, or null to have
+   * them converted to ARGB. Called once the preview size is known and {@link
+   * #onPreviewSizeChosen} has run.
+   */
+  protected YuvToTensorConverter createTensorConverter() {
+    return null;
   }
 
-  protected byte[] getLuminance() {
-    return yuvBytes[0];
+  private FrameExchanger<CameraFrame> createFrameExchanger() {
+    final YuvToTensorConverter tensorConverter = createTensorConverter();
+    if (tensorConverter == null && argbConverter == null) {
+      // Full-frame ARGB conversion is split across cores; it dominates at 720p and above.
+      argbConverter = new ParallelYuvConverter();
+      LOGGER.i("Converting frames to ARGB on %d workers", argbConverter.getWorkerCount());
+    }
+    final CameraFrame[] frames = new CameraFrame[CAMERA_FRAME_BUFFERS];
+    for (int i = 0; i < frames.length; ++i) {
+      frames[i] = new CameraFrame(previewWidth, previewHeight, tensorConverter, argbConverter);
+    }
+    return new FrameExchanger<>(frames);
   }
 
   /** Callback for android.hardware.Camera API */
   @Override
   public void onPreviewFrame(final byte[] bytes, final Camera camera) {
-    if (isProcessingFrame) {
-      LOGGER.w("Dropping frame!");
-      return;
-    }
-
     try {
       // Initialize the storage bitmaps once when the resolution is known.
-      if (rgbBytes == null) {
+      if (frameExchanger == null) {
         Camera.Size previewSize = camera.getParameters().getPreviewSize();
         previewHeight = previewSize.height;
         previewWidth = previewSize.width;
-        rgbBytes = new int[previewWidth * previewHeight];
         onPreviewSizeChosen(new Size(previewSize.width, previewSize.height), 90);
+        frameExchanger = createFrameExchanger();
       }
     } catch (final Exception e) {
       LOGGER.e(e, "Exception!");
       return;
     }
 
-    isProcessingFrame = true;
-    yuvBytes[0] = bytes;
-    yRowStride = previewWidth;
-
-    imageConverter =
-        new Runnable() {
-          @Override
-          public void run() {
-            ImageUtils.convertYUV420SPToARGB8888(bytes, previewWidth, previewHeight, rgbBytes);
-          }
-        };
-
-    postInferenceCallback =
-        new Runnable() {
-          @Override
-          public void run() {
-            camera.addCallbackBuffer(bytes);
-            isProcessingFrame = false;
-          }
-        };
+    final CameraFrame frame = frameExchanger.acquire();
+    if (frame != null) {
+      frame.convertNv21(bytes, ++frameSequence);
+    }
+    camera.addCallbackBuffer(bytes);
+    if (frame == null) {
+      LOGGER.w("Dropping frame!");
+      return;
+    }
+    frameExchanger.publish();
     processImage();
   }
 
@@ -234,61 +266,49 @@ public abstract class CameraActivity extends AppCompatActivity
     if (previewWidth == 0 || previewHeight == 0) {
       return;
     }
-    if (rgbBytes == null) {
-      rgbBytes = new int[previewWidth * previewHeight];
+    if (frameExchanger == null) {
+      frameExchanger = createFrameExchanger();
     }
+    Image image = null;
     try {
-      final Image image = reader.acquireLatestImage();
+      image = reader.acquireLatestImage();
 
       if (image == null) {
         return;
       }
 
-      if (isProcessingFrame) {
-        image.close();
-        return;
-      }
-      isProcessingFrame = true;
       Trace.beginSection("imageAvailable");
-      final Plane[] planes = image.getPlanes();
-      fillBytes(planes, yuvBytes);
-      yRowStride = planes[0].getRowStride();
-      final int uvRowStride = planes[1].getRowStride();
-      final int uvPixelStride = planes[1].getPixelStride();
-
-      imageConverter =
-          new Runnable() {
-            @Override
-            public void run() {
-              ImageUtils.convertYUV420ToARGB8888(
-                  yuvBytes[0],
-                  yuvBytes[1],
-                  yuvBytes[2],
-                  previewWidth,
-                  previewHeight,
-                  yRowStride,
-                  uvRowStride,
-                  uvPixelStride,
-                  rgbBytes);
-            }
-          };
-
-      postInferenceCallback =
-          new Runnable() {
-            @Override
-            public void run() {
-              image.close();
-              isProcessingFrame = false;
-            }
-          };
+      try {
+        final CameraFrame frame = frameExchanger.acquire();
+        if (frame == null) {
+          LOGGER.w("Dropping frame!");
+          return;
+        }
+        final Plane[] planes = image.getPlanes();
+        frame.convertYuv420(
+            planes[0].getBuffer(),
+            planes[1].getBuffer(),
+            planes[2].getBuffer(),
+            planes[0].getRowStride(),
+            planes[1].getRowStride(),
+            planes[1].getPixelStride(),
+            ++frameSequence);
+        // The planes were read in place; hand the buffers back to the ImageReader right away.
+        image.close();
+        image = null;
 
-      processImage();
+        frameExchanger.publish();
+        processImage();
+      } finally {
+        Trace.endSection();
+      }
     } catch (final Exception e) {
       LOGGER.e(e, "Exception!");
-      Trace.endSection();
-      return;
+    } finally {
+      if (image != null) {
+        image.close();
+      }
     }
-    Trace.endSection();
   }
 
   @Override
@@ -305,17 +325,46 @@ public abstract class CameraActivity extends AppCompatActivity
     handlerThread = new HandlerThread("inference");
     handlerThread.start();
     handler = new Handler(handlerThread.getLooper());
+
+    preprocessThread = new HandlerThread("preprocess");
+    preprocessThread.start();
+    preprocessHandler = new Handler(preprocessThread.getLooper());
+
+    postprocessThread = new HandlerThread("postprocess");
+    postprocessThread.start();
+    postprocessHandler = new Handler(postprocessThread.getLooper());
   }
 
   @Override
-  public synchronized void onPause() {
+  public void onPause() {
     LOGGER.d("onPause " + this);
 
-    handlerThread.quitSafely();
+    // Stop the stages in pipeline order so in-flight frames drain downstream. Stage tasks post to
+    // the next stage through the synchronized runIn* methods, so the joins must not hold the lock.
+    final HandlerThread preprocess;
+    final HandlerThread inference;
+    final HandlerThread postprocess;
+    synchronized (this) {
+      preprocess = preprocessThread;
+      inference = handlerThread;
+      postprocess = postprocessThread;
+    }
     try {
-      handlerThread.join();
-      handlerThread = null;
-      handler = null;
+      stopStage(preprocess);
+      synchronized (this) {
+        preprocessThread = null;
+        preprocessHandler = null;
+      }
+      stopStage(inference);
+      synchronized (this) {
+        handlerThread = null;
+        handler = null;
+      }
+      stopStage(postprocess);
+      synchronized (this) {
+        postprocessThread = null;
+        postprocessHandler = null;
+      }
     } catch (final InterruptedException e) {
       LOGGER.e(e, "Exception!");
     }
@@ -323,6 +372,12 @@ public abstract class CameraActivity extends AppCompatActivity
     super.onPause();
   }
 
+  // Runs the tasks already queued on the stage's thread, then ends it.
+  private static void stopStage(final HandlerThread thread) throws InterruptedException {
+    thread.quitSafely();
+    thread.join();
+  }
+
   @Override
   public synchronized void onStop() {
     LOGGER.d("onStop " + this);
@@ -332,13 +387,26 @@ public abstract class CameraActivity extends AppCompatActivity
   @Override
   public synchronized void onDestroy() {
     LOGGER.d("onDestroy " + this);
+    if (argbConverter != null) {
+      argbConverter.close();
+      argbConverter = null;
+    }
     super.onDestroy();
   }
 
-  protected synchronized void runInBackground(final Runnable r) {
-    if (handler != null) {
-      handler.post(r);
-    }
+  /** Runs {@code r} on the inference thread. Returns false if the thread is not running. */
+  protected synchronized boolean runInBackground(final Runnable r) {
+    return handler != null && handler.post(r);
+  }
+
+  /** Runs {@code r} on the preprocessing thread. Returns false if the thread is not running. */
+  protected synchronized boolean runInPreprocess(final Runnable r) {
+    return preprocessHandler != null && preprocessHandler.post(r);
+  }
+
+  /** Runs {@code r} on the postprocessing thread. Returns false if the thread is not running. */
+  protected synchronized boolean runInPostprocess(final Runnable r) {
+    return postprocessHandler != null && postprocessHandler.post(r);
   }
 
   @Override
@@ -460,29 +528,10 @@ public abstract class CameraActivity extends AppCompatActivity
     getFragmentManager().beginTransaction().replace(R.id.container, fragment).commit();
   }
 
-  protected void fillBytes(final Plane[] planes, final byte[][] yuvBytes) {
-    // Because of the variable row stride it's not possible to know in
-    // advance the actual necessary dimensions of the yuv planes.
-    for (int i = 0; i < planes.length; ++i) {
-      final ByteBuffer buffer = planes[i].getBuffer();
-      if (yuvBytes[i] == null) {
-        LOGGER.d("Initializing buffer %d at size %d", i, buffer.capacity());
-        yuvBytes[i] = new byte[buffer.capacity()];
-      }
-      buffer.get(yuvBytes[i]);
-    }
-  }
-
   public boolean isDebug() {
     return debug;
   }
 
-  protected void readyForNextImage() {
-    if (postInferenceCallback != null) {
-      postInferenceCallback.run();
-    }
-  }
-
   protected int getScreenOrientation() {
     switch (getWindowManager().getDefaultDisplay().getRotation()) {
       case Surface.ROTATION_270:
@@ -536,6 +585,19 @@ public abstract class CameraActivity extends AppCompatActivity
     inferenceTimeTextView.setText(inferenceTime);
   }
 
+  protected void showStageTimes(String stageTimes) {
+    stageTimesTextView.setText(stageTimes);
+  }
+
+  protected void showFrameRate(String frameRate) {
+    frameRateTextView.setText(frameRate);
+  }
+
+  /** Per-stage latency percentiles, one stage per line. */
+  protected void showLatency(String latency) {
+    latencyTextView.setText(latency);
+  }
+
   protected abstract void processImage();
 
   protected abstract void onPreviewSizeChosen(final Size size, final int rotation);
@@ -547,4 +609,7 @@ public abstract class CameraActivity extends AppCompatActivity
   protected abstract void setNumThreads(int numThreads);
 
   protected abstract void setUseNNAPI(boolean isChecked);
+
+  /** Logs the trace of recent pipeline events. */
+  protected abstract void dumpTrace();
 }
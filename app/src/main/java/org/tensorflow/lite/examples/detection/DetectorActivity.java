@@ -11,7 +11,6 @@ import android.graphics.Paint.Style;
 import android.graphics.RectF;
 import android.graphics.Typeface;
 import android.media.ImageReader.OnImageAvailableListener;
-import android.os.SystemClock;
 import android.util.Log;
 import android.util.Size;
 import android.util.TypedValue;
@@ -24,15 +23,25 @@ import androidx.appcompat.app.AlertDialog;
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.tensorflow.lite.examples.detection.customview.OverlayView;
 import org.tensorflow.lite.examples.detection.customview.OverlayView.DrawCallback;
 import org.tensorflow.lite.examples.detection.env.BorderedText;
+import org.tensorflow.lite.examples.detection.env.CameraFrame;
+import org.tensorflow.lite.examples.detection.env.DetectionScheduler;
 import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.PipelineStats;
+import org.tensorflow.lite.examples.detection.env.TraceRing;
+import org.tensorflow.lite.examples.detection.env.YuvToTensorConverter;
 import org.tensorflow.lite.examples.detection.tflite.Classifier;
+import org.tensorflow.lite.examples.detection.tflite.NmsEngine;
 import org.tensorflow.lite.examples.detection.tflite.YoloV4Classifier;
+import org.tensorflow.lite.examples.detection.tracking.AppearanceEmbedder;
 import org.tensorflow.lite.examples.detection.tracking.MultiBoxTracker;
+import org.tensorflow.lite.examples.detection.tracking.UniquePersonCounter;
 
 public class DetectorActivity extends CameraActivity implements OnImageAvailableListener {
     private static final Logger LOGGER = new Logger();
@@ -48,24 +57,75 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     private static final Size DESIRED_PREVIEW_SIZE = new Size(640, 480);
     private static final boolean SAVE_PREVIEW_BITMAP = false;
     private static final float TEXT_SIZE_DIP = 10;
+    private static final String PERSON_LABEL = "person";
+    // How long the session's unique person count must stay unchanged before the resource
+    // estimate is shown. Tracks are confirmed over several detections, so a shorter wait would
+    // report people still being confirmed.
+    private static final long COUNT_SETTLE_NANOS = 5_000_000_000L;
+    // DIoU keeps neighbours in dense crowds apart that hard NMS would merge.
+    private static final NmsEngine.Method NMS_METHOD = NmsEngine.Method.DIOU;
+    private static final int PIPELINE_DEPTH = 2;
+    // Sample camera frames straight into the model input instead of going through the preview and
+    // crop bitmaps.
+    private static final boolean USE_FUSED_INPUT = true;
+    // Run the detector on as many frames as its latency allows, spread evenly, and move the boxes
+    // along by optical flow on the frames in between. At most one in MAX_DETECTION_INTERVAL frames
+    // is detected on; with ADAPTIVE_DETECTION off, exactly one.
+    private static final boolean ADAPTIVE_DETECTION = true;
+    private static final int MAX_DETECTION_INTERVAL = 3;
+    // Pipeline events kept for a dump, about a minute of detections.
+    private static final int TRACE_CAPACITY = 4096;
+    private static final int TRACE_PREPROCESS = 0;
+    private static final int TRACE_INFERENCE = 1;
+    private static final int TRACE_POSTPROCESS = 2;
+    private static final int TRACE_PROPAGATE = 3;
 
     OverlayView trackingOverlay;
     private Integer sensorOrientation;
-    private Classifier detector;
+    private int cropSize;
+    private YoloV4Classifier detector;
+    private int personClass = -1;
     private long lastProcessingTimeMs;
-    private Bitmap rgbFrameBitmap = null;
-    private Bitmap croppedBitmap = null;
+    // Frames not currently in the pipeline. Holding PIPELINE_DEPTH frames lets one be
+    // preprocessed while the other is in the interpreter.
+    private final BlockingQueue<Frame> freeFrames = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+    // The frame waiting to be tracked between detections, and whether a tracking task is queued or
+    // running; see schedulePropagate().
+    private final Object propagateLock = new Object();
+    private CameraFrame pendingPropagate;
+    private boolean propagating;
+    private final PipelineStats pipelineStats = new PipelineStats();
+    // Stamped with the stage start. Arguments: frame sequence, stage nanoseconds, and whether the
+    // input was fused for preprocess, results for inference, people for postprocess.
+    private final TraceRing trace =
+            new TraceRing(TRACE_CAPACITY, "preprocess", "inference", "postprocess", "propagate");
+    private final DetectionScheduler detectionScheduler =
+            ADAPTIVE_DETECTION
+                    ? DetectionScheduler.adaptive(MAX_DETECTION_INTERVAL)
+                    : DetectionScheduler.fixed(MAX_DETECTION_INTERVAL);
     private Bitmap cropCopyBitmap = null;
-    private boolean computingDetection = false;
-    private long timestamp = 0;
+    private Canvas cropCopyCanvas;
+    private Paint cropCopyPaint;
     private Matrix frameToCropTransform;
     private Matrix cropToFrameTransform;
     private MultiBoxTracker tracker;
     private BorderedText borderedText;
 
-    // Variables to track max detected people count
-    private int maxPersonCount = 0; // To track the maximum people detected
-    private boolean isAlertShown = false; // Flag to ensure alert is shown only once
+    // Distinct people over the session, from track identities with colour re-identification.
+    // Only touched on the postprocess thread, except for the published count.
+    private final UniquePersonCounter personCounter = new UniquePersonCounter();
+    private final AppearanceEmbedder appearanceEmbedder = new AppearanceEmbedder();
+    private final float[] appearance = new float[AppearanceEmbedder.DIMS];
+    private final RectF cropLocation = new RectF();
+    private int[] cropPixels;
+    // The frame being postprocessed, which the appearance of each person is sampled from.
+    private Frame appearanceFrame;
+    private volatile int uniquePersonCount;
+    // When the unique count last grew; the estimate is shown once it has stopped growing for
+    // COUNT_SETTLE_NANOS, i.e. the sweep has found nobody new for that long.
+    private long countChangedNanos;
+    // Flag to ensure alert is shown only once; postprocess thread only.
+    private boolean isAlertShown = false;
 
     @Override
     public void onPreviewSizeChosen(final Size size, final int rotation) {
@@ -76,8 +136,29 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
         borderedText.setTypeface(Typeface.MONOSPACE);
 
         tracker = new MultiBoxTracker(this);
+        tracker.setTrackListener(
+                new MultiBoxTracker.TrackListener() {
+                    @Override
+                    public void onTrackMatched(final int trackId, final Classifier.Recognition recognition) {
+                        if (sampleAppearance(recognition.getLocation())) {
+                            personCounter.observe(trackId, appearance);
+                        }
+                    }
+
+                    @Override
+                    public void onTrackRemoved(final int trackId) {
+                        personCounter.trackRemoved(trackId);
+                    }
+                });
+
+        cropSize = TF_OD_API_INPUT_SIZE;
 
-        int cropSize = TF_OD_API_INPUT_SIZE;
+        // A new preview size recreates the detector. Close the old one on the inference thread, so
+        // after any recognition it is still running.
+        final YoloV4Classifier oldDetector = detector;
+        if (oldDetector != null && !runInBackground(oldDetector::close)) {
+            oldDetector.close();
+        }
 
         try {
             detector =
@@ -86,7 +167,11 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
                             TF_OD_API_MODEL_FILE,
                             TF_OD_API_LABELS_FILE,
                             TF_OD_API_IS_QUANTIZED);
-            cropSize = TF_OD_API_INPUT_SIZE;
+            cropSize = detector.getInputSize();
+            // Only people are counted, so skip every other class while decoding.
+            detector.setTargetLabels(PERSON_LABEL);
+            personClass = detector.getLabelIndex(PERSON_LABEL);
+            detector.setNmsMethod(NMS_METHOD);
         } catch (final IOException e) {
             e.printStackTrace();
             LOGGER.e(e, "Exception initializing classifier!");
@@ -104,8 +189,16 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
         LOGGER.i("Camera orientation relative to screen canvas: %d", sensorOrientation);
 
         LOGGER.i("Initializing at size %dx%d", previewWidth, previewHeight);
-        rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
-        croppedBitmap = Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888);
+        freeFrames.clear();
+        for (int i = 0; i < PIPELINE_DEPTH; ++i) {
+            freeFrames.add(new Frame(previewWidth, previewHeight, cropSize, !USE_FUSED_INPUT));
+        }
+        cropCopyBitmap = Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888);
+        cropCopyCanvas = new Canvas(cropCopyBitmap);
+        cropCopyPaint = new Paint();
+        cropCopyPaint.setColor(Color.RED);
+        cropCopyPaint.setStyle(Style.STROKE);
+        cropCopyPaint.setStrokeWidth(2.0f);
 
         frameToCropTransform =
                 ImageUtils.getTransformationMatrix(
@@ -121,7 +214,9 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
                 new DrawCallback() {
                     @Override
                     public void drawCallback(final Canvas canvas) {
+                        final long startTime = System.nanoTime();
                         tracker.draw(canvas);
+                        pipelineStats.recordStage(PipelineStats.STAGE_RENDER, System.nanoTime() - startTime);
                         if (isDebug()) {
                             tracker.drawDebug(canvas);
                         }
@@ -133,107 +228,295 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
 
     @Override
     protected void processImage() {
-        ++timestamp;
-        final long currTimestamp = timestamp;
         trackingOverlay.postInvalidate();
+        runInPreprocess(this::preprocessLatest);
+    }
 
-        // No mutex needed as this method is not reentrant.
-        if (computingDetection) {
-            readyForNextImage();
+    /**
+     * Preprocessing stage: takes the newest camera frame and, if the scheduler wants a detection
+     * and a pipeline frame is free, converts it and hands it to the inference thread. Any other
+     * frame only has the tracked boxes moved onto it, so the overlay follows the camera while the
+     * detector runs on a fraction of the frames.
+     */
+    private void preprocessLatest() {
+        final CameraFrame cameraFrame = takeCameraFrame();
+        if (cameraFrame == null) {
+            return;
+        }
+        detectionScheduler.onFrame(System.nanoTime());
+        final Frame frame = detectionScheduler.shouldDetect() ? freeFrames.poll() : null;
+        if (frame == null) {
+            schedulePropagate(cameraFrame);
+            return;
+        }
+        detectionScheduler.detectionStarted();
+
+        final long startTime = System.nanoTime();
+        frame.timestamp = cameraFrame.getSequence();
+        frame.startNanos = startTime;
+        frame.copyLuma(cameraFrame);
+        LOGGER.v("Preparing image %d for detection.", frame.timestamp);
+        pipelineStats.recordStage(PipelineStats.STAGE_CONVERT, cameraFrame.getConversionNanos());
+
+        if (cameraFrame.getTensor() != null) {
+            // Already converted to the model input on the camera thread; the camera frame is
+            // released with the pipeline frame, after postprocessing has sampled it.
+            frame.cameraFrame = cameraFrame;
+            final long preprocessNanos = System.nanoTime() - startTime;
+            pipelineStats.recordStage(PipelineStats.STAGE_PREPROCESS, preprocessNanos);
+            trace.record(startTime, TRACE_PREPROCESS, frame.timestamp, preprocessNanos, 1);
+            if (!runInBackground(() -> infer(frame))) {
+                releaseFrame(frame);
+            }
             return;
         }
-        computingDetection = true;
-        LOGGER.i("Preparing image " + currTimestamp + " for detection in bg thread.");
 
-        rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
+        final long cropStartTime = System.nanoTime();
+        frame.rgbFrameBitmap.setPixels(cameraFrame.getArgb(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
 
-        readyForNextImage();
+        releaseCameraFrame(cameraFrame);
 
-        final Canvas canvas = new Canvas(croppedBitmap);
-        canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
+        frame.cropCanvas.drawBitmap(frame.rgbFrameBitmap, frameToCropTransform, null);
+        pipelineStats.recordStage(PipelineStats.STAGE_CROP, System.nanoTime() - cropStartTime);
         // For examining the actual TF input.
         if (SAVE_PREVIEW_BITMAP) {
-            ImageUtils.saveBitmap(croppedBitmap);
+            ImageUtils.saveBitmap(frame.croppedBitmap);
         }
+        final long preprocessNanos = System.nanoTime() - startTime;
+        pipelineStats.recordStage(PipelineStats.STAGE_PREPROCESS, preprocessNanos);
+        trace.record(startTime, TRACE_PREPROCESS, frame.timestamp, preprocessNanos, 0);
 
-        runInBackground(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        LOGGER.i("Running detection on image " + currTimestamp);
-                        final long startTime = SystemClock.uptimeMillis();
-                        final List<Classifier.Recognition> results = detector.recognizeImage(croppedBitmap);
-                        lastProcessingTimeMs = SystemClock.uptimeMillis() - startTime;
+        if (!runInBackground(() -> infer(frame))) {
+            releaseFrame(frame);
+        }
+    }
 
-                        // Count the number of people detected
-                        final int personCount = countPeople(results);
+    /** Inference stage: runs the detector, NMS included, and hands the results on. */
+    private void infer(final Frame frame) {
+        LOGGER.v("Running detection on image %d", frame.timestamp);
+        final long startTime = System.nanoTime();
+        final List<Classifier.Recognition> results;
+        if (frame.cameraFrame != null) {
+            results = detector.recognizeTensor(frame.cameraFrame.getTensor());
+        } else {
+            results = detector.recognizeImage(frame.croppedBitmap);
+        }
+        final long inferenceNanos = System.nanoTime() - startTime;
+        lastProcessingTimeMs = inferenceNanos / 1000000;
+        pipelineStats.recordStage(PipelineStats.STAGE_INFERENCE, inferenceNanos);
+        trace.record(startTime, TRACE_INFERENCE, frame.timestamp, inferenceNanos, results.size());
 
-                        // Track the maximum people detected in the session
-                        if (personCount > maxPersonCount) {
-                            maxPersonCount = personCount;
-                        }
+        if (!runInPostprocess(() -> postprocess(frame, results))) {
+            releaseFrame(frame);
+        }
+    }
 
-                        cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
-                        final Canvas canvas = new Canvas(cropCopyBitmap);
-                        final Paint paint = new Paint();
-                        paint.setColor(Color.RED);
-                        paint.setStyle(Style.STROKE);
-                        paint.setStrokeWidth(2.0f);
-
-                        float minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
-                        switch (MODE) {
-                            case TF_OD_API:
-                                minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
-                                break;
-                        }
+    /**
+     * Postprocessing stage: filters and counts people, updates the tracker and the UI, and returns
+     * the frame to the pool.
+     */
+    private void postprocess(final Frame frame, final List<Classifier.Recognition> results) {
+        final long startTime = System.nanoTime();
 
-                        final List<Classifier.Recognition> mappedRecognitions =
-                                new LinkedList<Classifier.Recognition>();
+        // Count the number of people detected
+        final int personCount = countPeople(results);
 
-                        for (final Classifier.Recognition result : results) {
-                            final RectF location = result.getLocation();
-                            if (location != null && result.getConfidence() >= minimumConfidence && result.getTitle().equalsIgnoreCase("person")) {
-                                canvas.drawRect(location, paint);
+        if (frame.croppedBitmap != null) {
+            cropCopyCanvas.drawBitmap(frame.croppedBitmap, 0, 0, null);
+            if (cropPixels == null) {
+                cropPixels = new int[cropSize * cropSize];
+            }
+            frame.croppedBitmap.getPixels(cropPixels, 0, cropSize, 0, 0, cropSize, cropSize);
+        }
+
+        float minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
+        switch (MODE) {
+            case TF_OD_API:
+                minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
+                break;
+        }
 
-                                cropToFrameTransform.mapRect(location);
+        final List<Classifier.Recognition> mappedRecognitions =
+                new LinkedList<Classifier.Recognition>();
 
-                                result.setLocation(location);
-                                mappedRecognitions.add(result);
-                            }
-                        }
+        for (final Classifier.Recognition result : results) {
+            final RectF location = result.getLocation();
+            if (location != null && result.getConfidence() >= minimumConfidence && result.getDetectedClass() == personClass) {
+                cropCopyCanvas.drawRect(location, cropCopyPaint);
+
+                cropToFrameTransform.mapRect(location);
 
-                        tracker.trackResults(mappedRecognitions, currTimestamp);
-                        trackingOverlay.postInvalidate();
-
-                        computingDetection = false;
-
-                        runOnUiThread(
-                                new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        showFrameInfo(previewWidth + "x" + previewHeight);
-                                        showCropInfo(cropCopyBitmap.getWidth() + "x" + cropCopyBitmap.getHeight());
-                                        showInference(lastProcessingTimeMs + "ms");
-
-                                        // Show alert 2 seconds after detecting people, only if not shown before
-                                        if (personCount > 0 && !isAlertShown) {
-                                            isAlertShown = true; // Set the flag to true to prevent multiple alerts
-                                            new android.os.Handler().postDelayed(new Runnable() {
-                                                @Override
-                                                public void run() {
-                                                    // Freeze the camera preview before showing the alert
-                                                    stopCamera();
-
-                                                    estimateAndToastResources(maxPersonCount);
-                                                }
-                                            }, 2000); // Delay of 2 seconds
-                                        }
-                                    }
-                                });
+                result.setLocation(location);
+                mappedRecognitions.add(result);
+            }
+        }
+
+        appearanceFrame = frame;
+        final long trackStartTime = System.nanoTime();
+        tracker.trackResults(
+                mappedRecognitions, frame.timestamp, frame.luma, frame.lumaWidth, frame.lumaHeight);
+        pipelineStats.recordStage(PipelineStats.STAGE_TRACK, System.nanoTime() - trackStartTime);
+        appearanceFrame = null;
+        final int uniqueCount = personCounter.getUniqueCount();
+        if (uniqueCount != uniquePersonCount) {
+            uniquePersonCount = uniqueCount;
+            countChangedNanos = System.nanoTime();
+        }
+        trackingOverlay.postInvalidate();
+
+        // The preprocess thread may reuse the frame as soon as it is released.
+        final long frameStartNanos = frame.startNanos;
+        final long frameTimestamp = frame.timestamp;
+        releaseFrame(frame);
+        final long endTime = System.nanoTime();
+        detectionScheduler.recordDetection(endTime - frameStartNanos);
+        pipelineStats.recordStage(PipelineStats.STAGE_POSTPROCESS, endTime - startTime);
+        pipelineStats.recordFrameCompleted(endTime);
+        trace.record(startTime, TRACE_POSTPROCESS, frameTimestamp, endTime - startTime, personCount);
+
+        // Estimate resources for everyone seen in the session, once the count has settled and
+        // only once.
+        final boolean showEstimate = !isAlertShown
+                && uniqueCount > 0
+                && endTime - countChangedNanos >= COUNT_SETTLE_NANOS;
+        if (showEstimate) {
+            isAlertShown = true;
+        }
+
+        runOnUiThread(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        showFrameInfo(previewWidth + "x" + previewHeight);
+                        showCropInfo(cropCopyBitmap.getWidth() + "x" + cropCopyBitmap.getHeight());
+                        showInference(lastProcessingTimeMs + "ms");
+                        showStageTimes(pipelineStats.getStageString());
+                        showLatency(pipelineStats.getLatencyString() + "\n" + detector.getStatString());
+                        showFrameRate(pipelineStats.getFpsString() + " (" + getSkippedFrameCount() + " skipped)");
+
+                        if (showEstimate) {
+                            // Freeze the camera preview before showing the alert
+                            stopCamera();
+                            estimateAndToastResources(uniqueCount);
+                        }
                     }
                 });
     }
 
+    /**
+     * Samples the appearance of a person, located in frame coordinates, from the model input of
+     * the frame being postprocessed.
+     */
+    private boolean sampleAppearance(final RectF location) {
+        final Frame frame = appearanceFrame;
+        if (frame == null) {
+            return false;
+        }
+        frameToCropTransform.mapRect(cropLocation, location);
+        if (frame.cameraFrame != null) {
+            appearanceEmbedder.embed(
+                    frame.cameraFrame.getTensor(),
+                    detector.isQuantized(),
+                    cropSize,
+                    cropLocation.left,
+                    cropLocation.top,
+                    cropLocation.right,
+                    cropLocation.bottom,
+                    appearance);
+        } else if (frame.croppedBitmap != null) {
+            appearanceEmbedder.embed(
+                    cropPixels,
+                    cropSize,
+                    cropSize,
+                    cropLocation.left,
+                    cropLocation.top,
+                    cropLocation.right,
+                    cropLocation.bottom,
+                    appearance);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Hands a frame that skips detection to the postprocess thread for tracking. Only one camera
+     * frame is held for tracking at a time: a newer frame replaces one still waiting, which is
+     * released, and while one is being tracked newer frames are released untracked.
+     */
+    private void schedulePropagate(final CameraFrame cameraFrame) {
+        CameraFrame skipped = null;
+        boolean post = false;
+        synchronized (propagateLock) {
+            if (!propagating) {
+                pendingPropagate = cameraFrame;
+                propagating = true;
+                post = true;
+            } else if (pendingPropagate != null) {
+                skipped = pendingPropagate;
+                pendingPropagate = cameraFrame;
+            } else {
+                skipped = cameraFrame;
+            }
+        }
+        if (skipped != null) {
+            releaseCameraFrame(skipped);
+        }
+        if (post && !runInPostprocess(this::propagatePending)) {
+            final CameraFrame unposted;
+            synchronized (propagateLock) {
+                unposted = pendingPropagate;
+                pendingPropagate = null;
+                propagating = false;
+            }
+            if (unposted != null) {
+                releaseCameraFrame(unposted);
+            }
+        }
+    }
+
+    private void propagatePending() {
+        final CameraFrame cameraFrame;
+        synchronized (propagateLock) {
+            cameraFrame = pendingPropagate;
+            pendingPropagate = null;
+        }
+        try {
+            if (cameraFrame != null) {
+                propagate(cameraFrame);
+            }
+        } finally {
+            synchronized (propagateLock) {
+                propagating = false;
+            }
+        }
+    }
+
+    /** Tracking stage for frames that skip detection: moves the tracked boxes onto the frame. */
+    private void propagate(final CameraFrame cameraFrame) {
+        final long startTime = System.nanoTime();
+        tracker.propagate(
+                cameraFrame.getLuma(),
+                cameraFrame.getLumaWidth(),
+                cameraFrame.getLumaHeight(),
+                cameraFrame.getSequence());
+        final long propagateNanos = System.nanoTime() - startTime;
+        pipelineStats.recordStage(PipelineStats.STAGE_TRACK, propagateNanos);
+        trace.record(startTime, TRACE_PROPAGATE, cameraFrame.getSequence(), propagateNanos, 0);
+        releaseCameraFrame(cameraFrame);
+        trackingOverlay.postInvalidate();
+    }
+
+    /** Returns {@code frame} to the pool and picks up a camera frame that may be waiting for it. */
+    private void releaseFrame(final Frame frame) {
+        if (frame.cameraFrame != null) {
+            releaseCameraFrame(frame.cameraFrame);
+            frame.cameraFrame = null;
+        }
+        freeFrames.offer(frame);
+        runInPreprocess(this::preprocessLatest);
+    }
+
     /**
      * Freezes the camera preview and stops detection.
      */
@@ -297,7 +580,7 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     private int countPeople(List<Classifier.Recognition> results) {
         int count = 0;
         for (Classifier.Recognition recognition : results) {
-            if (recognition.getTitle().equalsIgnoreCase("person")) {
+            if (recognition.getDetectedClass() == personClass) {
                 count++;
             }
         }
@@ -318,6 +601,54 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
         TF_OD_API;
     }
 
+    @Override
+    protected YuvToTensorConverter createTensorConverter() {
+        if (!USE_FUSED_INPUT || detector == null) {
+            return null;
+        }
+        return new YuvToTensorConverter(
+                previewWidth, previewHeight, cropSize, sensorOrientation, MAINTAIN_ASPECT, detector.isQuantized());
+    }
+
+    /**
+     * State of one camera frame as it moves through the pipeline stages: either the preview and
+     * crop bitmaps, or the camera frame holding the fused model input.
+     */
+    private static final class Frame {
+        final Bitmap rgbFrameBitmap;
+        final Bitmap croppedBitmap;
+        final Canvas cropCanvas;
+        CameraFrame cameraFrame;
+        long timestamp;
+        long startNanos;
+        // Luminance thumbnail of the camera frame, kept after the camera frame is released.
+        byte[] luma;
+        int lumaWidth;
+        int lumaHeight;
+
+        Frame(final int previewWidth, final int previewHeight, final int cropSize, final boolean withBitmaps) {
+            if (withBitmaps) {
+                rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Config.ARGB_8888);
+                croppedBitmap = Bitmap.createBitmap(cropSize, cropSize, Config.ARGB_8888);
+                cropCanvas = new Canvas(croppedBitmap);
+            } else {
+                rgbFrameBitmap = null;
+                croppedBitmap = null;
+                cropCanvas = null;
+            }
+        }
+
+        void copyLuma(final CameraFrame cameraFrame) {
+            final byte[] source = cameraFrame.getLuma();
+            if (luma == null || luma.length != source.length) {
+                luma = new byte[source.length];
+            }
+            System.arraycopy(source, 0, luma, 0, source.length);
+            lumaWidth = cameraFrame.getLumaWidth();
+            lumaHeight = cameraFrame.getLumaHeight();
+        }
+    }
+
     @Override
     protected void setUseNNAPI(final boolean isChecked) {
         runInBackground(() -> detector.setUseNNAPI(isChecked));
@@ -327,4 +658,9 @@ public class DetectorActivity extends CameraActivity implements OnImageAvailable
     protected void setNumThreads(final int numThreads) {
         runInBackground(() -> detector.setNumThreads(numThreads));
     }
+
+    @Override
+    protected void dumpTrace() {
+        trace.dump(LOGGER);
+    }
 }
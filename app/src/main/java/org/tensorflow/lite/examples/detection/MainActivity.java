@@ -10,8 +10,8 @@ import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.RectF;
+import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
@@ -26,9 +26,12 @@ import org.tensorflow.lite.examples.detection.tflite.Classifier;
 import org.tensorflow.lite.examples.detection.tflite.YoloV4Classifier;
 import org.tensorflow.lite.examples.detection.tracking.MultiBoxTracker;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -41,31 +44,99 @@ public class MainActivity extends AppCompatActivity {
 
         cameraButton = findViewById(R.id.cameraButton);
         detectButton = findViewById(R.id.detectButton);
+        videoButton = findViewById(R.id.videoButton);
         imageView = findViewById(R.id.imageView);
 
         cameraButton.setOnClickListener(v -> startActivity(new Intent(MainActivity.this, DetectorActivity.class)));
+        videoButton.setOnClickListener(v -> startActivityForResult(
+                new Intent(Intent.ACTION_OPEN_DOCUMENT)
+                        .addCategory(Intent.CATEGORY_OPENABLE)
+                        .setType("video/*"),
+                REQUEST_VIDEO));
+
+        // Taps while a detection is running are turned away rather than queued.
+        detectButton.setOnClickListener(v -> detector.recognizeImageAsync(
+                cropBitmap, results -> runOnUiThread(() -> handleResult(results))));
+        if (!initBox()) {
+            return;
+        }
 
-        detectButton.setOnClickListener(v -> {
-            Handler handler = new Handler();
-
-            new Thread(() -> {
-                final List<Classifier.Recognition> results = detector.recognizeImage(cropBitmap);
-                handler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        handleResult(cropBitmap, results);
-                    }
-                });
-            }).start();
-
-        });
         this.sourceBitmap = Utils.getBitmapFromAsset(MainActivity.this, "kite.png");
 
-        this.cropBitmap = Utils.processBitmap(sourceBitmap, TF_OD_API_INPUT_SIZE);
+        this.cropBitmap = Utils.processBitmap(sourceBitmap, detector.getInputSize());
+        this.cropCopyBitmap = Bitmap.createBitmap(
+                cropBitmap.getWidth(), cropBitmap.getHeight(), Bitmap.Config.ARGB_8888);
 
         this.imageView.setImageBitmap(cropBitmap);
+    }
 
-        initBox();
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_VIDEO && resultCode == RESULT_OK && data != null && data.getData() != null) {
+            analyzeVideo(data.getData());
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        final VideoAnalyzer analyzer = videoAnalyzer;
+        if (analyzer != null) {
+            analyzer.cancel();
+        }
+        videoExecutor.shutdown();
+        if (detector != null) {
+            detector.close();
+        }
+        super.onDestroy();
+    }
+
+    // Runs the whole video through its own detector, so the still-image detector stays free. The
+    // analyzer is created here rather than on the worker so that onDestroy can always cancel it.
+    private void analyzeVideo(final Uri uri) {
+        final Context context = getApplicationContext();
+        if (videoAnalyzer != null) {
+            Toast.makeText(context, "A video is already being analyzed", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final YoloV4Classifier videoDetector;
+        try {
+            videoDetector = YoloV4Classifier.create(
+                    getAssets(), TF_OD_API_MODEL_FILE, TF_OD_API_LABELS_FILE, TF_OD_API_IS_QUANTIZED);
+        } catch (final IOException e) {
+            LOGGER.e(e, "Video analysis failed");
+            Toast.makeText(context, "Video analysis failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+            return;
+        }
+        videoDetector.setTargetLabels(VIDEO_TARGET_LABEL);
+        final VideoAnalyzer analyzer = new VideoAnalyzer(videoDetector, VIDEO_FRAME_STRIDE);
+        videoAnalyzer = analyzer;
+
+        final File output = new File(getExternalFilesDir(null), "detections-" + System.currentTimeMillis() + ".jsonl");
+        Toast.makeText(context, "Analyzing video", Toast.LENGTH_SHORT).show();
+        videoExecutor.execute(() -> {
+            String message;
+            try {
+                final VideoAnalyzer.Result result = analyzer.analyze(context, uri, output);
+                LOGGER.i("Video analyzed: %s, written to %s", result, output);
+                message = result.toString();
+            } catch (final IOException e) {
+                LOGGER.e(e, "Video analysis failed");
+                message = "Video analysis failed: " + e.getMessage();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                videoDetector.close();
+                runOnUiThread(() -> {
+                    if (videoAnalyzer == analyzer) {
+                        videoAnalyzer = null;
+                    }
+                });
+            }
+            final String text = message;
+            runOnUiThread(() -> Toast.makeText(context, text, Toast.LENGTH_LONG).show());
+        });
     }
 
     private static final Logger LOGGER = new Logger();
@@ -78,11 +149,22 @@ public class MainActivity extends AppCompatActivity {
 
     private static final String TF_OD_API_LABELS_FILE = "file:///android_asset/_darknet.labels";
 
+    private static final int REQUEST_VIDEO = 1;
+
+    // At 30 fps, six analyzed frames a second: enough to track people walking past.
+    private static final int VIDEO_FRAME_STRIDE = 5;
+
+    private static final String VIDEO_TARGET_LABEL = "person";
+
     // Minimum detection confidence to track a detection.
     private static final boolean MAINTAIN_ASPECT = false;
     private Integer sensorOrientation = 90;
 
-    private Classifier detector;
+    private YoloV4Classifier detector;
+
+    private final ExecutorService videoExecutor = Executors.newSingleThreadExecutor();
+    // Only touched on the UI thread.
+    private VideoAnalyzer videoAnalyzer;
 
     private Matrix frameToCropTransform;
     private Matrix cropToFrameTransform;
@@ -94,29 +176,14 @@ public class MainActivity extends AppCompatActivity {
 
     private Bitmap sourceBitmap;
     private Bitmap cropBitmap;
+    // The model input with the boxes drawn on; cropBitmap itself is read by the detector while a
+    // request is in flight.
+    private Bitmap cropCopyBitmap;
 
-    private Button cameraButton, detectButton;
+    private Button cameraButton, detectButton, videoButton;
     private ImageView imageView;
 
-    private void initBox() {
-        previewHeight = TF_OD_API_INPUT_SIZE;
-        previewWidth = TF_OD_API_INPUT_SIZE;
-        frameToCropTransform =
-                ImageUtils.getTransformationMatrix(
-                        previewWidth, previewHeight,
-                        TF_OD_API_INPUT_SIZE, TF_OD_API_INPUT_SIZE,
-                        sensorOrientation, MAINTAIN_ASPECT);
-
-        cropToFrameTransform = new Matrix();
-        frameToCropTransform.invert(cropToFrameTransform);
-
-        tracker = new MultiBoxTracker(this);
-        trackingOverlay = findViewById(R.id.tracking_overlay);
-        trackingOverlay.addCallback(
-                canvas -> tracker.draw(canvas));
-
-        tracker.setFrameConfiguration(TF_OD_API_INPUT_SIZE, TF_OD_API_INPUT_SIZE, sensorOrientation);
-
+    private boolean initBox() {
         try {
             detector =
                     YoloV4Classifier.create(
@@ -132,11 +199,35 @@ public class MainActivity extends AppCompatActivity {
                             getApplicationContext(), "Classifier could not be initialized", Toast.LENGTH_SHORT);
             toast.show();
             finish();
+            return false;
         }
+
+        detector.setMaxInFlight(1);
+
+        final int inputSize = detector.getInputSize();
+        previewHeight = inputSize;
+        previewWidth = inputSize;
+        frameToCropTransform =
+                ImageUtils.getTransformationMatrix(
+                        previewWidth, previewHeight,
+                        inputSize, inputSize,
+                        sensorOrientation, MAINTAIN_ASPECT);
+
+        cropToFrameTransform = new Matrix();
+        frameToCropTransform.invert(cropToFrameTransform);
+
+        tracker = new MultiBoxTracker(this);
+        trackingOverlay = findViewById(R.id.tracking_overlay);
+        trackingOverlay.addCallback(
+                canvas -> tracker.draw(canvas));
+
+        tracker.setFrameConfiguration(inputSize, inputSize, sensorOrientation);
+        return true;
     }
 
-    private void handleResult(Bitmap bitmap, List<Classifier.Recognition> results) {
-        final Canvas canvas = new Canvas(bitmap);
+    private void handleResult(List<Classifier.Recognition> results) {
+        final Canvas canvas = new Canvas(cropCopyBitmap);
+        canvas.drawBitmap(cropBitmap, 0, 0, null);
         final Paint paint = new Paint();
         paint.setColor(Color.RED);
         paint.setStyle(Paint.Style.STROKE);
@@ -157,6 +248,6 @@ public class MainActivity extends AppCompatActivity {
         }
 //        tracker.trackResults(mappedRecognitions, new Random().nextInt());
 //        trackingOverlay.postInvalidate();
-        imageView.setImageBitmap(bitmap);
+        imageView.setImageBitmap(cropCopyBitmap);
     }
 }
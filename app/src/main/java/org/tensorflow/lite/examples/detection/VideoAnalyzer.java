@@ -0,0 +1,397 @@
+package org.tensorflow.lite.examples.detection;
+
+import android.content.Context;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.media.Image;
+import android.net.Uri;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.tensorflow.lite.examples.detection.env.ImageUtils;
+import org.tensorflow.lite.examples.detection.env.Logger;
+import org.tensorflow.lite.examples.detection.env.PipelineStats;
+import org.tensorflow.lite.examples.detection.env.VideoFrameDecoder;
+import org.tensorflow.lite.examples.detection.env.YuvToTensorConverter;
+import org.tensorflow.lite.examples.detection.tflite.Classifier.Recognition;
+import org.tensorflow.lite.examples.detection.tflite.YoloV4Classifier;
+import org.tensorflow.lite.examples.detection.tracking.AppearanceEmbedder;
+import org.tensorflow.lite.examples.detection.tracking.TrackEngine;
+import org.tensorflow.lite.examples.detection.tracking.UniquePersonCounter;
+
+/**
+ * Counts and tracks people in a recorded video file, such as helmet-cam footage, on the device.
+ *
+ * <p>A decoder thread samples every {@code frameStride}-th frame and converts it straight into a
+ * model input tensor with {@link YuvToTensorConverter}. The tensors go through a bounded queue to
+ * the calling thread, which runs the detector, tracks people across the sampled frames with
+ * {@link TrackEngine} and counts distinct ones with {@link UniquePersonCounter}. The tensors come
+ * from a fixed pool: when detection falls behind, the decoder waits for a free tensor instead of
+ * dropping frames or buffering more, so memory does not grow with the length of the video.
+ *
+ * <p>Results are appended to a JSON Lines file as each frame completes, so a long run can be
+ * followed or interrupted without losing what was analyzed. The first line describes the video;
+ * every further line is one sampled frame:
+ * <pre>
+ * {"frame":30,"timeMs":1000,"people":2,"uniquePeople":3,"detections":[
+ *     {"track":4,"score":0.87,"box":[120.0,40.5,180.0,210.0]},...]}
+ * </pre>
+ * Boxes are in pixels of the stored video frame, before any display rotation. {@code track} is
+ * null until a person has been seen on enough frames to be confirmed.
+ */
+public class VideoAnalyzer {
+    private static final Logger LOGGER = new Logger();
+    private static final String PERSON_LABEL = "person";
+    private static final int DEFAULT_QUEUE_CAPACITY = 3;
+    private static final int LOG_INTERVAL_FRAMES = 100;
+
+    private final YoloV4Classifier detector;
+    private final int frameStride;
+    private final int queueCapacity;
+    private final int personClass;
+    private final PipelineStats stats = new PipelineStats();
+    private volatile VideoFrameDecoder activeDecoder;
+    private volatile boolean cancelled;
+
+    // Detection-thread state, reused for every frame.
+    private final TrackEngine trackEngine = new TrackEngine();
+    private UniquePersonCounter personCounter = new UniquePersonCounter();
+    private final AppearanceEmbedder appearanceEmbedder = new AppearanceEmbedder();
+    private final float[] appearance = new float[AppearanceEmbedder.DIMS];
+    private final RectF frameBox = new RectF();
+    private final StringBuilder line = new StringBuilder();
+    private float[] tensorBoxes = new float[64];
+    private float[] frameBoxes = new float[64];
+    private float[] scores = new float[16];
+    private int[] trackOfDetection = new int[16];
+
+    /**
+     * @param detector detector used only by this analyzer while it runs.
+     * @param frameStride analyze every {@code frameStride}-th frame; 1 analyzes all of them.
+     */
+    public VideoAnalyzer(final YoloV4Classifier detector, final int frameStride) {
+        this(detector, frameStride, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /** @param queueCapacity converted frames allowed to wait for the detector. */
+    public VideoAnalyzer(final YoloV4Classifier detector, final int frameStride, final int queueCapacity) {
+        if (frameStride < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException(
+                    "Stride and queue capacity must be positive, got " + frameStride + " and " + queueCapacity);
+        }
+        this.detector = detector;
+        this.frameStride = frameStride;
+        this.queueCapacity = queueCapacity;
+        personClass = detector.getLabelIndex(PERSON_LABEL);
+    }
+
+    /**
+     * Analyzes the video at {@code uri}, writing results to {@code output}. Blocks until the video
+     * has been analyzed or {@link #cancel()} is called; call it from a background thread.
+     *
+     * @return the statistics of the run.
+     * @throws IOException if the video cannot be decoded or the results cannot be written.
+     */
+    public Result analyze(final Context context, final Uri uri, final File output)
+            throws IOException, InterruptedException {
+        final long startNanos = System.nanoTime();
+        try (VideoFrameDecoder decoder = new VideoFrameDecoder(context, uri);
+             Writer writer = new BufferedWriter(
+                     new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8))) {
+            activeDecoder = decoder;
+            if (cancelled) {
+                decoder.cancel();
+            }
+            final int width = decoder.getWidth();
+            final int height = decoder.getHeight();
+            writer.write(String.format(Locale.US,
+                    "{\"video\":\"%s\",\"width\":%d,\"height\":%d,\"rotation\":%d,\"frameStride\":%d}\n",
+                    escape(uri.toString()), width, height, decoder.getRotation(), frameStride));
+            trackEngine.clear();
+            trackEngine.setFrameSize(width, height);
+            personCounter = new UniquePersonCounter();
+
+            final BlockingQueue<Frame> free = new ArrayBlockingQueue<>(queueCapacity);
+            final BlockingQueue<Frame> ready = new ArrayBlockingQueue<>(queueCapacity + 1);
+            for (int i = 0; i < queueCapacity; i++) {
+                free.add(new Frame());
+            }
+            final Producer producer = new Producer(decoder, free, ready);
+            final Thread decoderThread = new Thread(producer, "video-decoder");
+            decoderThread.start();
+
+            int analyzed = 0;
+            try {
+                for (Frame frame = ready.take(); frame != Frame.END; frame = ready.take()) {
+                    analyzeFrame(frame, producer.cropToFrame, writer);
+                    free.put(frame);
+                    if (++analyzed % LOG_INTERVAL_FRAMES == 0) {
+                        LOGGER.i("Analyzed %d frames at %s, %d unique people", analyzed,
+                                stats.getFpsString(), personCounter.getUniqueCount());
+                    }
+                }
+            } finally {
+                decoder.cancel();
+                decoderThread.interrupt();
+                decoderThread.join();
+                activeDecoder = null;
+            }
+            if (producer.error != null) {
+                throw producer.error;
+            }
+            final long elapsedNanos = System.nanoTime() - startNanos;
+            return new Result(producer.decodedFrames, analyzed, personCounter.getUniqueCount(), elapsedNanos,
+                    output);
+        }
+    }
+
+    /** Stops a running {@link #analyze}, which returns the results so far. Any thread. */
+    public void cancel() {
+        cancelled = true;
+        final VideoFrameDecoder decoder = activeDecoder;
+        if (decoder != null) {
+            decoder.cancel();
+        }
+    }
+
+    /** Smoothed stage times and throughput of the current run. */
+    public PipelineStats getStats() {
+        return stats;
+    }
+
+    private void analyzeFrame(final Frame frame, final Matrix cropToFrame, final Writer writer)
+            throws IOException {
+        final long inferenceStart = System.nanoTime();
+        final List<Recognition> results = detector.recognizeTensor(frame.tensor);
+        final long inferenceEnd = System.nanoTime();
+        stats.recordStage(PipelineStats.STAGE_INFERENCE, inferenceEnd - inferenceStart);
+
+        int count = 0;
+        for (final Recognition result : results) {
+            if (result.getDetectedClass() != personClass) {
+                continue;
+            }
+            ensureCapacity(count + 1);
+            final RectF location = result.getLocation();
+            tensorBoxes[4 * count] = location.left;
+            tensorBoxes[4 * count + 1] = location.top;
+            tensorBoxes[4 * count + 2] = location.right;
+            tensorBoxes[4 * count + 3] = location.bottom;
+            cropToFrame.mapRect(frameBox, location);
+            frameBoxes[4 * count] = frameBox.left;
+            frameBoxes[4 * count + 1] = frameBox.top;
+            frameBoxes[4 * count + 2] = frameBox.right;
+            frameBoxes[4 * count + 3] = frameBox.bottom;
+            scores[count] = result.getConfidence();
+            trackOfDetection[count] = -1;
+            ++count;
+        }
+
+        trackEngine.update(frameBoxes, count);
+        for (int i = 0; i < trackEngine.getRemovedCount(); ++i) {
+            personCounter.trackRemoved(trackEngine.getRemovedId(i));
+        }
+        final int inputSize = detector.getInputSize();
+        for (int t = 0; t < trackEngine.getTrackCount(); ++t) {
+            final int d = trackEngine.getDetection(t);
+            if (d < 0 || !trackEngine.isConfirmed(t)) {
+                continue;
+            }
+            final int id = trackEngine.getId(t);
+            trackOfDetection[d] = id;
+            appearanceEmbedder.embed(frame.tensor, detector.isQuantized(), inputSize,
+                    tensorBoxes[4 * d], tensorBoxes[4 * d + 1], tensorBoxes[4 * d + 2], tensorBoxes[4 * d + 3],
+                    appearance);
+            personCounter.observe(id, appearance);
+        }
+
+        writeFrame(frame, count, writer);
+        final long now = System.nanoTime();
+        stats.recordStage(PipelineStats.STAGE_POSTPROCESS, now - inferenceEnd);
+        stats.recordFrameCompleted(now);
+    }
+
+    private void writeFrame(final Frame frame, final int count, final Writer writer) throws IOException {
+        line.setLength(0);
+        line.append("{\"frame\":").append(frame.index)
+                .append(",\"timeMs\":").append(frame.presentationTimeUs / 1000)
+                .append(",\"people\":").append(count)
+                .append(",\"uniquePeople\":").append(personCounter.getUniqueCount())
+                .append(",\"detections\":[");
+        for (int d = 0; d < count; d++) {
+            if (d > 0) {
+                line.append(',');
+            }
+            line.append("{\"track\":");
+            if (trackOfDetection[d] >= 0) {
+                line.append(trackOfDetection[d]);
+            } else {
+                line.append("null");
+            }
+            line.append(",\"score\":").append(scores[d]).append(",\"box\":[")
+                    .append(frameBoxes[4 * d]).append(',')
+                    .append(frameBoxes[4 * d + 1]).append(',')
+                    .append(frameBoxes[4 * d + 2]).append(',')
+                    .append(frameBoxes[4 * d + 3]).append("]}");
+        }
+        line.append("]}\n");
+        writer.append(line);
+        // One flush per frame keeps the file current for a fraction of a detection's cost.
+        writer.flush();
+    }
+
+    private void ensureCapacity(final int detections) {
+        if (detections <= scores.length) {
+            return;
+        }
+        final int capacity = Math.max(detections, 2 * scores.length);
+        tensorBoxes = Arrays.copyOf(tensorBoxes, 4 * capacity);
+        frameBoxes = Arrays.copyOf(frameBoxes, 4 * capacity);
+        scores = Arrays.copyOf(scores, capacity);
+        trackOfDetection = Arrays.copyOf(trackOfDetection, capacity);
+    }
+
+    private static String escape(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /** A model input tensor and where it came from in the video. */
+    private static final class Frame {
+        // Marks the end of the video in the ready queue.
+        static final Frame END = new Frame();
+
+        // Allocated on first use, once the video size is known.
+        ByteBuffer tensor;
+        int index;
+        long presentationTimeUs;
+    }
+
+    // Decodes on its own thread, converting each sampled frame into a free tensor from the pool.
+    private final class Producer implements Runnable, VideoFrameDecoder.FrameSink {
+        private final VideoFrameDecoder decoder;
+        private final BlockingQueue<Frame> free;
+        private final BlockingQueue<Frame> ready;
+        private YuvToTensorConverter converter;
+        // Published to the detection thread through the ready queue.
+        Matrix cropToFrame = new Matrix();
+        // Read after the thread has been joined.
+        IOException error;
+        int decodedFrames;
+
+        Producer(final VideoFrameDecoder decoder, final BlockingQueue<Frame> free,
+                 final BlockingQueue<Frame> ready) {
+            this.decoder = decoder;
+            this.free = free;
+            this.ready = ready;
+        }
+
+        @Override
+        public void run() {
+            try {
+                decodedFrames = decoder.decode(frameStride, this);
+            } catch (final IOException e) {
+                error = e;
+            } catch (final InterruptedException e) {
+                // Cancelled by the detection thread.
+            } finally {
+                // There is always room: the ready queue holds one more than the pool.
+                ready.offer(Frame.END);
+            }
+        }
+
+        @Override
+        public void onFrame(final Image image, final int frameIndex, final long presentationTimeUs)
+                throws InterruptedException {
+            final long start = System.nanoTime();
+            final Rect cropRect = image.getCropRect();
+            final int width = cropRect.width();
+            final int height = cropRect.height();
+            if (converter == null) {
+                converter = new YuvToTensorConverter(width, height, detector.getInputSize(),
+                        decoder.getRotation(), false, detector.isQuantized());
+                final Matrix frameToCrop = ImageUtils.getTransformationMatrix(width, height,
+                        detector.getInputSize(), detector.getInputSize(), decoder.getRotation(), false);
+                final Matrix inverse = new Matrix();
+                frameToCrop.invert(inverse);
+                cropToFrame = inverse;
+            }
+            final Frame frame = free.take();
+            if (frame.tensor == null) {
+                frame.tensor = converter.allocateOutput();
+            }
+            final Image.Plane[] planes = image.getPlanes();
+            converter.convert(
+                    planes[0].getBuffer(),
+                    planes[1].getBuffer(),
+                    planes[2].getBuffer(),
+                    planes[0].getRowStride(),
+                    planes[1].getRowStride(),
+                    planes[1].getPixelStride(),
+                    cropRect.left,
+                    cropRect.top,
+                    frame.tensor);
+            frame.index = frameIndex;
+            frame.presentationTimeUs = presentationTimeUs;
+            stats.recordStage(PipelineStats.STAGE_CONVERT, System.nanoTime() - start);
+            ready.put(frame);
+        }
+    }
+
+    /** Outcome of one {@link #analyze} run. */
+    public static final class Result {
+        private final int decodedFrames;
+        private final int analyzedFrames;
+        private final int uniquePeople;
+        private final long elapsedNanos;
+        private final File output;
+
+        Result(final int decodedFrames, final int analyzedFrames, final int uniquePeople,
+               final long elapsedNanos, final File output) {
+            this.decodedFrames = decodedFrames;
+            this.analyzedFrames = analyzedFrames;
+            this.uniquePeople = uniquePeople;
+            this.elapsedNanos = elapsedNanos;
+            this.output = output;
+        }
+
+        public int getDecodedFrames() {
+            return decodedFrames;
+        }
+
+        public int getAnalyzedFrames() {
+            return analyzedFrames;
+        }
+
+        public int getUniquePeople() {
+            return uniquePeople;
+        }
+
+        public File getOutput() {
+            return output;
+        }
+
+        /** Analyzed frames per second of wall time, decoding included. */
+        public float getFps() {
+            return elapsedNanos > 0 ? analyzedFrames * 1e9f / elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d of %d frames at %.1f fps, %d unique people",
+                    analyzedFrames, decodedFrames, getFps(), uniquePeople);
+        }
+    }
+}
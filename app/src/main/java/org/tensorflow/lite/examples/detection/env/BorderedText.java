@@ -28,6 +28,7 @@ import java.util.Vector;
 public class BorderedText {
   private final Paint interiorPaint;
   private final Paint exteriorPaint;
+  private final Paint backgroundPaint = new Paint();
 
   private final float textSize;
 
@@ -65,6 +66,8 @@ public class BorderedText {
     exteriorPaint.setAntiAlias(false);
     exteriorPaint.setAlpha(255);
 
+    backgroundPaint.setStyle(Style.FILL);
+
     this.textSize = textSize;
   }
 
@@ -82,15 +85,39 @@ public class BorderedText {
       final Canvas canvas, final float posX, final float posY, final String text, Paint bgPaint) {
 
     float width = exteriorPaint.measureText(text);
-    float textSize = exteriorPaint.getTextSize();
-    Paint paint = new Paint(bgPaint);
-    paint.setStyle(Paint.Style.FILL);
-    paint.setAlpha(160);
-    canvas.drawRect(posX, (posY + (int) (textSize)), (posX + (int) (width)), posY, paint);
-
+    drawBackground(canvas, posX, posY, width, bgPaint.getColor());
     canvas.drawText(text, posX, (posY + textSize), interiorPaint);
   }
 
+  /**
+   * As {@link #drawText(Canvas, float, float, String, Paint)} for the first {@code count} chars of
+   * {@code text}, with their width already measured by {@link #measureText}. Allocates nothing.
+   */
+  public void drawText(
+      final Canvas canvas,
+      final float posX,
+      final float posY,
+      final char[] text,
+      final int count,
+      final float width,
+      final int bgColor) {
+    drawBackground(canvas, posX, posY, width, bgColor);
+    canvas.drawText(text, 0, count, posX, (posY + textSize), interiorPaint);
+  }
+
+  /** Width of the first {@code count} chars of {@code text}, for the label background. */
+  public float measureText(final char[] text, final int count) {
+    return exteriorPaint.measureText(text, 0, count);
+  }
+
+  // A translucent box of the given color behind a line of text.
+  private void drawBackground(
+      final Canvas canvas, final float posX, final float posY, final float width, final int color) {
+    backgroundPaint.setColor(color);
+    backgroundPaint.setAlpha(160);
+    canvas.drawRect(posX, (posY + (int) (textSize)), (posX + (int) (width)), posY, backgroundPaint);
+  }
+
   public void drawLines(Canvas canvas, final float posX, final float posY, Vector<String> lines) {
     int lineNum = 0;
     for (final String line : lines) {
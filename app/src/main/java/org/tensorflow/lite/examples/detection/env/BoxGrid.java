@@ -0,0 +1,137 @@
+package org.tensorflow.lite.examples.detection.env;
+
+import java.util.Arrays;
+
+/**
+ * Uniform grid over a rectangle for finding the boxes that may overlap a given box.
+ *
+ * <p>Each box is filed once, in the cell holding its center, on a singly linked list threaded
+ * through primitive arrays ({@code head} per cell, {@code next} per box). A query visits the cells
+ * its box covers, widened by half the largest box inserted so far, which is enough to reach every
+ * box whose extent overlaps it. The result is a superset of the overlapping boxes with each box
+ * at most once; callers still test the overlap themselves. Boxes outside the grid rectangle are
+ * filed in the nearest border cell, so nothing is missed.
+ *
+ * <p>With cells about the size of a typical box a query touches a handful of cells, so matching n
+ * boxes against n others costs O(n) instead of O(n^2). All arrays are reused across {@link #reset}
+ * calls and only grow. Not thread-safe.
+ */
+public final class BoxGrid {
+  // Bounds the cost of clearing the grid on every reset.
+  private static final int MAX_CELLS_PER_AXIS = 128;
+
+  private float originX;
+  private float originY;
+  private float inverseCellWidth;
+  private float inverseCellHeight;
+  private int columns;
+  private int rows;
+  private float maxHalfWidth;
+  private float maxHalfHeight;
+
+  private int[] head = new int[0];
+  private int[] next = new int[0];
+  private int[] entries = new int[0];
+  private int size;
+  private int[] found = new int[0];
+
+  /**
+   * Empties the grid and lays it out over the given rectangle.
+   *
+   * @param cellWidth preferred cell width, typically the mean box width; the cell is widened if
+   *     the rectangle would need more than {@value #MAX_CELLS_PER_AXIS} columns.
+   * @param capacity number of boxes that will be inserted.
+   */
+  public void reset(
+      final float minX,
+      final float minY,
+      final float maxX,
+      final float maxY,
+      final float cellWidth,
+      final float cellHeight,
+      final int capacity) {
+    final float width = Math.max(maxX - minX, 1);
+    final float height = Math.max(maxY - minY, 1);
+    columns = cellCount(width, cellWidth);
+    rows = cellCount(height, cellHeight);
+    originX = minX;
+    originY = minY;
+    inverseCellWidth = columns / width;
+    inverseCellHeight = rows / height;
+    maxHalfWidth = 0;
+    maxHalfHeight = 0;
+
+    final int cells = columns * rows;
+    if (head.length < cells) {
+      head = new int[cells];
+    }
+    Arrays.fill(head, 0, cells, -1);
+    if (next.length < capacity) {
+      next = new int[capacity];
+      entries = new int[capacity];
+      found = new int[capacity];
+    }
+    size = 0;
+  }
+
+  /** Files box {@code index}. At most {@code capacity} boxes may be inserted per reset. */
+  public void insert(
+      final int index, final float left, final float top, final float right, final float bottom) {
+    final int cell = row((top + bottom) / 2) * columns + column((left + right) / 2);
+    entries[size] = index;
+    next[size] = head[cell];
+    head[cell] = size++;
+    // Written as comparisons so a NaN extent cannot poison the query margins.
+    final float halfWidth = (right - left) / 2;
+    final float halfHeight = (bottom - top) / 2;
+    if (halfWidth > maxHalfWidth) {
+      maxHalfWidth = halfWidth;
+    }
+    if (halfHeight > maxHalfHeight) {
+      maxHalfHeight = halfHeight;
+    }
+  }
+
+  /**
+   * Collects the boxes that may overlap the given one.
+   *
+   * @return the number of boxes found; see {@link #getFound(int)}.
+   */
+  public int query(final float left, final float top, final float right, final float bottom) {
+    final int column0 = column(left - maxHalfWidth);
+    final int column1 = column(right + maxHalfWidth);
+    final int row0 = row(top - maxHalfHeight);
+    final int row1 = row(bottom + maxHalfHeight);
+    int count = 0;
+    for (int row = row0; row <= row1; ++row) {
+      for (int column = column0; column <= column1; ++column) {
+        for (int e = head[row * columns + column]; e >= 0; e = next[e]) {
+          found[count++] = entries[e];
+        }
+      }
+    }
+    return count;
+  }
+
+  /** Index of the {@code i}-th box found by the last {@link #query}. */
+  public int getFound(final int i) {
+    return found[i];
+  }
+
+  private int column(final float x) {
+    final int column = (int) ((x - originX) * inverseCellWidth);
+    return column < 0 ? 0 : (column >= columns ? columns - 1 : column);
+  }
+
+  private int row(final float y) {
+    final int row = (int) ((y - originY) * inverseCellHeight);
+    return row < 0 ? 0 : (row >= rows ? rows - 1 : row);
+  }
+
+  private static int cellCount(final float extent, final float cellSize) {
+    if (!(cellSize > 0)) {
+      return 1;
+    }
+    return (int) Math.max(1, Math.min(MAX_CELLS_PER_AXIS, Math.ceil(extent / cellSize)));
+  }
+}
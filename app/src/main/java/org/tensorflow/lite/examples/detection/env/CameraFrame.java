@@ -0,0 +1,173 @@
+package org.tensorflow.lite.examples.detection.env;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One camera preview frame converted to ARGB, or, when created with a {@link
+ * YuvToTensorConverter}, straight to the model input tensor.
+ *
+ * <p>The conversion reads the camera's buffers in place, so the camera can have them back as soon
+ * as {@link #convertYuv420} or {@link #convertNv21} returns, without the planes ever being copied.
+ * Alongside it the frame keeps a luminance thumbnail, {@link #LUMA_SCALE} times smaller in each
+ * dimension, for tracking boxes between detections.
+ */
+public class CameraFrame {
+  /** Downscaling factor of the luminance thumbnail. */
+  public static final int LUMA_SCALE = 4;
+
+  private final int width;
+  private final int height;
+  private final int lumaWidth;
+  private final int lumaHeight;
+  private final byte[] luma;
+  private final int[] rgbBytes;
+  private final YuvToTensorConverter tensorConverter;
+  private final ParallelYuvConverter argbConverter;
+  private final ByteBuffer tensor;
+  private long sequence;
+  private long conversionNanos;
+
+  public CameraFrame(final int width, final int height) {
+    this(width, height, null, null);
+  }
+
+  /**
+   * @param tensorConverter if not null, frames are converted to the model input with it instead of
+   *     to ARGB.
+   * @param argbConverter if not null, converts to ARGB across its workers instead of on the
+   *     calling thread alone.
+   */
+  public CameraFrame(
+      final int width,
+      final int height,
+      final YuvToTensorConverter tensorConverter,
+      final ParallelYuvConverter argbConverter) {
+    this.width = width;
+    this.height = height;
+    this.tensorConverter = tensorConverter;
+    this.argbConverter = argbConverter;
+    lumaWidth = width / LUMA_SCALE;
+    lumaHeight = height / LUMA_SCALE;
+    luma = new byte[lumaWidth * lumaHeight];
+    if (tensorConverter != null) {
+      rgbBytes = null;
+      tensor = tensorConverter.allocateOutput();
+    } else {
+      rgbBytes = new int[width * height];
+      tensor = null;
+    }
+  }
+
+  /** Converts an NV21 preview buffer from the legacy camera API. */
+  public void convertNv21(final byte[] bytes, final long sequence) {
+    final long startTime = System.nanoTime();
+    for (int y = 0; y < lumaHeight; ++y) {
+      final int row = y * LUMA_SCALE * width;
+      for (int x = 0; x < lumaWidth; ++x) {
+        final int p = row + x * LUMA_SCALE;
+        luma[y * lumaWidth + x] =
+            (byte)
+                (((0xff & bytes[p])
+                        + (0xff & bytes[p + 2])
+                        + (0xff & bytes[p + 2 * width])
+                        + (0xff & bytes[p + 2 * width + 2])
+                        + 2)
+                    >> 2);
+      }
+    }
+    if (tensorConverter != null) {
+      tensorConverter.convertNv21(bytes, tensor);
+    } else if (argbConverter != null) {
+      argbConverter.convertYUV420SPToARGB8888(bytes, width, height, rgbBytes);
+    } else {
+      ImageUtils.convertYUV420SPToARGB8888(bytes, width, height, rgbBytes);
+    }
+    finish(sequence, startTime);
+  }
+
+  /** Converts the three planes of a YUV_420_888 image, reading them in place. */
+  public void convertYuv420(
+      final ByteBuffer yPlane,
+      final ByteBuffer uPlane,
+      final ByteBuffer vPlane,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final long sequence) {
+    final long startTime = System.nanoTime();
+    for (int y = 0; y < lumaHeight; ++y) {
+      final int row = y * LUMA_SCALE * yRowStride;
+      for (int x = 0; x < lumaWidth; ++x) {
+        final int p = row + x * LUMA_SCALE;
+        luma[y * lumaWidth + x] =
+            (byte)
+                (((0xff & yPlane.get(p))
+                        + (0xff & yPlane.get(p + 2))
+                        + (0xff & yPlane.get(p + 2 * yRowStride))
+                        + (0xff & yPlane.get(p + 2 * yRowStride + 2))
+                        + 2)
+                    >> 2);
+      }
+    }
+    if (tensorConverter != null) {
+      tensorConverter.convert(
+          yPlane, uPlane, vPlane, yRowStride, uvRowStride, uvPixelStride, tensor);
+    } else if (argbConverter != null) {
+      argbConverter.convertYUV420ToARGB8888(
+          yPlane, uPlane, vPlane, width, height, yRowStride, uvRowStride, uvPixelStride, rgbBytes);
+    } else {
+      ImageUtils.convertYUV420ToARGB8888(
+          yPlane, uPlane, vPlane, width, height, yRowStride, uvRowStride, uvPixelStride, rgbBytes);
+    }
+    finish(sequence, startTime);
+  }
+
+  /** The {@code width * height} ARGB pixels of the frame, or null if it holds a tensor. */
+  public int[] getArgb() {
+    return rgbBytes;
+  }
+
+  /** The model input converted from the frame, rewound, or null if it holds ARGB pixels. */
+  public ByteBuffer getTensor() {
+    return tensor;
+  }
+
+  /**
+   * Luminance thumbnail, {@link #getLumaWidth()} by {@link #getLumaHeight()} without padding. Each
+   * value averages four samples spread over its {@link #LUMA_SCALE} square block.
+   */
+  public byte[] getLuma() {
+    return luma;
+  }
+
+  public int getLumaWidth() {
+    return lumaWidth;
+  }
+
+  public int getLumaHeight() {
+    return lumaHeight;
+  }
+
+  /** Number of the frame in camera order, starting at 1. */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /** Time the conversion took on the camera thread. */
+  public long getConversionNanos() {
+    return conversionNanos;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  private void finish(final long sequence, final long startTime) {
+    this.sequence = sequence;
+    conversionNanos = System.nanoTime() - startTime;
+  }
+}
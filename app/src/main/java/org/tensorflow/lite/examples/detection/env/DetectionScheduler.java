@@ -0,0 +1,85 @@
+package org.tensorflow.lite.examples.detection.env;
+
+/**
+ * Decides which camera frames go to the detector; the others only have their boxes moved along by
+ * the tracker.
+ *
+ * <p>A fixed scheduler runs detection every {@code n}-th frame. An adaptive one sets the interval
+ * to the number of frames that arrive while one detection runs, from smoothed measurements of
+ * both, so detections are spread evenly instead of starting whenever the detector frees up, and
+ * the interval follows the device as it heats up or load changes.
+ *
+ * <p>{@link #onFrame}, {@link #shouldDetect} and {@link #detectionStarted} are called from the
+ * thread handing out frames; {@link #recordDetection} may be called from any thread.
+ */
+public class DetectionScheduler {
+  // Weight of the newest sample in the moving averages.
+  private static final float SMOOTHING = 0.1f;
+
+  private final boolean adaptive;
+  private final int maxInterval;
+  private int interval;
+  private int framesSinceDetection;
+  private long lastFrameNanos;
+  private float frameIntervalNanos;
+  private volatile float detectionNanos;
+
+  private DetectionScheduler(final boolean adaptive, final int interval) {
+    if (interval < 1) {
+      throw new IllegalArgumentException("Interval must be at least 1, got " + interval);
+    }
+    this.adaptive = adaptive;
+    this.maxInterval = interval;
+    this.interval = adaptive ? 1 : interval;
+    // Detect on the first frame.
+    framesSinceDetection = this.interval;
+  }
+
+  /** Runs detection on every {@code interval}-th frame; 1 detects on every frame. */
+  public static DetectionScheduler fixed(final int interval) {
+    return new DetectionScheduler(false, interval);
+  }
+
+  /** Adapts the interval to the measured detection latency, up to {@code maxInterval}. */
+  public static DetectionScheduler adaptive(final int maxInterval) {
+    return new DetectionScheduler(true, maxInterval);
+  }
+
+  /** Counts a camera frame taken for processing at the given time. */
+  public void onFrame(final long nowNanos) {
+    ++framesSinceDetection;
+    if (lastFrameNanos != 0) {
+      frameIntervalNanos = smooth(frameIntervalNanos, nowNanos - lastFrameNanos);
+    }
+    lastFrameNanos = nowNanos;
+    if (adaptive && frameIntervalNanos > 0 && detectionNanos > 0) {
+      interval = Math.max(1, Math.min(maxInterval, Math.round(detectionNanos / frameIntervalNanos)));
+    }
+  }
+
+  /**
+   * Whether the current frame should be detected on. Stays true until {@link #detectionStarted()},
+   * so a frame the busy detector could not take is made up on the next one.
+   */
+  public boolean shouldDetect() {
+    return framesSinceDetection >= interval;
+  }
+
+  public void detectionStarted() {
+    framesSinceDetection = 0;
+  }
+
+  /** Feeds the time one detection took, from input to results. */
+  public void recordDetection(final long nanos) {
+    detectionNanos = smooth(detectionNanos, nanos);
+  }
+
+  /** Current number of frames per detection. */
+  public int getInterval() {
+    return interval;
+  }
+
+  private static float smooth(final float average, final long sample) {
+    return average == 0 ? sample : average + SMOOTHING * (sample - average);
+  }
+}
@@ -0,0 +1,117 @@
+package org.tensorflow.lite.examples.detection.env;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free "latest frame wins" handoff from one producer thread to the threads consuming frames,
+ * over a fixed pool of buffers.
+ *
+ * <p>The producer always owns one buffer to write into, so the camera callback never waits: it
+ * fills the buffer from {@link #acquire()} and calls {@link #publish()}. If the consumer has not
+ * taken the previously published frame yet, that frame is replaced and its buffer is reused for
+ * the next write. The consumer gets the newest frame from {@link #take()} and hands the buffer
+ * back with {@link #release(Object)} when it is done with it.
+ *
+ * <p>The producer and the pending frame need one buffer each, so with a pool of {@code k + 2}
+ * buffers the consumer can hold up to {@code k} frames and the producer always finds a buffer.
+ * {@link #getDroppedCount()} counts frames the producer had to skip for lack of one, which only
+ * happens if the consumer holds more than that.
+ */
+public class FrameExchanger<T> {
+  private final AtomicReference<T> latest = new AtomicReference<>();
+  private final AtomicReferenceArray<T> free;
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong replaced = new AtomicLong();
+  private final AtomicLong processed = new AtomicLong();
+
+  // Only touched by the producer thread.
+  private T writeBuffer;
+
+  @SafeVarargs
+  public FrameExchanger(final T... buffers) {
+    if (buffers.length < 3) {
+      throw new IllegalArgumentException("At least 3 buffers are needed, got " + buffers.length);
+    }
+    writeBuffer = buffers[0];
+    free = new AtomicReferenceArray<>(buffers.length - 1);
+    for (int i = 1; i < buffers.length; ++i) {
+      free.set(i - 1, buffers[i]);
+    }
+  }
+
+  /**
+   * Returns the buffer the producer should write the next frame into, or null if none is free and
+   * the frame has to be dropped. Producer thread only.
+   */
+  public T acquire() {
+    if (writeBuffer == null) {
+      writeBuffer = takeFree();
+    }
+    if (writeBuffer == null) {
+      dropped.incrementAndGet();
+    }
+    return writeBuffer;
+  }
+
+  /** Makes the buffer returned by {@link #acquire()} the newest frame. Producer thread only. */
+  public void publish() {
+    final T previous = latest.getAndSet(writeBuffer);
+    if (previous != null) {
+      // The consumer never saw the previous frame; overwrite it next time.
+      replaced.incrementAndGet();
+      writeBuffer = previous;
+    } else {
+      writeBuffer = takeFree();
+    }
+  }
+
+  /**
+   * Returns the newest published frame, or null if there is none since the last call. The buffer
+   * must be passed to {@link #release(Object)} once the consumer is done with it.
+   */
+  public T take() {
+    return latest.getAndSet(null);
+  }
+
+  /** Returns a buffer obtained from {@link #take()} to the pool. */
+  public void release(final T buffer) {
+    processed.incrementAndGet();
+    for (int i = 0; i < free.length(); ++i) {
+      if (free.compareAndSet(i, null, buffer)) {
+        return;
+      }
+    }
+    throw new IllegalStateException("More buffers released than were taken");
+  }
+
+  /** Frames the producer could not write because no buffer was free. */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /** Frames overwritten by a newer one before the consumer took them. */
+  public long getReplacedCount() {
+    return replaced.get();
+  }
+
+  /** Frames the consumer took and released. */
+  public long getProcessedCount() {
+    return processed.get();
+  }
+
+  public String getStatString() {
+    return "processed " + processed.get() + ", replaced " + replaced.get() + ", dropped " + dropped.get();
+  }
+
+  private T takeFree() {
+    for (int i = 0; i < free.length(); ++i) {
+      final T buffer = free.getAndSet(i, null);
+      if (buffer != null) {
+        return buffer;
+      }
+    }
+    return null;
+  }
+}
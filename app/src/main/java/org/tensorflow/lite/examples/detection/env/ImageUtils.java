@@ -20,6 +20,7 @@ import android.graphics.Matrix;
 import android.os.Environment;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
 
 /** Utility class for manipulating images. */
 public class ImageUtils {
@@ -104,7 +105,7 @@ public class ImageUtils {
     }
   }
 
-  private static int YUV2RGB(int y, int u, int v) {
+  static int YUV2RGB(int y, int u, int v) {
     // Adjust and check YUV values
     y = (y - 16) < 0 ? 0 : (y - 16);
     u -= 128;
@@ -151,6 +152,41 @@ public class ImageUtils {
     }
   }
 
+  /**
+   * Same as {@link #convertYUV420ToARGB8888(byte[], byte[], byte[], int, int, int, int, int,
+   * int[])}, but reads the planes in place, e.g. straight from the direct buffers of an {@code
+   * Image}, so they do not have to be copied into arrays first.
+   */
+  public static void convertYUV420ToARGB8888(
+      ByteBuffer yData,
+      ByteBuffer uData,
+      ByteBuffer vData,
+      int width,
+      int height,
+      int yRowStride,
+      int uvRowStride,
+      int uvPixelStride,
+      int[] out) {
+    int yp = 0;
+    for (int j = 0; j < height; j++) {
+      int pY = yRowStride * j;
+      int pUV = uvRowStride * (j >> 1);
+      int u = 0;
+      int v = 0;
+
+      for (int i = 0; i < width; i++) {
+        // Each chroma sample covers two pixels of the row.
+        if ((i & 1) == 0) {
+          int uv_offset = pUV + (i >> 1) * uvPixelStride;
+          u = 0xff & uData.get(uv_offset);
+          v = 0xff & vData.get(uv_offset);
+        }
+
+        out[yp++] = YUV2RGB(0xff & yData.get(pY + i), u, v);
+      }
+    }
+  }
+
   /**
    * Returns a transformation matrix from one reference frame into another. Handles cropping (if
    * maintaining aspect ratio is desired) and rotation.
@@ -176,7 +212,7 @@ public class ImageUtils {
 
     if (applyRotation != 0) {
       if (applyRotation % 90 != 0) {
-        LOGGER.w("Rotation of %d % 90 != 0", applyRotation);
+        LOGGER.w("Rotation of %d %% 90 != 0", applyRotation);
       }
 
       // Translate so center of image is at origin.
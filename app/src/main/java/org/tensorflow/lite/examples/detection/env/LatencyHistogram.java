@@ -0,0 +1,141 @@
+package org.tensorflow.lite.examples.detection.env;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of one stage's latency, for percentiles that a moving average hides: an occasional
+ * 80 ms garbage collection pause or delegate stall barely moves the mean but is what drops frames.
+ *
+ * <p>Durations are counted in microsecond buckets on a log scale, eight per power of two, so a
+ * reported percentile is within 12.5% of the true value from 8 microseconds up to hours, in a fixed
+ * 2 KB. Recording is an atomic increment plus a compare-and-set when the maximum grows, with no
+ * lock and no allocation, so any number of threads may record while another reads.
+ */
+public final class LatencyHistogram {
+  // 2^SUB_BITS buckets per power of two.
+  private static final int SUB_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  // Durations from 2^MAX_EXPONENT microseconds, about 19 hours, up share the last bucket.
+  private static final int MAX_EXPONENT = 36;
+  private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  /** Counts one duration in nanoseconds. */
+  public void record(final long nanos) {
+    final long micros = Math.max(0, nanos / 1000);
+    counts.incrementAndGet(bucketOf(micros));
+    long max;
+    while (micros > (max = maxMicros.get()) && !maxMicros.compareAndSet(max, micros)) {
+      // Another thread raised the maximum; compare again.
+    }
+  }
+
+  public void clear() {
+    for (int i = 0; i < BUCKETS; ++i) {
+      counts.set(i, 0);
+    }
+    maxMicros.set(0);
+  }
+
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  public long getMaxMicros() {
+    return maxMicros.get();
+  }
+
+  /**
+   * Upper bound of the bucket holding the {@code quantile} (in [0, 1]) of the recorded durations,
+   * in microseconds; never more than the maximum. 0 if nothing was recorded.
+   */
+  public long getPercentileMicros(final double quantile) {
+    final long[] snapshot = new long[BUCKETS];
+    return percentile(snapshot, snapshot(snapshot), quantile);
+  }
+
+  /** "p50 / p90 / p99 / max" in milliseconds, e.g. "31.0 / 35.0 / 52.0 / 81.3", or "-" if empty. */
+  public String getSummary() {
+    final long[] snapshot = new long[BUCKETS];
+    final long total = snapshot(snapshot);
+    if (total == 0) {
+      return "-";
+    }
+    return String.format(
+        Locale.US,
+        "%.1f / %.1f / %.1f / %.1f",
+        percentile(snapshot, total, 0.5) / 1000f,
+        percentile(snapshot, total, 0.9) / 1000f,
+        percentile(snapshot, total, 0.99) / 1000f,
+        maxMicros.get() / 1000f);
+  }
+
+  /**
+   * Appends "name  summary" as a line of a per-stage table, unless nothing was recorded. Lines
+   * after the first start with a newline.
+   */
+  public void appendSummary(final StringBuilder builder, final String name) {
+    if (getCount() == 0) {
+      return;
+    }
+    if (builder.length() > 0) {
+      builder.append('\n');
+    }
+    builder.append(String.format(Locale.US, "%-12s%s", name, getSummary()));
+  }
+
+  // Copies the counts and returns their total. Records racing with the copy may or may not be in.
+  private long snapshot(final long[] snapshot) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    return total;
+  }
+
+  private long percentile(final long[] snapshot, final long total, final double quantile) {
+    if (total == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; ++i) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(upperBound(i), maxMicros.get());
+      }
+    }
+    return maxMicros.get();
+  }
+
+  static int bucketOf(final long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    if (exponent >= MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    final int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+  }
+
+  // Largest duration, in microseconds, that falls in the bucket.
+  static long upperBound(final int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    final int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    final long sub = bucket % SUB_BUCKETS;
+    return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+  }
+}
@@ -19,7 +19,15 @@ import android.util.Log;
 import java.util.HashSet;
 import java.util.Set;
 
-/** Wrapper for the platform log function, allows convenient message prefixing and log disabling. */
+/**
+ * Wrapper for the platform log function, allows convenient message prefixing and log disabling.
+ *
+ * <p>Besides the varargs methods, each level has overloads taking a plain message, one object or up
+ * to three longs. Calls matching them check the level before anything is built: no varargs array,
+ * no boxing and no formatting happen for a message that is not logged, so they are cheap enough for
+ * per-frame code. Build the message from a format and arguments rather than by concatenation, which
+ * the caller would do before the check.
+ */
 public final class Logger {
   private static final String DEFAULT_TAG = "tensorflow";
   private static final int DEFAULT_MIN_LOG_LEVEL = Log.DEBUG;
@@ -136,6 +144,36 @@ public final class Logger {
     }
   }
 
+  public void v(final String message) {
+    if (isLoggable(Log.VERBOSE)) {
+      Log.v(tag, messagePrefix + message);
+    }
+  }
+
+  public void v(final String format, final Object arg) {
+    if (isLoggable(Log.VERBOSE)) {
+      Log.v(tag, toMessage(format, arg));
+    }
+  }
+
+  public void v(final String format, final long arg) {
+    if (isLoggable(Log.VERBOSE)) {
+      Log.v(tag, toMessage(format, arg));
+    }
+  }
+
+  public void v(final String format, final long arg1, final long arg2) {
+    if (isLoggable(Log.VERBOSE)) {
+      Log.v(tag, toMessage(format, arg1, arg2));
+    }
+  }
+
+  public void v(final String format, final long arg1, final long arg2, final long arg3) {
+    if (isLoggable(Log.VERBOSE)) {
+      Log.v(tag, toMessage(format, arg1, arg2, arg3));
+    }
+  }
+
   public void d(final String format, final Object... args) {
     if (isLoggable(Log.DEBUG)) {
       Log.d(tag, toMessage(format, args));
@@ -148,6 +186,36 @@ public final class Logger {
     }
   }
 
+  public void d(final String message) {
+    if (isLoggable(Log.DEBUG)) {
+      Log.d(tag, messagePrefix + message);
+    }
+  }
+
+  public void d(final String format, final Object arg) {
+    if (isLoggable(Log.DEBUG)) {
+      Log.d(tag, toMessage(format, arg));
+    }
+  }
+
+  public void d(final String format, final long arg) {
+    if (isLoggable(Log.DEBUG)) {
+      Log.d(tag, toMessage(format, arg));
+    }
+  }
+
+  public void d(final String format, final long arg1, final long arg2) {
+    if (isLoggable(Log.DEBUG)) {
+      Log.d(tag, toMessage(format, arg1, arg2));
+    }
+  }
+
+  public void d(final String format, final long arg1, final long arg2, final long arg3) {
+    if (isLoggable(Log.DEBUG)) {
+      Log.d(tag, toMessage(format, arg1, arg2, arg3));
+    }
+  }
+
   public void i(final String format, final Object... args) {
     if (isLoggable(Log.INFO)) {
       Log.i(tag, toMessage(format, args));
@@ -160,6 +228,36 @@ public final class Logger {
     }
   }
 
+  public void i(final String message) {
+    if (isLoggable(Log.INFO)) {
+      Log.i(tag, messagePrefix + message);
+    }
+  }
+
+  public void i(final String format, final Object arg) {
+    if (isLoggable(Log.INFO)) {
+      Log.i(tag, toMessage(format, arg));
+    }
+  }
+
+  public void i(final String format, final long arg) {
+    if (isLoggable(Log.INFO)) {
+      Log.i(tag, toMessage(format, arg));
+    }
+  }
+
+  public void i(final String format, final long arg1, final long arg2) {
+    if (isLoggable(Log.INFO)) {
+      Log.i(tag, toMessage(format, arg1, arg2));
+    }
+  }
+
+  public void i(final String format, final long arg1, final long arg2, final long arg3) {
+    if (isLoggable(Log.INFO)) {
+      Log.i(tag, toMessage(format, arg1, arg2, arg3));
+    }
+  }
+
   public void w(final String format, final Object... args) {
     if (isLoggable(Log.WARN)) {
       Log.w(tag, toMessage(format, args));
@@ -172,6 +270,36 @@ public final class Logger {
     }
   }
 
+  public void w(final String message) {
+    if (isLoggable(Log.WARN)) {
+      Log.w(tag, messagePrefix + message);
+    }
+  }
+
+  public void w(final String format, final Object arg) {
+    if (isLoggable(Log.WARN)) {
+      Log.w(tag, toMessage(format, arg));
+    }
+  }
+
+  public void w(final String format, final long arg) {
+    if (isLoggable(Log.WARN)) {
+      Log.w(tag, toMessage(format, arg));
+    }
+  }
+
+  public void w(final String format, final long arg1, final long arg2) {
+    if (isLoggable(Log.WARN)) {
+      Log.w(tag, toMessage(format, arg1, arg2));
+    }
+  }
+
+  public void w(final String format, final long arg1, final long arg2, final long arg3) {
+    if (isLoggable(Log.WARN)) {
+      Log.w(tag, toMessage(format, arg1, arg2, arg3));
+    }
+  }
+
   public void e(final String format, final Object... args) {
     if (isLoggable(Log.ERROR)) {
       Log.e(tag, toMessage(format, args));
@@ -183,4 +311,34 @@ public final class Logger {
       Log.e(tag, toMessage(format, args), t);
     }
   }
+
+  public void e(final String message) {
+    if (isLoggable(Log.ERROR)) {
+      Log.e(tag, messagePrefix + message);
+    }
+  }
+
+  public void e(final String format, final Object arg) {
+    if (isLoggable(Log.ERROR)) {
+      Log.e(tag, toMessage(format, arg));
+    }
+  }
+
+  public void e(final String format, final long arg) {
+    if (isLoggable(Log.ERROR)) {
+      Log.e(tag, toMessage(format, arg));
+    }
+  }
+
+  public void e(final String format, final long arg1, final long arg2) {
+    if (isLoggable(Log.ERROR)) {
+      Log.e(tag, toMessage(format, arg1, arg2));
+    }
+  }
+
+  public void e(final String format, final long arg1, final long arg2, final long arg3) {
+    if (isLoggable(Log.ERROR)) {
+      Log.e(tag, toMessage(format, arg1, arg2, arg3));
+    }
+  }
 }
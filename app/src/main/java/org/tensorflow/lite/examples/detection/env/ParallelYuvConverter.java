@@ -0,0 +1,127 @@
+package org.tensorflow.lite.examples.detection.env;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * YUV to ARGB conversion split into row bands across a small fixed fork-join pool.
+ *
+ * <p>Produces the same pixels as {@link ImageUtils#convertYUV420ToARGB8888} and {@link
+ * ImageUtils#convertYUV420SPToARGB8888}; each band is converted by {@link YuvLookupKernel}. A
+ * band is at least {@link #MIN_BAND_ROWS} rows, always an even number, and a frame is cut into
+ * about {@link #BANDS_PER_WORKER} bands per worker, so a worker that finishes early can take over
+ * part of another's share. With one worker everything runs on the calling thread.
+ */
+public class ParallelYuvConverter {
+  static final int MIN_BAND_ROWS = 16;
+  static final int BANDS_PER_WORKER = 2;
+
+  private final int workers;
+  private final ForkJoinPool pool;
+
+  /** Creates a converter with {@link #defaultWorkerCount()} workers. */
+  public ParallelYuvConverter() {
+    this(defaultWorkerCount());
+  }
+
+  public ParallelYuvConverter(final int workers) {
+    if (workers < 1) {
+      throw new IllegalArgumentException("Need at least 1 worker, got " + workers);
+    }
+    this.workers = workers;
+    this.pool = workers > 1 ? new ForkJoinPool(workers) : null;
+  }
+
+  /**
+   * Half the available cores, between 1 and 4, leaving the rest to the camera, the interpreter and
+   * the UI.
+   */
+  public static int defaultWorkerCount() {
+    return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+  }
+
+  public int getWorkerCount() {
+    return workers;
+  }
+
+  /** Converts the planes of a YUV_420_888 image, reading them in place. */
+  public void convertYUV420ToARGB8888(
+      final ByteBuffer yData,
+      final ByteBuffer uData,
+      final ByteBuffer vData,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out) {
+    run(
+        height,
+        (from, to) ->
+            YuvLookupKernel.convertPlanarRows(
+                yData, uData, vData, width, yRowStride, uvRowStride, uvPixelStride, out, from, to));
+  }
+
+  /** Converts an NV21 frame from the legacy camera API. */
+  public void convertYUV420SPToARGB8888(
+      final byte[] input, final int width, final int height, final int[] output) {
+    run(height, (from, to) ->
+            YuvLookupKernel.convertSemiPlanarRows(input, width, height, output, from, to));
+  }
+
+  /** Stops the worker threads. The converter must not be used afterwards. */
+  public void close() {
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  private void run(final int height, final RowConverter rows) {
+    if (pool == null) {
+      rows.convertRows(0, height);
+    } else {
+      pool.invoke(new Band(rows, 0, height, bandRows(height)));
+    }
+  }
+
+  // Rows per band, rounded up to an even count so the two rows sharing a chroma row stay together.
+  private int bandRows(final int height) {
+    final int bands = workers * BANDS_PER_WORKER;
+    final int rows = Math.max(MIN_BAND_ROWS, (height + bands - 1) / bands);
+    return (rows + 1) & ~1;
+  }
+
+  private interface RowConverter {
+    void convertRows(int from, int to);
+  }
+
+  /** Rows [from, to) of a frame, halved until no more than bandRows remain. */
+  private static final class Band extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final RowConverter rows;
+    private final int from;
+    private final int to;
+    private final int bandRows;
+
+    Band(final RowConverter rows, final int from, final int to, final int bandRows) {
+      this.rows = rows;
+      this.from = from;
+      this.to = to;
+      this.bandRows = bandRows;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= bandRows) {
+        rows.convertRows(from, to);
+        return;
+      }
+      // Split on a band boundary so every band keeps whole row pairs.
+      final int bands = (to - from + bandRows - 1) / bandRows;
+      final int mid = from + (bands / 2) * bandRows;
+      invokeAll(new Band(rows, from, mid, bandRows), new Band(rows, mid, to, bandRows));
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package org.tensorflow.lite.examples.detection.env;
+
+import java.util.Locale;
+
+/**
+ * Per-stage latency and end-to-end throughput of the camera detection pipeline.
+ *
+ * <p>Stage times and the interval between completed frames are smoothed with an exponential moving
+ * average, so the values shown in the UI do not flicker from frame to frame. Every stage time also
+ * goes into a {@link LatencyHistogram}, whose percentiles show the stalls the averages smooth over.
+ * All methods are thread-safe; each stage reports from its own thread.
+ */
+public class PipelineStats {
+  /** YUV to ARGB conversion on the camera thread. */
+  public static final int STAGE_CONVERT = 0;
+  public static final int STAGE_PREPROCESS = 1;
+  public static final int STAGE_INFERENCE = 2;
+  public static final int STAGE_POSTPROCESS = 3;
+  /** Scaling the preview bitmap into the model input bitmap, part of preprocessing. */
+  public static final int STAGE_CROP = 4;
+  /** Matching detections to tracks, or moving the tracks between detections. */
+  public static final int STAGE_TRACK = 5;
+  /** Drawing the tracked boxes on the overlay, on the UI thread. */
+  public static final int STAGE_RENDER = 6;
+  private static final int NUM_STAGES = 7;
+  private static final String[] STAGE_NAMES = {
+    "convert", "preprocess", "inference", "postprocess", "crop", "track", "render"
+  };
+
+  // Weight of the newest sample in the moving averages.
+  private static final float SMOOTHING = 0.1f;
+  private static final float NANOS_PER_MS = 1e6f;
+  private static final int[] DISPLAY_ORDER = {
+    STAGE_CONVERT, STAGE_CROP, STAGE_PREPROCESS, STAGE_INFERENCE, STAGE_TRACK, STAGE_POSTPROCESS,
+    STAGE_RENDER
+  };
+
+  private final float[] stageMs = new float[NUM_STAGES];
+  private final boolean[] stageSeen = new boolean[NUM_STAGES];
+  private final LatencyHistogram[] stageHistograms = new LatencyHistogram[NUM_STAGES];
+  private long lastFrameNanos = -1;
+  private float frameIntervalMs;
+  private long completedFrames;
+
+  public PipelineStats() {
+    for (int i = 0; i < NUM_STAGES; ++i) {
+      stageHistograms[i] = new LatencyHistogram();
+    }
+  }
+
+  /** Records that {@code stage} took {@code durationNanos} for one frame. */
+  public void recordStage(final int stage, final long durationNanos) {
+    stageHistograms[stage].record(durationNanos);
+    recordAverage(stage, durationNanos);
+  }
+
+  private synchronized void recordAverage(final int stage, final long durationNanos) {
+    final float ms = durationNanos / NANOS_PER_MS;
+    if (stageSeen[stage]) {
+      stageMs[stage] += SMOOTHING * (ms - stageMs[stage]);
+    } else {
+      stageMs[stage] = ms;
+      stageSeen[stage] = true;
+    }
+  }
+
+  /** Records that a frame left the last stage at {@code nowNanos}. */
+  public synchronized void recordFrameCompleted(final long nowNanos) {
+    if (lastFrameNanos >= 0) {
+      final float intervalMs = (nowNanos - lastFrameNanos) / NANOS_PER_MS;
+      frameIntervalMs =
+          completedFrames > 1 ? frameIntervalMs + SMOOTHING * (intervalMs - frameIntervalMs) : intervalMs;
+    }
+    lastFrameNanos = nowNanos;
+    ++completedFrames;
+  }
+
+  public synchronized float getStageMs(final int stage) {
+    return stageMs[stage];
+  }
+
+  /** Frames per second leaving the pipeline, or 0 before two frames have completed. */
+  public synchronized float getFps() {
+    return frameIntervalMs > 0 ? 1000f / frameIntervalMs : 0;
+  }
+
+  public synchronized long getCompletedFrames() {
+    return completedFrames;
+  }
+
+  /** Stage times as "convert / pre / inference / post ms". */
+  public synchronized String getStageString() {
+    return String.format(
+        Locale.US,
+        "%.1f / %.1f / %.1f / %.1f ms",
+        stageMs[STAGE_CONVERT],
+        stageMs[STAGE_PREPROCESS],
+        stageMs[STAGE_INFERENCE],
+        stageMs[STAGE_POSTPROCESS]);
+  }
+
+  public LatencyHistogram getStageHistogram(final int stage) {
+    return stageHistograms[stage];
+  }
+
+  /**
+   * One line per stage that has run, as "name  p50 / p90 / p99 / max" in milliseconds, in pipeline
+   * order.
+   */
+  public String getLatencyString() {
+    final StringBuilder builder = new StringBuilder();
+    for (final int stage : DISPLAY_ORDER) {
+      stageHistograms[stage].appendSummary(builder, STAGE_NAMES[stage]);
+    }
+    return builder.toString();
+  }
+
+  /** Throughput, e.g. "12.3 fps". */
+  public synchronized String getFpsString() {
+    return String.format(Locale.US, "%.1f fps", getFps());
+  }
+}
@@ -0,0 +1,145 @@
+package org.tensorflow.lite.examples.detection.env;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size in-memory trace of binary events, for hot paths where formatting a log line would cost
+ * more than the work being traced.
+ *
+ * <p>An event is the {@link System#nanoTime()} it was recorded at, an event id and three longs
+ * whose meaning depends on the event. Recording one takes an atomic increment and a few ordered
+ * stores into preallocated arrays, with no allocation and no lock. Reading the clock costs more than
+ * that, so callers that have just read it pass their own timestamp. When the ring is full the
+ * oldest events are overwritten. Nothing is turned into text until {@link #dump} is called.
+ *
+ * <p>Any thread may record or dump at any time. A dump skips events that are overwritten while it
+ * reads them. Two threads recording into the same slot at once, which takes a whole lap of the ring
+ * during one record, can leave a mixed event behind.
+ */
+public final class TraceRing {
+  // Longs per event: timestamp, event id and three arguments.
+  private static final int FIELDS = 5;
+
+  private final String[] eventNames;
+  private final int mask;
+  private final AtomicLongArray records;
+  // Sequence number + 1 of the event in each slot, or 0 while the slot is being written.
+  private final AtomicLongArray stamps;
+  private final AtomicLong next = new AtomicLong();
+  private volatile boolean enabled = true;
+
+  /**
+   * @param capacity events kept, rounded up to a power of two.
+   * @param eventNames names of event ids 0, 1, ..., printed by {@link #dump}.
+   */
+  public TraceRing(final int capacity, final String... eventNames) {
+    if (capacity < 1 || capacity > 1 << 24) {
+      throw new IllegalArgumentException("Capacity must be in [1, 2^24], got " + capacity);
+    }
+    final int size = Integer.highestOneBit(capacity - 1) << 1;
+    mask = Math.max(size, 1) - 1;
+    records = new AtomicLongArray((mask + 1) * FIELDS);
+    stamps = new AtomicLongArray(mask + 1);
+    this.eventNames = eventNames.clone();
+  }
+
+  public int getCapacity() {
+    return mask + 1;
+  }
+
+  /** Disabled, {@link #record} returns at once. */
+  public void setEnabled(final boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Events recorded so far, including those already overwritten. */
+  public long getRecordedCount() {
+    return next.get();
+  }
+
+  /** Records an event stamped with the current time. */
+  public void record(final int event, final long arg1, final long arg2, final long arg3) {
+    if (enabled) {
+      record(System.nanoTime(), event, arg1, arg2, arg3);
+    }
+  }
+
+  /** Records an event that happened at {@code timeNanos}, on the {@link System#nanoTime()} clock. */
+  public void record(
+      final long timeNanos, final int event, final long arg1, final long arg2, final long arg3) {
+    if (!enabled) {
+      return;
+    }
+    final long sequence = next.getAndIncrement();
+    final int slot = (int) sequence & mask;
+    final int base = slot * FIELDS;
+    // Each ordered store is published after the ones before it, so a reader that sees any field of
+    // this event also sees the cleared stamp.
+    stamps.lazySet(slot, 0);
+    records.lazySet(base, timeNanos);
+    records.lazySet(base + 1, event);
+    records.lazySet(base + 2, arg1);
+    records.lazySet(base + 3, arg2);
+    records.lazySet(base + 4, arg3);
+    stamps.lazySet(slot, sequence + 1);
+  }
+
+  /**
+   * Logs the events still in the ring at info level, oldest first, one per line with its time in
+   * milliseconds after the oldest one.
+   *
+   * @return the number of events logged.
+   */
+  public int dump(final Logger logger) {
+    final long end = next.get();
+    final long start = Math.max(0, end - getCapacity());
+    final long[] event = new long[FIELDS];
+    long firstNanos = 0;
+    int dumped = 0;
+    logger.i("Trace: %d events recorded, dumping the last %d", end, end - start);
+    for (long sequence = start; sequence < end; ++sequence) {
+      if (!read(sequence, event)) {
+        continue;
+      }
+      if (dumped == 0) {
+        firstNanos = event[0];
+      }
+      logger.i(
+          String.format(
+              Locale.US,
+              "%10.3f ms %-12s %d %d %d",
+              (event[0] - firstNanos) / 1e6,
+              eventName((int) event[1]),
+              event[2],
+              event[3],
+              event[4]));
+      ++dumped;
+    }
+    return dumped;
+  }
+
+  // Copies the event with the given sequence number into out; false if it is not in the ring, yet
+  // or any more, or was overwritten while being read.
+  private boolean read(final long sequence, final long[] out) {
+    final int slot = (int) sequence & mask;
+    final long stamp = stamps.get(slot);
+    if (stamp != sequence + 1) {
+      return false;
+    }
+    final int base = slot * FIELDS;
+    for (int i = 0; i < FIELDS; ++i) {
+      out[i] = records.get(base + i);
+    }
+    return stamps.get(slot) == stamp;
+  }
+
+  private String eventName(final int event) {
+    return event >= 0 && event < eventNames.length ? eventNames[event] : "event " + event;
+  }
+}
@@ -0,0 +1,171 @@
+package org.tensorflow.lite.examples.detection.env;
+
+import android.content.Context;
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the video track of a file into YUV_420_888 {@link Image}s with {@link MediaCodec}, handing
+ * every {@code stride}-th frame to a {@link FrameSink}.
+ *
+ * <p>The codec runs synchronously on the calling thread and each image is only valid inside {@link
+ * FrameSink#onFrame}, so memory stays at the codec's own buffers however long the video is. Frames
+ * between samples still have to be decoded, since later frames are predicted from them, but they
+ * are released without being looked at.
+ */
+public class VideoFrameDecoder implements Closeable {
+  private static final Logger LOGGER = new Logger();
+  private static final long TIMEOUT_US = 10_000;
+
+  /** Receives the sampled frames on the decoding thread. */
+  public interface FrameSink {
+    /**
+     * @param image the decoded frame, only valid during the call.
+     * @param frameIndex index of the frame in the video, counting the skipped ones.
+     * @param presentationTimeUs timestamp of the frame.
+     */
+    void onFrame(Image image, int frameIndex, long presentationTimeUs) throws InterruptedException;
+  }
+
+  private final MediaExtractor extractor = new MediaExtractor();
+  private final MediaFormat format;
+  private final String mime;
+  private volatile boolean cancelled;
+
+  /** @throws IOException if the file cannot be read or has no video track. */
+  public VideoFrameDecoder(final Context context, final Uri uri) throws IOException {
+    extractor.setDataSource(context, uri, null);
+    MediaFormat videoFormat = null;
+    for (int i = 0; i < extractor.getTrackCount(); ++i) {
+      final MediaFormat trackFormat = extractor.getTrackFormat(i);
+      final String trackMime = trackFormat.getString(MediaFormat.KEY_MIME);
+      if (trackMime != null && trackMime.startsWith("video/")) {
+        extractor.selectTrack(i);
+        videoFormat = trackFormat;
+        break;
+      }
+    }
+    if (videoFormat == null) {
+      extractor.release();
+      throw new IOException("No video track in " + uri);
+    }
+    format = videoFormat;
+    mime = format.getString(MediaFormat.KEY_MIME);
+    format.setInteger(
+        MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+  }
+
+  public int getWidth() {
+    return format.getInteger(MediaFormat.KEY_WIDTH);
+  }
+
+  public int getHeight() {
+    return format.getInteger(MediaFormat.KEY_HEIGHT);
+  }
+
+  /** Clockwise rotation the frames should be displayed with, 0 if the file does not say. */
+  public int getRotation() {
+    return format.containsKey(MediaFormat.KEY_ROTATION)
+        ? format.getInteger(MediaFormat.KEY_ROTATION)
+        : 0;
+  }
+
+  /** Duration of the video in microseconds, or -1 if unknown. */
+  public long getDurationUs() {
+    return format.containsKey(MediaFormat.KEY_DURATION)
+        ? format.getLong(MediaFormat.KEY_DURATION)
+        : -1;
+  }
+
+  /** Makes a running {@link #decode} return after the current frame. Any thread. */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  /**
+   * Decodes the whole video, or until {@link #cancel()}, passing frames 0, {@code stride}, 2 *
+   * {@code stride}, ... to {@code sink}.
+   *
+   * @return the number of frames decoded.
+   * @throws IOException if no decoder is available for the video or decoding fails.
+   */
+  public int decode(final int stride, final FrameSink sink) throws IOException, InterruptedException {
+    if (stride < 1) {
+      throw new IllegalArgumentException("Stride must be at least 1, got " + stride);
+    }
+    final MediaCodec codec = MediaCodec.createDecoderByType(mime);
+    int frameIndex = 0;
+    try {
+      codec.configure(format, null, null, 0);
+      codec.start();
+      final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+      boolean inputDone = false;
+      boolean outputDone = false;
+      while (!outputDone && !cancelled) {
+        if (!inputDone) {
+          inputDone = queueInput(codec);
+        }
+        final int output = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+        if (output < 0) {
+          // Format changes and "try again later" need nothing from us: images carry their size.
+          continue;
+        }
+        outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+        try {
+          if (info.size > 0) {
+            if (frameIndex % stride == 0) {
+              final Image image = codec.getOutputImage(output);
+              if (image != null) {
+                sink.onFrame(image, frameIndex, info.presentationTimeUs);
+              }
+            }
+            ++frameIndex;
+          }
+        } finally {
+          codec.releaseOutputBuffer(output, false);
+        }
+      }
+    } catch (final IllegalStateException e) {
+      // MediaCodec.CodecException extends IllegalStateException.
+      throw new IOException("Decoding failed after " + frameIndex + " frames", e);
+    } finally {
+      try {
+        codec.stop();
+      } catch (final IllegalStateException e) {
+        LOGGER.w(e, "Stopping the decoder failed");
+      }
+      codec.release();
+    }
+    return frameIndex;
+  }
+
+  @Override
+  public void close() {
+    extractor.release();
+  }
+
+  // Feeds one sample to the codec if it has a free input buffer; returns whether the end of the
+  // stream was queued.
+  private boolean queueInput(final MediaCodec codec) {
+    final int input = codec.dequeueInputBuffer(TIMEOUT_US);
+    if (input < 0) {
+      return false;
+    }
+    final ByteBuffer buffer = codec.getInputBuffer(input);
+    final int size = extractor.readSampleData(buffer, 0);
+    if (size < 0) {
+      codec.queueInputBuffer(input, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+      return true;
+    }
+    codec.queueInputBuffer(input, 0, size, extractor.getSampleTime(), 0);
+    extractor.advance();
+    return false;
+  }
+}
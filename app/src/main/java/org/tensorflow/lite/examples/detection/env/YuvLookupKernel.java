@@ -0,0 +1,143 @@
+package org.tensorflow.lite.examples.detection.env;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Table-driven YUV to ARGB conversion, bit-exact with {@link ImageUtils}.
+ *
+ * <p>The fixed-point products of {@code ImageUtils.YUV2RGB} are precomputed in one 256-entry table
+ * per term, so a pixel costs table loads and adds instead of four multiplies, and the clamp to
+ * [0, 255] is one more lookup on the sum shifted down to 8 bits. Clamping the 18-bit sum first and
+ * shifting after, as {@code YUV2RGB} does, gives the same value. The frame converters walk 2x2
+ * blocks so the chroma terms shared by four pixels are looked up once.
+ */
+public final class YuvLookupKernel {
+  // Channel sums lie within [-264448, 547270], i.e. [-259, 534] after the shift by 10.
+  private static final int CLAMP_OFFSET = 260;
+  private static final int CLAMP_SIZE = 800;
+
+  private static final int[] Y_TERM = new int[256];
+  private static final int[] RV_TERM = new int[256];
+  private static final int[] GV_TERM = new int[256];
+  private static final int[] GU_TERM = new int[256];
+  private static final int[] BU_TERM = new int[256];
+
+  // Clamped channel already shifted into place, alpha included in the red table.
+  private static final int[] CLAMP_R = new int[CLAMP_SIZE];
+  private static final int[] CLAMP_G = new int[CLAMP_SIZE];
+  private static final int[] CLAMP_B = new int[CLAMP_SIZE];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      Y_TERM[i] = 1192 * Math.max(i - 16, 0);
+      RV_TERM[i] = 1634 * (i - 128);
+      GV_TERM[i] = -833 * (i - 128);
+      GU_TERM[i] = -400 * (i - 128);
+      BU_TERM[i] = 2066 * (i - 128);
+    }
+    for (int i = 0; i < CLAMP_SIZE; i++) {
+      final int value = Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+      CLAMP_R[i] = 0xff000000 | (value << 16);
+      CLAMP_G[i] = value << 8;
+      CLAMP_B[i] = value;
+    }
+  }
+
+  private YuvLookupKernel() {}
+
+  /** Same result as {@code ImageUtils.YUV2RGB(y, u, v)}; all arguments in [0, 255]. */
+  public static int yuvToArgb(final int y, final int u, final int v) {
+    final int luma = Y_TERM[y];
+    return CLAMP_R[((luma + RV_TERM[v]) >> 10) + CLAMP_OFFSET]
+        | CLAMP_G[((luma + GV_TERM[v] + GU_TERM[u]) >> 10) + CLAMP_OFFSET]
+        | CLAMP_B[((luma + BU_TERM[u]) >> 10) + CLAMP_OFFSET];
+  }
+
+  /**
+   * Converts rows [rowFrom, rowTo) of a YUV_420_888 image, reading the planes in place. {@code
+   * rowFrom} must be even.
+   */
+  public static void convertPlanarRows(
+      final ByteBuffer yData,
+      final ByteBuffer uData,
+      final ByteBuffer vData,
+      final int width,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int[] out,
+      final int rowFrom,
+      final int rowTo) {
+    for (int j = rowFrom; j < rowTo; j += 2) {
+      final boolean pair = j + 1 < rowTo;
+      final int pY0 = yRowStride * j;
+      final int pY1 = pY0 + yRowStride;
+      final int pUV = uvRowStride * (j >> 1);
+      final int out0 = width * j;
+      final int out1 = out0 + width;
+      for (int i = 0; i < width; i += 2) {
+        final int uvOffset = pUV + (i >> 1) * uvPixelStride;
+        final int u = 0xff & uData.get(uvOffset);
+        final int v = 0xff & vData.get(uvOffset);
+        final int r = RV_TERM[v] + (CLAMP_OFFSET << 10);
+        final int g = GV_TERM[v] + GU_TERM[u] + (CLAMP_OFFSET << 10);
+        final int b = BU_TERM[u] + (CLAMP_OFFSET << 10);
+
+        out[out0 + i] = pixel(Y_TERM[0xff & yData.get(pY0 + i)], r, g, b);
+        if (pair) {
+          out[out1 + i] = pixel(Y_TERM[0xff & yData.get(pY1 + i)], r, g, b);
+        }
+        if (i + 1 < width) {
+          out[out0 + i + 1] = pixel(Y_TERM[0xff & yData.get(pY0 + i + 1)], r, g, b);
+          if (pair) {
+            out[out1 + i + 1] = pixel(Y_TERM[0xff & yData.get(pY1 + i + 1)], r, g, b);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Converts rows [rowFrom, rowTo) of an NV21 frame of the given height. {@code rowFrom} must be
+   * even.
+   */
+  public static void convertSemiPlanarRows(
+      final byte[] input,
+      final int width,
+      final int height,
+      final int[] output,
+      final int rowFrom,
+      final int rowTo) {
+    final int frameSize = width * height;
+    for (int j = rowFrom; j < rowTo; j += 2) {
+      final boolean pair = j + 1 < rowTo;
+      final int p0 = width * j;
+      final int p1 = p0 + width;
+      final int uvp = frameSize + (j >> 1) * width;
+      for (int i = 0; i < width; i += 2) {
+        final int v = 0xff & input[uvp + i];
+        final int u = 0xff & input[uvp + i + 1];
+        final int r = RV_TERM[v] + (CLAMP_OFFSET << 10);
+        final int g = GV_TERM[v] + GU_TERM[u] + (CLAMP_OFFSET << 10);
+        final int b = BU_TERM[u] + (CLAMP_OFFSET << 10);
+
+        output[p0 + i] = pixel(Y_TERM[0xff & input[p0 + i]], r, g, b);
+        if (pair) {
+          output[p1 + i] = pixel(Y_TERM[0xff & input[p1 + i]], r, g, b);
+        }
+        if (i + 1 < width) {
+          output[p0 + i + 1] = pixel(Y_TERM[0xff & input[p0 + i + 1]], r, g, b);
+          if (pair) {
+            output[p1 + i + 1] = pixel(Y_TERM[0xff & input[p1 + i + 1]], r, g, b);
+          }
+        }
+      }
+    }
+  }
+
+  // The chroma sums carry the clamp offset pre-shifted, so each channel is one add, one shift and
+  // one lookup.
+  private static int pixel(final int luma, final int r, final int g, final int b) {
+    return CLAMP_R[(luma + r) >> 10] | CLAMP_G[(luma + g) >> 10] | CLAMP_B[(luma + b) >> 10];
+  }
+}
@@ -0,0 +1,307 @@
+package org.tensorflow.lite.examples.detection.env;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Samples a YUV camera frame straight into a model input tensor.
+ *
+ * <p>This replaces the YUV to ARGB conversion of the whole frame, the {@code setPixels} into a
+ * preview bitmap, the {@code drawBitmap} into the crop bitmap and the {@code getPixels} of the crop
+ * with a single pass that only computes the pixels the model sees. The crop uses the same mapping
+ * as {@link ImageUtils#getTransformationMatrix} and picks the nearest source pixel, as an
+ * unfiltered {@code Canvas.drawBitmap} does. The colour conversion is {@link YuvLookupKernel},
+ * which matches {@link ImageUtils}.
+ *
+ * <p>Float tensors get channels normalized to [0, 1]; quantized tensors get the raw uint8 values.
+ * The sampling tables are built once per plane layout and each call converts into a caller-owned
+ * buffer from {@link #allocateOutput()}. Not thread-safe.
+ */
+public class YuvToTensorConverter {
+  private static final int NUM_CHANNELS = 3;
+  private static final float[] NORMALIZED = new float[256];
+
+  static {
+    for (int i = 0; i < NORMALIZED.length; i++) {
+      NORMALIZED[i] = i / 255.0f;
+    }
+  }
+
+  private final int srcWidth;
+  private final int srcHeight;
+  private final int inputSize;
+  private final boolean quantized;
+
+  // Source coordinate of each tensor column and row. Without transposition a column fixes the
+  // source x and a row the source y; with a 90 or 270 degree rotation it is the other way round.
+  private final boolean transposed;
+  private final int[] colSrc;
+  private final int[] rowSrc;
+
+  // Plane offsets derived from colSrc and rowSrc for the current strides and crop origin.
+  private final int[] colLuma;
+  private final int[] colChroma;
+  private final int[] rowLuma;
+  private final int[] rowChroma;
+  private int tableYRowStride = -1;
+  private int tableUvRowStride = -1;
+  private int tableUvPixelStride = -1;
+  private int tableCropLeft;
+  private int tableCropTop;
+
+  private final float[] floatRow;
+  private final byte[] byteRow;
+
+  /**
+   * @param srcWidth width of the camera frame.
+   * @param srcHeight height of the camera frame.
+   * @param inputSize width and height of the square model input.
+   * @param applyRotation rotation applied to the frame, a multiple of 90.
+   * @param maintainAspectRatio see {@link ImageUtils#getTransformationMatrix}.
+   * @param quantized whether the model takes uint8 rather than float input.
+   */
+  public YuvToTensorConverter(
+      final int srcWidth,
+      final int srcHeight,
+      final int inputSize,
+      final int applyRotation,
+      final boolean maintainAspectRatio,
+      final boolean quantized) {
+    if (applyRotation % 90 != 0) {
+      throw new IllegalArgumentException("Rotation of " + applyRotation + " is not a multiple of 90");
+    }
+    this.srcWidth = srcWidth;
+    this.srcHeight = srcHeight;
+    this.inputSize = inputSize;
+    this.quantized = quantized;
+
+    final int quarterTurns = ((applyRotation / 90) % 4 + 4) % 4;
+    transposed = quarterTurns % 2 == 1;
+    colSrc = new int[inputSize];
+    rowSrc = new int[inputSize];
+    buildSamplingTables(quarterTurns, applyRotation != 0, maintainAspectRatio);
+
+    colLuma = new int[inputSize];
+    colChroma = new int[inputSize];
+    rowLuma = new int[inputSize];
+    rowChroma = new int[inputSize];
+
+    floatRow = quantized ? null : new float[inputSize * NUM_CHANNELS];
+    byteRow = quantized ? new byte[inputSize * NUM_CHANNELS] : null;
+  }
+
+  public int getInputSize() {
+    return inputSize;
+  }
+
+  public boolean isQuantized() {
+    return quantized;
+  }
+
+  /** Allocates a direct buffer of the size and byte order the interpreter expects. */
+  public ByteBuffer allocateOutput() {
+    final int bytesPerChannel = quantized ? 1 : 4;
+    final ByteBuffer buffer =
+        ByteBuffer.allocateDirect(inputSize * inputSize * NUM_CHANNELS * bytesPerChannel);
+    buffer.order(ByteOrder.nativeOrder());
+    return buffer;
+  }
+
+  /**
+   * Converts the planes of a YUV_420_888 image, reading them in place.
+   *
+   * @return {@code out}, rewound.
+   */
+  public ByteBuffer convert(
+      final ByteBuffer yPlane,
+      final ByteBuffer uPlane,
+      final ByteBuffer vPlane,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final ByteBuffer out) {
+    return convert(yPlane, uPlane, vPlane, yRowStride, uvRowStride, uvPixelStride, 0, 0, out);
+  }
+
+  /**
+   * Converts the crop of a YUV_420_888 image whose top-left corner is at ({@code cropLeft}, {@code
+   * cropTop}) in the planes, as given by {@code Image.getCropRect()}. The frame size passed to the
+   * constructor is the size of the crop.
+   *
+   * @return {@code out}, rewound.
+   */
+  public ByteBuffer convert(
+      final ByteBuffer yPlane,
+      final ByteBuffer uPlane,
+      final ByteBuffer vPlane,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int cropLeft,
+      final int cropTop,
+      final ByteBuffer out) {
+    prepareOffsets(yRowStride, uvRowStride, uvPixelStride, cropLeft, cropTop);
+    out.rewind();
+    final FloatBuffer floatOut = quantized ? null : out.asFloatBuffer();
+    for (int dy = 0; dy < inputSize; ++dy) {
+      final int lumaBase = rowLuma[dy];
+      final int chromaBase = rowChroma[dy];
+      for (int dx = 0, c = 0; dx < inputSize; ++dx, c += NUM_CHANNELS) {
+        final int chroma = chromaBase + colChroma[dx];
+        writePixel(
+            0xff & yPlane.get(lumaBase + colLuma[dx]),
+            0xff & uPlane.get(chroma),
+            0xff & vPlane.get(chroma),
+            c);
+      }
+      writeRow(floatOut, out);
+    }
+    out.rewind();
+    return out;
+  }
+
+  /**
+   * Converts an NV21 frame from the legacy camera API.
+   *
+   * @return {@code out}, rewound.
+   */
+  public ByteBuffer convertNv21(final byte[] nv21, final ByteBuffer out) {
+    // Interleaved V and U samples follow the luma plane, one pair per 2x2 block.
+    prepareOffsets(srcWidth, srcWidth, 2, 0, 0);
+    final int frameSize = srcWidth * srcHeight;
+    out.rewind();
+    final FloatBuffer floatOut = quantized ? null : out.asFloatBuffer();
+    for (int dy = 0; dy < inputSize; ++dy) {
+      final int lumaBase = rowLuma[dy];
+      final int chromaBase = frameSize + rowChroma[dy];
+      for (int dx = 0, c = 0; dx < inputSize; ++dx, c += NUM_CHANNELS) {
+        final int chroma = chromaBase + colChroma[dx];
+        writePixel(0xff & nv21[lumaBase + colLuma[dx]], 0xff & nv21[chroma + 1], 0xff & nv21[chroma], c);
+      }
+      writeRow(floatOut, out);
+    }
+    out.rewind();
+    return out;
+  }
+
+  /** Source x of the given tensor pixel. */
+  public int getSourceX(final int dx, final int dy) {
+    return transposed ? rowSrc[dy] : colSrc[dx];
+  }
+
+  /** Source y of the given tensor pixel. */
+  public int getSourceY(final int dx, final int dy) {
+    return transposed ? colSrc[dx] : rowSrc[dy];
+  }
+
+  private void writePixel(final int y, final int u, final int v, final int c) {
+    final int rgb = YuvLookupKernel.yuvToArgb(y, u, v);
+    if (quantized) {
+      byteRow[c] = (byte) (rgb >> 16);
+      byteRow[c + 1] = (byte) (rgb >> 8);
+      byteRow[c + 2] = (byte) rgb;
+    } else {
+      floatRow[c] = NORMALIZED[(rgb >> 16) & 0xff];
+      floatRow[c + 1] = NORMALIZED[(rgb >> 8) & 0xff];
+      floatRow[c + 2] = NORMALIZED[rgb & 0xff];
+    }
+  }
+
+  private void writeRow(final FloatBuffer floatOut, final ByteBuffer out) {
+    if (quantized) {
+      out.put(byteRow);
+    } else {
+      floatOut.put(floatRow);
+    }
+  }
+
+  // Inverts the matrix built by ImageUtils.getTransformationMatrix and maps the center of every
+  // tensor pixel back to the source frame.
+  private void buildSamplingTables(
+      final int quarterTurns, final boolean rotated, final boolean maintainAspectRatio) {
+    final int inWidth = transposed ? srcHeight : srcWidth;
+    final int inHeight = transposed ? srcWidth : srcHeight;
+    float scaleX = 1;
+    float scaleY = 1;
+    if (inWidth != inputSize || inHeight != inputSize) {
+      scaleX = inputSize / (float) inWidth;
+      scaleY = inputSize / (float) inHeight;
+      if (maintainAspectRatio) {
+        scaleX = scaleY = Math.max(scaleX, scaleY);
+      }
+    }
+    // Without rotation the matrix is a plain scale about the origin; with rotation it is centered.
+    final double srcCenterX = rotated ? srcWidth / 2.0 : 0;
+    final double srcCenterY = rotated ? srcHeight / 2.0 : 0;
+    final double dstCenter = rotated ? inputSize / 2.0 : 0;
+
+    for (int d = 0; d < inputSize; ++d) {
+      // Undo the translation and scale; the rotation is undone by picking the source axis.
+      final double rx = (d + 0.5 - dstCenter) / scaleX;
+      final double ry = (d + 0.5 - dstCenter) / scaleY;
+      switch (quarterTurns) {
+        case 0:
+          colSrc[d] = clamp(rx + srcCenterX, srcWidth);
+          rowSrc[d] = clamp(ry + srcCenterY, srcHeight);
+          break;
+        case 1:
+          // The rotation maps (x, y) to (-y, x), so a tensor column fixes the source y and a
+          // tensor row the source x.
+          colSrc[d] = clamp(-rx + srcCenterY, srcHeight);
+          rowSrc[d] = clamp(ry + srcCenterX, srcWidth);
+          break;
+        case 2:
+          colSrc[d] = clamp(-rx + srcCenterX, srcWidth);
+          rowSrc[d] = clamp(-ry + srcCenterY, srcHeight);
+          break;
+        default:
+          // The rotation maps (x, y) to (y, -x).
+          colSrc[d] = clamp(rx + srcCenterY, srcHeight);
+          rowSrc[d] = clamp(-ry + srcCenterX, srcWidth);
+          break;
+      }
+    }
+  }
+
+  private void prepareOffsets(
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride,
+      final int cropLeft,
+      final int cropTop) {
+    if (yRowStride == tableYRowStride
+        && uvRowStride == tableUvRowStride
+        && uvPixelStride == tableUvPixelStride
+        && cropLeft == tableCropLeft
+        && cropTop == tableCropTop) {
+      return;
+    }
+    for (int d = 0; d < inputSize; ++d) {
+      // Plane coordinates, so chroma is subsampled on the parity of the plane, not the crop.
+      final int x = (transposed ? rowSrc[d] : colSrc[d]) + cropLeft;
+      final int y = (transposed ? colSrc[d] : rowSrc[d]) + cropTop;
+      if (transposed) {
+        colLuma[d] = y * yRowStride;
+        colChroma[d] = (y >> 1) * uvRowStride;
+        rowLuma[d] = x;
+        rowChroma[d] = (x >> 1) * uvPixelStride;
+      } else {
+        colLuma[d] = x;
+        colChroma[d] = (x >> 1) * uvPixelStride;
+        rowLuma[d] = y * yRowStride;
+        rowChroma[d] = (y >> 1) * uvRowStride;
+      }
+    }
+    tableYRowStride = yRowStride;
+    tableUvRowStride = uvRowStride;
+    tableUvPixelStride = uvPixelStride;
+    tableCropLeft = cropLeft;
+    tableCropTop = cropTop;
+  }
+
+  private static int clamp(final double coordinate, final int size) {
+    final int value = (int) Math.floor(coordinate);
+    return value < 0 ? 0 : (value >= size ? size - 1 : value);
+  }
+}
@@ -0,0 +1,299 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.tensorflow.lite.examples.detection.env.Logger;
+
+/**
+ * Runs {@link Classifier#recognizeImage(Bitmap)} on a dedicated worker thread, for classifiers
+ * that offer asynchronous recognition such as {@link YoloV4Classifier#recognizeImageAsync}.
+ *
+ * <p>The interpreter is not thread-safe, so requests run one at a time in submission order. At most
+ * {@link #setMaxInFlight(int) maxInFlight} requests are running or waiting; when a new one arrives
+ * at the limit, the oldest waiting request is stale and is cancelled to make room, so a camera
+ * feeding frames faster than the model runs always gets results for recent frames. If every
+ * request in flight is already running, the new one is rejected instead: its future comes back
+ * cancelled. Cancelled requests do not call back. Counts of each outcome and the time requests
+ * spend waiting are kept in {@link Stats}.
+ *
+ * <p>The worker thread is started by the first request and stopped by {@link #close()}.
+ */
+public final class AsyncRecognizer {
+    private static final Logger LOGGER = new Logger();
+    private static final int DEFAULT_MAX_IN_FLIGHT = 2;
+    // How long close() waits for the running request before giving up on it.
+    private static final long CLOSE_TIMEOUT_SECONDS = 5;
+
+    private final Classifier classifier;
+    private final Object lock = new Object();
+    private final ArrayDeque<Request> waiting = new ArrayDeque<>();
+    private ExecutorService executor;
+    private boolean closed;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int inFlight;
+
+    private long submitted;
+    private long started;
+    private long completed;
+    private long failed;
+    private long dropped;
+    private long rejected;
+    private int peakInFlight;
+    private long totalWaitNanos;
+    private long totalRunNanos;
+
+    /** Receives the results of {@link #submit}. */
+    public interface RecognitionCallback {
+        void onResults(List<Classifier.Recognition> results);
+    }
+
+    public AsyncRecognizer(final Classifier classifier) {
+        this.classifier = classifier;
+    }
+
+    /**
+     * @param maxInFlight requests allowed to be running or waiting at once, at least 1. With 1 a
+     *     request arriving while another runs is rejected; with 2, the default, the newest request
+     *     waits and replaces any older waiting one.
+     */
+    public void setMaxInFlight(final int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1, got " + maxInFlight);
+        }
+        synchronized (lock) {
+            this.maxInFlight = maxInFlight;
+        }
+    }
+
+    /**
+     * Queues recognition of {@code bitmap}, which must not be changed until the request completes.
+     *
+     * @param callback receives the results on the worker thread, unless the request is cancelled or
+     *     fails; may be null.
+     * @throws RejectedExecutionException after {@link #close()}.
+     */
+    public Future<List<Classifier.Recognition>> submit(
+            final Bitmap bitmap, final RecognitionCallback callback) {
+        final Request request = new Request(bitmap, callback);
+        synchronized (lock) {
+            if (closed) {
+                throw new RejectedExecutionException("Classifier is closed");
+            }
+            ++submitted;
+            if (inFlight >= maxInFlight) {
+                final Request stale = waiting.pollFirst();
+                if (stale == null) {
+                    ++rejected;
+                    request.cancel(false);
+                    return request;
+                }
+                ++dropped;
+                // Not started, since it was still waiting: cancelling it frees its slot at once.
+                stale.cancel(false);
+            }
+            request.admitted = true;
+            ++inFlight;
+            peakInFlight = Math.max(peakInFlight, inFlight);
+            waiting.addLast(request);
+            if (executor == null) {
+                executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "recognizer"));
+            }
+            executor.execute(request);
+        }
+        return request;
+    }
+
+    /**
+     * Cancels the waiting requests and stops the worker thread, waiting for a running request to
+     * finish so the interpreter can be closed safely afterwards.
+     *
+     * @return false if a request may still be running, because it outlasted the timeout or the
+     *     wait was interrupted; the interpreter must then be left open.
+     */
+    public boolean close() {
+        final ExecutorService toStop;
+        synchronized (lock) {
+            closed = true;
+            for (Request request = waiting.pollFirst(); request != null; request = waiting.pollFirst()) {
+                request.cancel(false);
+            }
+            toStop = executor;
+            executor = null;
+        }
+        if (toStop == null) {
+            return true;
+        }
+        toStop.shutdown();
+        try {
+            if (toStop.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                return true;
+            }
+            LOGGER.w("Recognition still running after %d s", CLOSE_TIMEOUT_SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    public Stats getStats() {
+        synchronized (lock) {
+            return new Stats(submitted, started, completed, failed, dropped, rejected, inFlight,
+                    peakInFlight, totalWaitNanos, totalRunNanos);
+        }
+    }
+
+    private final class Request extends FutureTask<List<Classifier.Recognition>> {
+        private final RecognitionCallback callback;
+        private final long submitNanos = System.nanoTime();
+        // Guarded by lock.
+        private boolean admitted;
+        private long startNanos;
+
+        Request(final Bitmap bitmap, final RecognitionCallback callback) {
+            super(() -> classifier.recognizeImage(bitmap));
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            synchronized (lock) {
+                // A request cancelled while waiting has already been taken out.
+                if (!waiting.remove(this)) {
+                    return;
+                }
+                startNanos = System.nanoTime();
+                totalWaitNanos += startNanos - submitNanos;
+                ++started;
+            }
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            final boolean cancelled = isCancelled();
+            List<Classifier.Recognition> results = null;
+            Throwable failure = null;
+            if (!cancelled) {
+                try {
+                    results = get();
+                } catch (final ExecutionException e) {
+                    failure = e.getCause();
+                } catch (final InterruptedException e) {
+                    // Cannot happen, the task is done.
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (lock) {
+                if (admitted) {
+                    admitted = false;
+                    --inFlight;
+                }
+                if (cancelled) {
+                    waiting.remove(this);
+                } else {
+                    totalRunNanos += System.nanoTime() - startNanos;
+                    if (failure == null) {
+                        ++completed;
+                    } else {
+                        ++failed;
+                    }
+                }
+            }
+            if (failure != null) {
+                LOGGER.e(failure, "Recognition failed");
+            } else if (results != null && callback != null) {
+                callback.onResults(results);
+            }
+        }
+    }
+
+    /** Snapshot of the request counts since the recognizer was created. */
+    public static final class Stats {
+        private final long submitted;
+        private final long started;
+        private final long completed;
+        private final long failed;
+        private final long dropped;
+        private final long rejected;
+        private final int inFlight;
+        private final int peakInFlight;
+        private final long totalWaitNanos;
+        private final long totalRunNanos;
+
+        Stats(final long submitted, final long started, final long completed, final long failed,
+              final long dropped, final long rejected, final int inFlight, final int peakInFlight,
+              final long totalWaitNanos, final long totalRunNanos) {
+            this.submitted = submitted;
+            this.started = started;
+            this.completed = completed;
+            this.failed = failed;
+            this.dropped = dropped;
+            this.rejected = rejected;
+            this.inFlight = inFlight;
+            this.peakInFlight = peakInFlight;
+            this.totalWaitNanos = totalWaitNanos;
+            this.totalRunNanos = totalRunNanos;
+        }
+
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        public long getCompleted() {
+            return completed;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        /** Waiting requests cancelled because a newer one arrived. */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /** Requests turned away because every request in flight was already running. */
+        public long getRejected() {
+            return rejected;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        public int getPeakInFlight() {
+            return peakInFlight;
+        }
+
+        /** Mean time from submission until a request started running. */
+        public float getMeanWaitMs() {
+            return started > 0 ? totalWaitNanos / 1e6f / started : 0;
+        }
+
+        /** Mean time a finished request spent running. */
+        public float getMeanRunMs() {
+            final long finished = completed + failed;
+            return finished > 0 ? totalRunNanos / 1e6f / finished : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d submitted, %d completed, %d failed, %d dropped, %d rejected, %d in flight"
+                            + " (peak %d), wait %.1f ms, run %.1f ms",
+                    submitted, completed, failed, dropped, rejected, inFlight, peakInFlight,
+                    getMeanWaitMs(), getMeanRunMs());
+        }
+    }
+}
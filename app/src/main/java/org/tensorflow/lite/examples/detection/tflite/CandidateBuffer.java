@@ -0,0 +1,110 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Arrays;
+
+/**
+ * Growable struct-of-arrays store for raw detection candidates.
+ *
+ * <p>One instance is kept per classifier and cleared every frame, so decoding does not allocate
+ * per grid cell. The arrays only grow, and only when a frame has more candidates than any frame
+ * before it.
+ */
+public final class CandidateBuffer {
+    private static final int DEFAULT_CAPACITY = 64;
+
+    float[] left;
+    float[] top;
+    float[] right;
+    float[] bottom;
+    float[] score;
+    int[] detectedClass;
+    int[] anchor;
+    private int size;
+
+    public CandidateBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public CandidateBuffer(final int capacity) {
+        final int initial = Math.max(1, capacity);
+        left = new float[initial];
+        top = new float[initial];
+        right = new float[initial];
+        bottom = new float[initial];
+        score = new float[initial];
+        detectedClass = new int[initial];
+        anchor = new int[initial];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Appends a candidate and returns its index.
+     */
+    public int add(
+            final float left,
+            final float top,
+            final float right,
+            final float bottom,
+            final float score,
+            final int detectedClass,
+            final int anchor) {
+        if (size == this.left.length) {
+            grow();
+        }
+        final int i = size++;
+        this.left[i] = left;
+        this.top[i] = top;
+        this.right[i] = right;
+        this.bottom[i] = bottom;
+        this.score[i] = score;
+        this.detectedClass[i] = detectedClass;
+        this.anchor[i] = anchor;
+        return i;
+    }
+
+    public float getLeft(final int i) {
+        return left[i];
+    }
+
+    public float getTop(final int i) {
+        return top[i];
+    }
+
+    public float getRight(final int i) {
+        return right[i];
+    }
+
+    public float getBottom(final int i) {
+        return bottom[i];
+    }
+
+    public float getScore(final int i) {
+        return score[i];
+    }
+
+    public int getDetectedClass(final int i) {
+        return detectedClass[i];
+    }
+
+    public int getAnchor(final int i) {
+        return anchor[i];
+    }
+
+    private void grow() {
+        final int capacity = left.length * 2;
+        left = Arrays.copyOf(left, capacity);
+        top = Arrays.copyOf(top, capacity);
+        right = Arrays.copyOf(right, capacity);
+        bottom = Arrays.copyOf(bottom, capacity);
+        score = Arrays.copyOf(score, capacity);
+        detectedClass = Arrays.copyOf(detectedClass, capacity);
+        anchor = Arrays.copyOf(anchor, capacity);
+    }
+}
@@ -26,8 +26,13 @@ import java.util.List;
 public interface Classifier {
     List<Recognition> recognizeImage(Bitmap bitmap);
 
+    /** Whether to log {@link #getStatString()} every so many recognitions. */
     void enableStatLogging(final boolean debug);
 
+    /**
+     * Latency percentiles of each recognition stage so far, one line per stage as
+     * "name  p50 / p90 / p99 / max" in milliseconds.
+     */
     String getStatString();
 
     void close();
@@ -0,0 +1,160 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Converts ARGB pixels into the model's input tensor.
+ *
+ * <p>The direct input buffer is allocated once. Float models get channels normalized to [0, 1]
+ * through a 256-entry table and written a row at a time through a {@link FloatBuffer} view;
+ * quantized models get the raw uint8 channel values.
+ *
+ * <p>A preprocessor can hold a batch of images back to back, as a [batch][size][size][3] tensor;
+ * {@link #getBatch(int)} hands out the leading images of it for a smaller final batch.
+ */
+public final class InputPreprocessor {
+    private static final int NUM_CHANNELS = 3;
+    private static final float[] NORMALIZED = new float[256];
+
+    static {
+        for (int i = 0; i < NORMALIZED.length; i++) {
+            NORMALIZED[i] = i / 255.0f;
+        }
+    }
+
+    private final int inputSize;
+    private final boolean quantized;
+    private final int batchSize;
+    private final int imageBytes;
+    private final ByteBuffer buffer;
+    // Views over the first n + 1 images, created on first use.
+    private final ByteBuffer[] batchViews;
+    private final FloatBuffer floatView;
+    private final float[] floatRow;
+    private final byte[] byteRow;
+
+    public InputPreprocessor(final int inputSize, final boolean quantized) {
+        this(inputSize, quantized, 1);
+    }
+
+    public InputPreprocessor(final int inputSize, final boolean quantized, final int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got " + batchSize);
+        }
+        this.inputSize = inputSize;
+        this.quantized = quantized;
+        this.batchSize = batchSize;
+
+        final int bytesPerChannel = quantized ? 1 : 4;
+        imageBytes = inputSize * inputSize * NUM_CHANNELS * bytesPerChannel;
+        buffer = ByteBuffer.allocateDirect(batchSize * imageBytes);
+        buffer.order(ByteOrder.nativeOrder());
+        batchViews = new ByteBuffer[batchSize];
+        batchViews[batchSize - 1] = buffer;
+        if (quantized) {
+            floatView = null;
+            floatRow = null;
+            byteRow = new byte[inputSize * NUM_CHANNELS];
+        } else {
+            floatView = buffer.asFloatBuffer();
+            floatRow = new float[inputSize * NUM_CHANNELS];
+            byteRow = null;
+        }
+    }
+
+    public int getInputSize() {
+        return inputSize;
+    }
+
+    public boolean isQuantized() {
+        return quantized;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /** The input tensor buffer, rewound and ready to pass to the interpreter. */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * The first {@code images} images of the buffer, as the input tensor of a batch of that size.
+     * The view shares the buffer's memory and is reused across calls.
+     */
+    public ByteBuffer getBatch(final int images) {
+        if (images < 1 || images > batchSize) {
+            throw new IllegalArgumentException("Batch of " + images + " images, capacity " + batchSize);
+        }
+        ByteBuffer view = batchViews[images - 1];
+        if (view == null) {
+            final ByteBuffer duplicate = buffer.duplicate();
+            duplicate.limit(images * imageBytes);
+            view = duplicate.slice().order(ByteOrder.nativeOrder());
+            batchViews[images - 1] = view;
+        }
+        view.rewind();
+        return view;
+    }
+
+    /**
+     * Writes {@code inputSize * inputSize} ARGB pixels into the input buffer.
+     *
+     * @return the input buffer, rewound.
+     */
+    public ByteBuffer load(final int[] pixels) {
+        return load(pixels, 0);
+    }
+
+    /**
+     * Writes {@code inputSize * inputSize} ARGB pixels into image {@code image} of the batch.
+     *
+     * @return the input buffer, rewound.
+     */
+    public ByteBuffer load(final int[] pixels, final int image) {
+        if (image < 0 || image >= batchSize) {
+            throw new IndexOutOfBoundsException("Image " + image + ", batch size " + batchSize);
+        }
+        if (quantized) {
+            loadQuantized(pixels, image);
+        } else {
+            loadFloat(pixels, image);
+        }
+        return buffer;
+    }
+
+    private void loadFloat(final int[] pixels, final int image) {
+        final float[] row = floatRow;
+        floatView.position(image * imageBytes / Float.BYTES);
+        int pixel = 0;
+        for (int y = 0; y < inputSize; ++y) {
+            for (int x = 0, c = 0; x < inputSize; ++x, c += NUM_CHANNELS) {
+                final int val = pixels[pixel++];
+                row[c] = NORMALIZED[(val >> 16) & 0xFF];
+                row[c + 1] = NORMALIZED[(val >> 8) & 0xFF];
+                row[c + 2] = NORMALIZED[val & 0xFF];
+            }
+            floatView.put(row);
+        }
+        buffer.rewind();
+    }
+
+    private void loadQuantized(final int[] pixels, final int image) {
+        final byte[] row = byteRow;
+        buffer.position(image * imageBytes);
+        int pixel = 0;
+        for (int y = 0; y < inputSize; ++y) {
+            for (int x = 0, c = 0; x < inputSize; ++x, c += NUM_CHANNELS) {
+                final int val = pixels[pixel++];
+                row[c] = (byte) (val >> 16);
+                row[c + 1] = (byte) (val >> 8);
+                row[c + 2] = (byte) val;
+            }
+            buffer.put(row);
+        }
+        buffer.rewind();
+    }
+}
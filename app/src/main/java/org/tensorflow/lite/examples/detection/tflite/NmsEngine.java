@@ -0,0 +1,331 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.util.Arrays;
+import org.tensorflow.lite.examples.detection.env.BoxGrid;
+
+/**
+ * Class-aware non-maximum suppression over a {@link CandidateBuffer}.
+ *
+ * <p>Candidates are bucketed by class in one counting pass and each bucket is sorted once by
+ * descending score. Box areas are computed once up front and all scratch arrays are reused across
+ * calls. The suppression rule within a class is selected with {@link #setMethod(Method)}:
+ * <ul>
+ *   <li>{@link Method#HARD}: a candidate is kept when its IoU with every box already kept is below
+ *       the threshold, the same result as repeatedly taking the best box and dropping its overlaps.
+ *   <li>{@link Method#DIOU}: as HARD, but overlap is measured as IoU minus the normalized distance
+ *       between box centers, so adjacent people with overlapping boxes survive.
+ *   <li>{@link Method#SOFT_LINEAR} and {@link Method#SOFT_GAUSSIAN}: overlapping candidates are not
+ *       dropped but have their score decayed, and are discarded once it falls below the score
+ *       threshold.
+ * </ul>
+ *
+ * <p>HARD and DIOU only compare a candidate with the kept boxes near it, found through a {@link
+ * BoxGrid} once a class has enough candidates, so crowded frames cost close to linear time.
+ *
+ * <p>Kept candidates are reported grouped by ascending class id and, within a class, by descending
+ * score. {@link #getKeptScore(int)} returns the score after any soft decay.
+ */
+public final class NmsEngine {
+    public enum Method {
+        HARD,
+        DIOU,
+        SOFT_LINEAR,
+        SOFT_GAUSSIAN
+    }
+
+    private static final float DEFAULT_SIGMA = 0.5f;
+    // Below this many candidates in a class, scanning every kept box is cheaper than the grid.
+    private static final int MIN_GRID_CANDIDATES = 64;
+
+    private Method method = Method.HARD;
+    private float iouThreshold;
+    private float sigma = DEFAULT_SIGMA;
+    private float scoreThreshold;
+
+    private int[] classStart = new int[0];
+    private long[] sortKeys = new long[0];
+    private float[] area = new float[0];
+    private int[] bucket = new int[0];
+    private float[] bucketScore = new float[0];
+    private int[] kept = new int[0];
+    private float[] keptScore = new float[0];
+    private int keptCount;
+    private final BoxGrid grid = new BoxGrid();
+    private int[] degenerate = new int[0];
+    private int degenerateCount;
+
+    public NmsEngine(final float iouThreshold) {
+        this.iouThreshold = iouThreshold;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public void setMethod(final Method method) {
+        this.method = method;
+    }
+
+    public float getIouThreshold() {
+        return iouThreshold;
+    }
+
+    /**
+     * Overlap at or above which HARD and DIOU suppress a candidate, and above which SOFT_LINEAR
+     * starts decaying it.
+     */
+    public void setIouThreshold(final float iouThreshold) {
+        this.iouThreshold = iouThreshold;
+    }
+
+    /** Width of the SOFT_GAUSSIAN decay, score *= exp(-iou^2 / sigma). */
+    public void setSigma(final float sigma) {
+        this.sigma = sigma;
+    }
+
+    /** Candidates whose decayed score falls below this are discarded by the soft methods. */
+    public void setScoreThreshold(final float scoreThreshold) {
+        this.scoreThreshold = scoreThreshold;
+    }
+
+    /**
+     * Runs suppression over all candidates in {@code candidates}.
+     *
+     * @return the number of kept candidates; see {@link #getKept(int)}.
+     */
+    public int run(final CandidateBuffer candidates) {
+        final int n = candidates.size();
+        keptCount = 0;
+        if (n == 0) {
+            return 0;
+        }
+        ensureCapacity(n);
+
+        int maxClass = 0;
+        for (int i = 0; i < n; i++) {
+            maxClass = Math.max(maxClass, candidates.detectedClass[i]);
+            area[i] = (candidates.right[i] - candidates.left[i]) * (candidates.bottom[i] - candidates.top[i]);
+        }
+        bucketByClass(candidates, maxClass + 1);
+
+        final boolean soft = method == Method.SOFT_LINEAR || method == Method.SOFT_GAUSSIAN;
+        for (int c = 0; c <= maxClass; c++) {
+            final int from = classStart[c];
+            final int to = classStart[c + 1];
+            if (from == to) {
+                continue;
+            }
+            Arrays.sort(sortKeys, from, to);
+            if (soft) {
+                suppressSoft(candidates, from, to);
+            } else {
+                suppressGreedy(candidates, from, to, method == Method.DIOU);
+            }
+        }
+        return keptCount;
+    }
+
+    public int getKeptCount() {
+        return keptCount;
+    }
+
+    /** Index into the candidate buffer of the {@code i}-th kept candidate. */
+    public int getKept(final int i) {
+        return kept[i];
+    }
+
+    /** Score of the {@code i}-th kept candidate, after decay for the soft methods. */
+    public float getKeptScore(final int i) {
+        return keptScore[i];
+    }
+
+    private void suppressGreedy(final CandidateBuffer candidates, final int from, final int to, final boolean diou) {
+        final float threshold = iouThreshold;
+        final int firstKept = keptCount;
+        // Boxes that do not overlap have an IoU of 0 and a negative DIoU, so with a positive
+        // threshold only kept boxes near the candidate can suppress it, and the grid finds those.
+        // Boxes without a positive area can have a NaN IoU with each other and are always
+        // compared directly.
+        final boolean useGrid = to - from >= MIN_GRID_CANDIDATES && threshold > 0;
+        if (useGrid) {
+            buildGrid(candidates, from, to);
+        }
+        degenerateCount = 0;
+        for (int s = from; s < to; s++) {
+            final int i = (int) sortKeys[s];
+            boolean suppressed = false;
+            if (useGrid && area[i] > 0) {
+                final int found = grid.query(candidates.left[i], candidates.top[i], candidates.right[i], candidates.bottom[i]);
+                for (int f = 0; f < found && !suppressed; f++) {
+                    suppressed = suppresses(candidates, i, grid.getFound(f), threshold, diou);
+                }
+                for (int k = 0; k < degenerateCount && !suppressed; k++) {
+                    suppressed = suppresses(candidates, i, degenerate[k], threshold, diou);
+                }
+            } else {
+                for (int k = firstKept; k < keptCount && !suppressed; k++) {
+                    suppressed = suppresses(candidates, i, kept[k], threshold, diou);
+                }
+            }
+            if (!suppressed) {
+                keptScore[keptCount] = candidates.score[i];
+                kept[keptCount++] = i;
+                if (useGrid) {
+                    if (area[i] > 0) {
+                        grid.insert(i, candidates.left[i], candidates.top[i], candidates.right[i], candidates.bottom[i]);
+                    } else {
+                        degenerate[degenerateCount++] = i;
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean suppresses(
+            final CandidateBuffer candidates, final int i, final int j, final float threshold, final boolean diou) {
+        final float overlap = diou ? diou(candidates, i, j) : iou(candidates, i, j);
+        // Written as !(overlap < threshold) so that degenerate boxes (NaN IoU) are
+        // suppressed, as they were by the original implementation.
+        return !(overlap < threshold);
+    }
+
+    // Lays the grid over the class bucket, with cells the size of its average box.
+    private void buildGrid(final CandidateBuffer candidates, final int from, final int to) {
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        float widthSum = 0;
+        float heightSum = 0;
+        int boxes = 0;
+        for (int s = from; s < to; s++) {
+            final int i = (int) sortKeys[s];
+            if (!(area[i] > 0)) {
+                continue;
+            }
+            minX = Math.min(minX, candidates.left[i]);
+            minY = Math.min(minY, candidates.top[i]);
+            maxX = Math.max(maxX, candidates.right[i]);
+            maxY = Math.max(maxY, candidates.bottom[i]);
+            widthSum += candidates.right[i] - candidates.left[i];
+            heightSum += candidates.bottom[i] - candidates.top[i];
+            boxes++;
+        }
+        if (boxes == 0) {
+            minX = minY = maxX = maxY = 0;
+            boxes = 1;
+        }
+        grid.reset(minX, minY, maxX, maxY, widthSum / boxes, heightSum / boxes, to - from);
+    }
+
+    // Soft-NMS over one class bucket: repeatedly takes the best remaining candidate and decays the
+    // scores of the rest by their overlap with it.
+    private void suppressSoft(final CandidateBuffer candidates, final int from, final int to) {
+        final int m = to - from;
+        for (int s = 0; s < m; s++) {
+            final int i = (int) sortKeys[from + s];
+            bucket[s] = i;
+            bucketScore[s] = candidates.score[i];
+        }
+
+        final boolean gaussian = method == Method.SOFT_GAUSSIAN;
+        final float threshold = iouThreshold;
+        for (int pos = 0; pos < m; pos++) {
+            int best = pos;
+            for (int s = pos + 1; s < m; s++) {
+                if (bucketScore[s] > bucketScore[best]) {
+                    best = s;
+                }
+            }
+            if (bucketScore[best] < scoreThreshold) {
+                break;
+            }
+            swap(pos, best);
+
+            final int i = bucket[pos];
+            keptScore[keptCount] = bucketScore[pos];
+            kept[keptCount++] = i;
+
+            for (int s = pos + 1; s < m; s++) {
+                final float iou = iou(candidates, i, bucket[s]);
+                if (gaussian) {
+                    bucketScore[s] *= (float) Math.exp(-(iou * iou) / sigma);
+                } else if (iou > threshold) {
+                    bucketScore[s] *= 1 - iou;
+                }
+            }
+        }
+    }
+
+    private float iou(final CandidateBuffer candidates, final int i, final int j) {
+        final float w = Math.min(candidates.right[i], candidates.right[j]) - Math.max(candidates.left[i], candidates.left[j]);
+        final float h = Math.min(candidates.bottom[i], candidates.bottom[j]) - Math.max(candidates.top[i], candidates.top[j]);
+        final float intersection = w < 0 || h < 0 ? 0 : w * h;
+        return intersection / (area[i] + area[j] - intersection);
+    }
+
+    // IoU minus the squared distance between the box centers over the squared diagonal of the
+    // smallest box enclosing both.
+    private float diou(final CandidateBuffer candidates, final int i, final int j) {
+        final float dx = (candidates.left[i] + candidates.right[i]) - (candidates.left[j] + candidates.right[j]);
+        final float dy = (candidates.top[i] + candidates.bottom[i]) - (candidates.top[j] + candidates.bottom[j]);
+        final float cw = Math.max(candidates.right[i], candidates.right[j]) - Math.min(candidates.left[i], candidates.left[j]);
+        final float ch = Math.max(candidates.bottom[i], candidates.bottom[j]) - Math.min(candidates.top[i], candidates.top[j]);
+        // dx and dy are twice the center offsets, hence the factor 4 on the diagonal.
+        final float diagonal = 4 * (cw * cw + ch * ch);
+        final float penalty = diagonal > 0 ? (dx * dx + dy * dy) / diagonal : 0;
+        return iou(candidates, i, j) - penalty;
+    }
+
+    private void swap(final int a, final int b) {
+        final int index = bucket[a];
+        bucket[a] = bucket[b];
+        bucket[b] = index;
+        final float score = bucketScore[a];
+        bucketScore[a] = bucketScore[b];
+        bucketScore[b] = score;
+    }
+
+    // Counting sort of candidate indices by class. Each slot holds a key that sorts by descending
+    // score and then by ascending index, with the index in the low 32 bits.
+    private void bucketByClass(final CandidateBuffer candidates, final int numClasses) {
+        final int n = candidates.size();
+        if (classStart.length < numClasses + 1) {
+            classStart = new int[numClasses + 1];
+        }
+        Arrays.fill(classStart, 0, numClasses + 1, 0);
+        for (int i = 0; i < n; i++) {
+            classStart[candidates.detectedClass[i] + 1]++;
+        }
+        for (int c = 0; c < numClasses; c++) {
+            classStart[c + 1] += classStart[c];
+        }
+        for (int i = 0; i < n; i++) {
+            final int c = candidates.detectedClass[i];
+            final int slot = classStart[c]++;
+            sortKeys[slot] = ((long) ~sortableBits(candidates.score[i]) << 32) | i;
+        }
+        // The placement pass advanced every start to the next class's start; shift them back.
+        System.arraycopy(classStart, 0, classStart, 1, numClasses);
+        classStart[0] = 0;
+    }
+
+    // Maps a float to an int with the same ordering.
+    private static int sortableBits(final float value) {
+        final int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+
+    private void ensureCapacity(final int n) {
+        if (sortKeys.length < n) {
+            final int capacity = Math.max(n, sortKeys.length * 2);
+            sortKeys = new long[capacity];
+            area = new float[capacity];
+            bucket = new int[capacity];
+            bucketScore = new float[capacity];
+            kept = new int[capacity];
+            keptScore = new float[capacity];
+            degenerate = new int[capacity];
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.tensorflow.lite.examples.detection.tflite.Classifier.Recognition;
+
+/**
+ * Detects small objects in large images, such as people in drone photos, by running the model on
+ * overlapping full-resolution tiles instead of the whole image scaled down to the model input.
+ *
+ * <p>The image is covered by tiles of the model's input size that overlap by at least {@link
+ * #setOverlap(float)} of a tile, spread evenly so the last tile of each row and column ends at the
+ * image edge. An image smaller than a tile is padded with black. Each tile is checked first with a
+ * luminance-variance prefilter on a sparse grid of pixels, so flat areas like water or sky are
+ * skipped before they reach the model. The remaining tiles go through {@link
+ * YoloV4Classifier#recognizeImages(List)} in batches.
+ *
+ * <p>Boxes are moved to image coordinates. A box touching a tile edge that lies inside the image is
+ * dropped when it is smaller than the overlap, because the neighboring tile then sees the object
+ * whole. Boxes cut by the edge would otherwise survive NMS next to the whole one. The duplicates
+ * that remain in the overlaps are merged with one class-aware {@link NmsEngine} pass over the
+ * whole image.
+ *
+ * <p>Tile bitmaps and pixel buffers are allocated once per detector. Not thread-safe.
+ */
+public final class TiledDetector {
+    private static final float DEFAULT_OVERLAP = 0.2f;
+    // Standard deviation of 4 grey levels: sky, calm water or a blank wall.
+    private static final float DEFAULT_MIN_VARIANCE = 16;
+    // Every SAMPLE_STEP-th pixel of every SAMPLE_STEP-th row feeds the prefilter.
+    private static final int SAMPLE_STEP = 4;
+    // Boxes within this many pixels of an inner tile edge count as cut by it.
+    private static final float EDGE_MARGIN = 2;
+    private static final float IOU_THRESHOLD = 0.5f;
+
+    private final YoloV4Classifier classifier;
+    private final int tileSize;
+    private final int[] pixels;
+    private final List<Bitmap> tiles = new ArrayList<>();
+    private final NmsEngine nmsEngine = new NmsEngine(IOU_THRESHOLD);
+    private final CandidateBuffer candidates = new CandidateBuffer();
+    private float overlap = DEFAULT_OVERLAP;
+    private float minVariance = DEFAULT_MIN_VARIANCE;
+
+    // Origins of the tiles of the current batch.
+    private int[] batchX = new int[0];
+    private int[] batchY = new int[0];
+    // Width of the strip two neighboring tiles have in common, at least.
+    private int sharedPixels;
+    private int tileCount;
+    private int skippedCount;
+
+    public TiledDetector(final YoloV4Classifier classifier) {
+        this.classifier = classifier;
+        tileSize = classifier.getInputSize();
+        pixels = new int[tileSize * tileSize];
+    }
+
+    /** Fraction of a tile shared with each neighbor, in [0, 0.5]. */
+    public void setOverlap(final float overlap) {
+        if (!(overlap >= 0 && overlap <= 0.5f)) {
+            throw new IllegalArgumentException("Overlap must be in [0, 0.5], got " + overlap);
+        }
+        this.overlap = overlap;
+    }
+
+    /**
+     * Tiles whose luminance variance, in grey levels squared, is below this are skipped without
+     * running the model. 0 runs every tile.
+     */
+    public void setMinVariance(final float minVariance) {
+        this.minVariance = minVariance;
+    }
+
+    /**
+     * Detects objects in {@code image} at full resolution.
+     *
+     * @return the recognitions in {@code image} pixel coordinates, by ascending class and descending
+     *     score.
+     */
+    public List<Recognition> recognize(final Bitmap image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int stride = Math.max(1, Math.round(tileSize * (1 - overlap)));
+        sharedPixels = tileSize - stride;
+        final int[] xs = origins(width, tileSize, stride);
+        final int[] ys = origins(height, tileSize, stride);
+        final int batchSize = classifier.getBatchSize();
+        ensureBatch(batchSize);
+
+        final List<Recognition> found = new ArrayList<>();
+        tileCount = xs.length * ys.length;
+        skippedCount = 0;
+        int pending = 0;
+        for (final int y : ys) {
+            for (final int x : xs) {
+                if (!loadTile(image, x, y)) {
+                    ++skippedCount;
+                    continue;
+                }
+                tiles.get(pending).setPixels(pixels, 0, tileSize, 0, 0, tileSize, tileSize);
+                batchX[pending] = x;
+                batchY[pending] = y;
+                if (++pending == batchSize) {
+                    recognizeBatch(pending, width, height, found);
+                    pending = 0;
+                }
+            }
+        }
+        if (pending > 0) {
+            recognizeBatch(pending, width, height, found);
+        }
+        return merge(found);
+    }
+
+    /** Tiles the last image was split into. */
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    /** Tiles of the last image skipped by the variance prefilter. */
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+
+    public String getStatString() {
+        return String.format(Locale.US, "%d tiles, %d skipped", tileCount, skippedCount);
+    }
+
+    private void ensureBatch(final int batchSize) {
+        while (tiles.size() < batchSize) {
+            tiles.add(Bitmap.createBitmap(tileSize, tileSize, Bitmap.Config.ARGB_8888));
+        }
+        if (batchX.length < batchSize) {
+            batchX = new int[batchSize];
+            batchY = new int[batchSize];
+        }
+    }
+
+    // Copies the tile at (x, y) into pixels, padding past the image edge with black, and returns
+    // whether it has enough texture to be worth detecting on.
+    private boolean loadTile(final Bitmap image, final int x, final int y) {
+        final int width = Math.min(tileSize, image.getWidth() - x);
+        final int height = Math.min(tileSize, image.getHeight() - y);
+        if (width < tileSize || height < tileSize) {
+            Arrays.fill(pixels, 0xff000000);
+        }
+        image.getPixels(pixels, 0, tileSize, x, y, width, height);
+        return minVariance <= 0 || lumaVariance(pixels, tileSize, width, height) >= minVariance;
+    }
+
+    private void recognizeBatch(
+            final int count, final int width, final int height, final List<Recognition> found) {
+        final List<List<Recognition>> results = classifier.recognizeImages(tiles.subList(0, count));
+        for (int t = 0; t < count; t++) {
+            final int x = batchX[t];
+            final int y = batchY[t];
+            for (final Recognition recognition : results.get(t)) {
+                final RectF location = recognition.getLocation();
+                if (cutByInnerEdge(location, x, y, width, height)) {
+                    continue;
+                }
+                location.offset(x, y);
+                recognition.setLocation(location);
+                found.add(recognition);
+            }
+        }
+    }
+
+    // Whether the box, in tile coordinates, touches a tile edge inside the image while being small
+    // enough to lie whole within the overlap, and so within the neighboring tile.
+    private boolean cutByInnerEdge(
+            final RectF box, final int x, final int y, final int width, final int height) {
+        // The neighbor must see the box clear of its own edge margin, or both tiles would drop it.
+        final float fits = sharedPixels - 2 * EDGE_MARGIN;
+        final boolean fitsAcross = box.width() < fits;
+        final boolean fitsDown = box.height() < fits;
+        return fitsAcross && x > 0 && box.left <= EDGE_MARGIN
+                || fitsAcross && x + tileSize < width && box.right >= tileSize - 1 - EDGE_MARGIN
+                || fitsDown && y > 0 && box.top <= EDGE_MARGIN
+                || fitsDown && y + tileSize < height && box.bottom >= tileSize - 1 - EDGE_MARGIN;
+    }
+
+    private List<Recognition> merge(final List<Recognition> found) {
+        candidates.clear();
+        for (int i = 0; i < found.size(); i++) {
+            final Recognition recognition = found.get(i);
+            final RectF location = recognition.getLocation();
+            candidates.add(location.left, location.top, location.right, location.bottom,
+                    recognition.getConfidence(), recognition.getDetectedClass(), i);
+        }
+        nmsEngine.setMethod(classifier.getNmsMethod());
+        nmsEngine.setScoreThreshold(classifier.getObjThresh());
+        final int keptCount = nmsEngine.run(candidates);
+        final List<Recognition> merged = new ArrayList<>(keptCount);
+        for (int k = 0; k < keptCount; k++) {
+            final Recognition recognition = found.get(candidates.getAnchor(nmsEngine.getKept(k)));
+            final float score = nmsEngine.getKeptScore(k);
+            if (score == recognition.getConfidence()) {
+                merged.add(recognition);
+            } else {
+                // Soft-NMS decayed the score
+                merged.add(new Recognition(recognition.getId(), recognition.getTitle(), score,
+                        recognition.getLocation(), recognition.getDetectedClass()));
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Tile origins along one axis: as few tiles as cover the length at most {@code stride} apart,
+     * spread evenly from 0 to the image edge. A single tile at 0 when the image is not larger than
+     * a tile.
+     */
+    static int[] origins(final int length, final int tile, final int stride) {
+        if (length <= tile) {
+            return new int[] {0};
+        }
+        final int gaps = (length - tile + stride - 1) / stride;
+        final int[] origins = new int[gaps + 1];
+        for (int i = 0; i <= gaps; i++) {
+            origins[i] = (int) ((long) i * (length - tile) / gaps);
+        }
+        return origins;
+    }
+
+    /** Variance of the luminance, in grey levels squared, over a sparse grid of the given area. */
+    static float lumaVariance(final int[] argb, final int rowStride, final int width, final int height) {
+        long sum = 0;
+        long sumSquares = 0;
+        int samples = 0;
+        for (int y = 0; y < height; y += SAMPLE_STEP) {
+            for (int x = 0, p = y * rowStride; x < width; x += SAMPLE_STEP, p += SAMPLE_STEP) {
+                final int pixel = argb[p];
+                // BT.601 weights in 8-bit fixed point.
+                final int luma =
+                        (77 * ((pixel >> 16) & 0xff) + 150 * ((pixel >> 8) & 0xff) + 29 * (pixel & 0xff)) >> 8;
+                sum += luma;
+                sumSquares += luma * luma;
+                ++samples;
+            }
+        }
+        if (samples == 0) {
+            return 0;
+        }
+        final double mean = (double) sum / samples;
+        return (float) ((double) sumSquares / samples - mean * mean);
+    }
+}
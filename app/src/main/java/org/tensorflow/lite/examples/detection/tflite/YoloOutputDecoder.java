@@ -0,0 +1,338 @@
+package org.tensorflow.lite.examples.detection.tflite;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes the box and class-score outputs of a YOLOv4 or YOLOv4-tiny model into a
+ * {@link CandidateBuffer}.
+ *
+ * <p>The decoder is sized from the output tensor shapes, so any input resolution works without
+ * code changes. Three layouts are understood:
+ * <ul>
+ *   <li>two outputs, boxes [1][anchors][4] and scores [1][anchors][classes], in either order;
+ *   <li>one output [1][anchors][4 + classes] with the box followed by the class scores;
+ *   <li>one output [1][anchors][5 + classes] with the box, an objectness score and the class
+ *       scores, which are multiplied by the objectness.
+ * </ul>
+ *
+ * <p>Decoding can be restricted to a set of target classes, in which case only their score
+ * columns are read and every other class is dropped before a box is built.
+ *
+ * <p>The output tensors are backed by direct buffers allocated once, so the interpreter copies its
+ * results straight into them and the decoder scans them in place. A frame without detections does
+ * not allocate anything.
+ *
+ * <p>A decoder made with {@link #withBatchSize(int)} holds the outputs of up to that many images,
+ * one after the other, and {@link #decode(int, float, float, float, CandidateBuffer)} reads one of
+ * them. A smaller batch fills only the leading images.
+ */
+public final class YoloOutputDecoder {
+    private static final int BOX_COORDS = 4;
+    private static final int BYTES_PER_FLOAT = 4;
+
+    private final int numAnchors;
+    private final int numClasses;
+    private final int batchSize;
+    // Output indices of the two-output layout, or -1 for the packed one.
+    private final int boxesIndex;
+    private final int scoresIndex;
+    private final FloatBuffer boxes;
+    private final int boxStride;
+    private final FloatBuffer scores;
+    private final int scoreStride;
+    private final int scoreOffset;
+    // Whether the packed layout has an objectness score between the box and the class scores.
+    private final boolean hasObjectness;
+    private final ByteBuffer[] outputBuffers;
+    private final Map<Integer, Object> outputMap = new HashMap<>();
+    private volatile int[] targetClasses;
+
+    /**
+     * Creates a decoder for the two-output layout with boxes at output 0 and scores at output 1.
+     */
+    public YoloOutputDecoder(final int numAnchors, final int numClasses) {
+        this(numAnchors, numClasses, 0, 1, 1);
+    }
+
+    private YoloOutputDecoder(final int numAnchors, final int numClasses, final int boxesIndex,
+                              final int scoresIndex, final int batchSize) {
+        this.numAnchors = numAnchors;
+        this.numClasses = numClasses;
+        this.batchSize = batchSize;
+        this.boxesIndex = boxesIndex;
+        this.scoresIndex = scoresIndex;
+
+        final ByteBuffer boxesBuffer = allocate(batchSize * numAnchors * BOX_COORDS);
+        final ByteBuffer scoresBuffer = allocate(batchSize * numAnchors * numClasses);
+        boxes = boxesBuffer.asFloatBuffer();
+        boxStride = BOX_COORDS;
+        scores = scoresBuffer.asFloatBuffer();
+        scoreStride = numClasses;
+        scoreOffset = 0;
+        hasObjectness = false;
+
+        outputBuffers = new ByteBuffer[] {boxesBuffer, scoresBuffer};
+        outputMap.put(boxesIndex, boxesBuffer);
+        outputMap.put(scoresIndex, scoresBuffer);
+    }
+
+    private YoloOutputDecoder(
+            final int numAnchors, final int numClasses, final int stride, final int batchSize) {
+        this.numAnchors = numAnchors;
+        this.numClasses = numClasses;
+        this.batchSize = batchSize;
+        this.boxesIndex = -1;
+        this.scoresIndex = -1;
+
+        final ByteBuffer packedBuffer = allocate(batchSize * numAnchors * stride);
+        boxes = packedBuffer.asFloatBuffer();
+        boxStride = stride;
+        scores = boxes;
+        scoreStride = stride;
+        hasObjectness = stride == BOX_COORDS + 1 + numClasses;
+        scoreOffset = hasObjectness ? BOX_COORDS + 1 : BOX_COORDS;
+
+        outputBuffers = new ByteBuffer[] {packedBuffer};
+        outputMap.put(0, packedBuffer);
+    }
+
+    /**
+     * Creates a decoder matching the output tensor shapes reported by the interpreter, in output
+     * index order, for a model with {@code numClasses} labels. The label count tells the packed
+     * layouts apart.
+     *
+     * @throws IllegalArgumentException if the shapes are not a known YOLO layout with that many
+     *     classes.
+     */
+    public static YoloOutputDecoder forOutputShapes(final int numClasses, final int[]... shapes) {
+        if (shapes.length == 1) {
+            final int[] packed = shapes[0];
+            final int stride = lastDim(packed);
+            if (stride != BOX_COORDS + numClasses && stride != BOX_COORDS + 1 + numClasses) {
+                throw unsupported(numClasses, shapes);
+            }
+            return new YoloOutputDecoder(anchors(packed), numClasses, stride, 1);
+        }
+        if (shapes.length == 2) {
+            // Prefer output 0 as the boxes, as exported by the darknet converters.
+            final int boxesIndex = lastDim(shapes[0]) == BOX_COORDS ? 0 : 1;
+            final int scoresIndex = 1 - boxesIndex;
+            if (lastDim(shapes[boxesIndex]) != BOX_COORDS
+                    || lastDim(shapes[scoresIndex]) != numClasses
+                    || anchors(shapes[0]) != anchors(shapes[1])) {
+                throw unsupported(numClasses, shapes);
+            }
+            return new YoloOutputDecoder(
+                    anchors(shapes[boxesIndex]), numClasses, boxesIndex, scoresIndex, 1);
+        }
+        throw unsupported(numClasses, shapes);
+    }
+
+    /**
+     * Creates a decoder for the same model layout with room for the outputs of {@code batchSize}
+     * images. Target classes are carried over.
+     */
+    public YoloOutputDecoder withBatchSize(final int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1, got " + batchSize);
+        }
+        final YoloOutputDecoder decoder = boxesIndex < 0
+                ? new YoloOutputDecoder(numAnchors, numClasses, scoreStride, batchSize)
+                : new YoloOutputDecoder(numAnchors, numClasses, boxesIndex, scoresIndex, batchSize);
+        decoder.targetClasses = targetClasses;
+        return decoder;
+    }
+
+    public int getNumAnchors() {
+        return numAnchors;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getNumClasses() {
+        return numClasses;
+    }
+
+    /**
+     * Returns the output map to hand to {@code Interpreter.runForMultipleInputsOutputs}. The
+     * interpreter writes with relative puts, so the buffers are rewound first.
+     */
+    public Map<Integer, Object> prepareOutputs() {
+        for (final ByteBuffer buffer : outputBuffers) {
+            buffer.rewind();
+        }
+        return outputMap;
+    }
+
+    /**
+     * Float view over the box output. Anchor {@code i} starts at {@code i * getBoxStride()} and is
+     * laid out as (x, y, w, h).
+     */
+    public FloatBuffer getBoxes() {
+        return boxes;
+    }
+
+    public int getBoxStride() {
+        return boxStride;
+    }
+
+    /**
+     * Float view over the class scores. The score of class {@code c} for anchor {@code i} is at
+     * {@code i * getScoreStride() + getScoreOffset() + c}.
+     */
+    public FloatBuffer getScores() {
+        return scores;
+    }
+
+    public int getScoreStride() {
+        return scoreStride;
+    }
+
+    public int getScoreOffset() {
+        return scoreOffset;
+    }
+
+    /**
+     * Whether each anchor has an objectness score, at {@code getScoreOffset() - 1}, that the class
+     * scores are multiplied by.
+     */
+    public boolean hasObjectness() {
+        return hasObjectness;
+    }
+
+    /**
+     * Restricts decoding to the given class ids. Only their score columns are read, and anchors
+     * are assigned the best class among them. Pass {@code null} or an empty array to decode all
+     * classes again.
+     *
+     * @throws IllegalArgumentException if a class id is out of range.
+     */
+    public void setTargetClasses(final int[] classIds) {
+        if (classIds == null || classIds.length == 0) {
+            targetClasses = null;
+            return;
+        }
+        for (final int classId : classIds) {
+            if (classId < 0 || classId >= numClasses) {
+                throw new IllegalArgumentException("Class id " + classId + " out of range [0, " + numClasses + ")");
+            }
+        }
+        targetClasses = classIds.clone();
+    }
+
+    /** The class ids decoding is restricted to, or {@code null} when all classes are decoded. */
+    public int[] getTargetClasses() {
+        return targetClasses == null ? null : targetClasses.clone();
+    }
+
+    /**
+     * Appends every anchor whose best class score is above {@code threshold} to {@code out}.
+     *
+     * @param threshold minimum class score, exclusive.
+     * @param maxX right-most valid x coordinate; boxes are clamped to [0, maxX].
+     * @param maxY bottom-most valid y coordinate; boxes are clamped to [0, maxY].
+     * @param out cleared and then filled with the decoded candidates.
+     * @return the number of candidates written.
+     */
+    public int decode(final float threshold, final float maxX, final float maxY, final CandidateBuffer out) {
+        return decode(0, threshold, maxX, maxY, out);
+    }
+
+    /**
+     * As {@link #decode(float, float, float, CandidateBuffer)}, for image {@code image} of the last
+     * batch. Candidate anchors are numbered within the image.
+     */
+    public int decode(
+            final int image, final float threshold, final float maxX, final float maxY, final CandidateBuffer out) {
+        if (image < 0 || image >= batchSize) {
+            throw new IndexOutOfBoundsException("Image " + image + ", batch size " + batchSize);
+        }
+        out.clear();
+        final int[] targets = targetClasses;
+        final int firstAnchor = image * numAnchors;
+        for (int i = 0, base = firstAnchor * scoreStride + scoreOffset; i < numAnchors; i++, base += scoreStride) {
+            float maxClass = 0;
+            int detectedClass = -1;
+            if (targets == null) {
+                for (int c = 0; c < numClasses; c++) {
+                    final float classScore = scores.get(base + c);
+                    if (classScore > maxClass) {
+                        detectedClass = c;
+                        maxClass = classScore;
+                    }
+                }
+            } else {
+                for (final int c : targets) {
+                    final float classScore = scores.get(base + c);
+                    if (classScore > maxClass) {
+                        detectedClass = c;
+                        maxClass = classScore;
+                    }
+                }
+            }
+            if (hasObjectness) {
+                // Objectness is a probability, so it scales every class alike and the best class
+                // stays the best.
+                maxClass *= scores.get(base - 1);
+            }
+            if (maxClass > threshold) {
+                addCandidate(firstAnchor, i, maxClass, detectedClass, maxX, maxY, out);
+            }
+        }
+        return out.size();
+    }
+
+    private void addCandidate(
+            final int firstAnchor,
+            final int anchor,
+            final float score,
+            final int detectedClass,
+            final float maxX,
+            final float maxY,
+            final CandidateBuffer out) {
+        final int box = (firstAnchor + anchor) * boxStride;
+        final float xPos = boxes.get(box);
+        final float yPos = boxes.get(box + 1);
+        final float w = boxes.get(box + 2);
+        final float h = boxes.get(box + 3);
+        out.add(
+                Math.max(0, xPos - w / 2),
+                Math.max(0, yPos - h / 2),
+                Math.min(maxX, xPos + w / 2),
+                Math.min(maxY, yPos + h / 2),
+                score,
+                detectedClass,
+                anchor);
+    }
+
+    private static ByteBuffer allocate(final int numFloats) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(numFloats * BYTES_PER_FLOAT);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+    private static int lastDim(final int[] shape) {
+        return shape[shape.length - 1];
+    }
+
+    // All dimensions between the batch and the per-anchor values, e.g. [1][2535][4] -> 2535.
+    private static int anchors(final int[] shape) {
+        int anchors = 1;
+        for (int i = 1; i < shape.length - 1; i++) {
+            anchors *= shape[i];
+        }
+        return anchors;
+    }
+
+    private static IllegalArgumentException unsupported(final int numClasses, final int[][] shapes) {
+        return new IllegalArgumentException("Unsupported YOLO output layout for " + numClasses
+                + " classes: " + Arrays.deepToString(shapes));
+    }
+}
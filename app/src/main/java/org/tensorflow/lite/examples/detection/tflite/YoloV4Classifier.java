@@ -4,53 +4,96 @@ import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.RectF;
 import android.os.Build;
-import android.util.Log;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.Vector;
+import java.util.concurrent.Future;
 
+import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
 import org.tensorflow.lite.gpu.GpuDelegate;
 import org.tensorflow.lite.nnapi.NnApiDelegate;
 import org.tensorflow.lite.examples.detection.MainActivity;
+import org.tensorflow.lite.examples.detection.env.LatencyHistogram;
 import org.tensorflow.lite.examples.detection.env.Logger;
 import org.tensorflow.lite.examples.detection.env.Utils;
 
-import static org.tensorflow.lite.examples.detection.env.Utils.expit;
-
 /**
  * YoloV4Classifier class to handle the detection and classification using YOLOv4 Tiny or full models.
  */
 public class YoloV4Classifier implements Classifier {
 
     private static final Logger LOGGER = new Logger();
-    private static final int INPUT_SIZE = 416;
     private static final int NUM_THREADS = 4;
+    private static final String PERSON_LABEL = "person";
+    private static final int DEFAULT_BATCH_SIZE = 4;
+    private static final int MAX_BATCH_SIZE = 16;
+    // Recognitions between latency logs when stat logging is on.
+    private static final int STAT_LOG_INTERVAL = 100;
+    /** Recognition stages timed per image, for {@link #getStageHistogram(int)}. */
+    public static final int STAGE_PREPROCESS = 0;
+    public static final int STAGE_INTERPRETER = 1;
+    public static final int STAGE_DECODE = 2;
+    public static final int STAGE_NMS = 3;
+    private static final String[] STAGE_NAMES = {"preprocess", "interpreter", "decode", "nms"};
     private static boolean isGPU = true;
-    private static boolean isTiny = true;
     private static boolean isNNAPI = false;
 
+    // Read from the model's input tensor, e.g. 320, 416 or 608
+    private int inputSize;
+    private int[] inputShape;
+
     // Buffer allocations
-    private ByteBuffer imgData;
+    private InputPreprocessor preprocessor;
     private int[] intValues;
     private boolean isModelQuantized;
     private Interpreter tfLite;
     private Vector<String> labels = new Vector<>();
+    private int personClass = -1;
+
+    // Output buffers, sized from the model's output tensors and reused for every frame
+    private YoloOutputDecoder decoder;
+    private final CandidateBuffer candidates = new CandidateBuffer();
 
     // NMS parameters
     protected float mNmsThresh = 0.6f;
+    private volatile NmsEngine.Method nmsMethod = NmsEngine.Method.HARD;
+    private final NmsEngine nmsEngine = new NmsEngine(mNmsThresh);
+    private final CandidateBuffer nmsCandidates = new CandidateBuffer();
+    private final AsyncRecognizer asyncRecognizer = new AsyncRecognizer(this);
+
+    // Batched inference: the batch the interpreter input is currently sized for, and buffers for
+    // the largest batch, created on first use.
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private boolean batchingSupported = true;
+    private int interpreterBatch = 1;
+    private InputPreprocessor batchPreprocessor;
+    private YoloOutputDecoder batchDecoder;
+    // Images and nanoseconds spent per batch size, for picking the fastest.
+    private final long[] batchImages = new long[MAX_BATCH_SIZE + 1];
+    private final long[] batchNanos = new long[MAX_BATCH_SIZE + 1];
+
+    // Per-image latency of each recognition stage, for getStatString() and getStageHistogram().
+    private final LatencyHistogram[] stageLatency = new LatencyHistogram[STAGE_NAMES.length];
+    private volatile boolean logStats;
+    private long recognitions;
+
+    private YoloV4Classifier() {
+        for (int stage = 0; stage < stageLatency.length; stage++) {
+            stageLatency[stage] = new LatencyHistogram();
+        }
+    }
 
-    public static Classifier create(
+    public static YoloV4Classifier create(
             final AssetManager assetManager,
             final String modelFilename,
             final String labelFilename,
@@ -62,7 +105,7 @@ public class YoloV4Classifier implements Classifier {
         BufferedReader br = new BufferedReader(new InputStreamReader(labelsInput));
         String line;
         while ((line = br.readLine()) != null) {
-            LOGGER.w(line);
+            LOGGER.v("Label %s", line);
             d.labels.add(line);
         }
         br.close();
@@ -82,26 +125,99 @@ public class YoloV4Classifier implements Classifier {
         }
         d.tfLite = new Interpreter(Utils.loadModelFile(assetManager, modelFilename), options);
 
+        // Input is [1][size][size][3]; the crop everywhere in the app is square.
+        final int[] inputShape = d.tfLite.getInputTensor(0).shape();
+        d.inputShape = inputShape;
+        d.inputSize = inputShape[1];
+        if (inputShape[2] != d.inputSize) {
+            LOGGER.w("Non-square model input %dx%d, using %d", inputShape[2], inputShape[1], d.inputSize);
+        }
+
+        final int[][] outputShapes = new int[d.tfLite.getOutputTensorCount()][];
+        for (int i = 0; i < outputShapes.length; i++) {
+            final Tensor output = d.tfLite.getOutputTensor(i);
+            if (output.dataType() != DataType.FLOAT32) {
+                throw new IllegalArgumentException(
+                        "Output " + i + " is " + output.dataType() + ", only float outputs are supported");
+            }
+            outputShapes[i] = output.shape();
+        }
+        d.decoder = YoloOutputDecoder.forOutputShapes(d.labels.size(), outputShapes);
+        d.personClass = d.getLabelIndex(PERSON_LABEL);
+        LOGGER.i("Loaded %s: input %dx%d, %d anchors, %d classes", modelFilename,
+                d.inputSize, d.inputSize, d.decoder.getNumAnchors(), d.decoder.getNumClasses());
+
         d.isModelQuantized = isQuantized;
-        int numBytesPerChannel = isQuantized ? 1 : 4;
-        d.imgData = ByteBuffer.allocateDirect(1 * d.INPUT_SIZE * d.INPUT_SIZE * 3 * numBytesPerChannel);
-        d.imgData.order(ByteOrder.nativeOrder());
-        d.intValues = new int[d.INPUT_SIZE * d.INPUT_SIZE];
+        d.preprocessor = new InputPreprocessor(d.inputSize, isQuantized);
+        d.intValues = new int[d.inputSize * d.inputSize];
 
         return d;
     }
 
     @Override
     public void enableStatLogging(boolean logStats) {
+        this.logStats = logStats;
     }
 
     @Override
     public String getStatString() {
-        return "";
+        final StringBuilder builder = new StringBuilder();
+        for (int stage = 0; stage < stageLatency.length; stage++) {
+            stageLatency[stage].appendSummary(builder, STAGE_NAMES[stage]);
+        }
+        return builder.toString();
+    }
+
+    /** Latency of one of the {@code STAGE_} stages per recognized image, since creation or clear. */
+    public LatencyHistogram getStageHistogram(int stage) {
+        return stageLatency[stage];
+    }
+
+    // Called once per recognized image, on the thread running the interpreter.
+    private void recognitionDone() {
+        if (logStats && ++recognitions % STAT_LOG_INTERVAL == 0) {
+            LOGGER.i("Latency after %d images, p50 / p90 / p99 / max ms:\n%s",
+                    recognitions, getStatString());
+        }
+    }
+
+    /**
+     * Recognizes {@code bitmap} on this classifier's own worker thread; see {@link AsyncRecognizer}
+     * for how requests are queued, limited and dropped. The bitmap must not be changed until the
+     * request completes.
+     *
+     * @param callback receives the results on the worker thread unless the request is cancelled or
+     *     fails; may be null.
+     */
+    public Future<List<Recognition>> recognizeImageAsync(
+            Bitmap bitmap, AsyncRecognizer.RecognitionCallback callback) {
+        return asyncRecognizer.submit(bitmap, callback);
+    }
+
+    /** Requests allowed to be running or waiting at once in {@link #recognizeImageAsync}. */
+    public void setMaxInFlight(int maxInFlight) {
+        asyncRecognizer.setMaxInFlight(maxInFlight);
     }
 
+    public AsyncRecognizer.Stats getAsyncStats() {
+        return asyncRecognizer.getStats();
+    }
+
+    /**
+     * Stops the async worker, after any running request, and releases the interpreter. If the
+     * request does not finish in time the interpreter is left open, leaked rather than freed under
+     * the running inference.
+     */
     @Override
     public void close() {
+        if (!asyncRecognizer.close()) {
+            LOGGER.w("Async recognition did not stop, not closing the interpreter");
+            return;
+        }
+        if (tfLite != null) {
+            tfLite.close();
+            tfLite = null;
+        }
     }
 
     @Override
@@ -114,203 +230,298 @@ public class YoloV4Classifier implements Classifier {
 
     }
 
+    /** Whether the model takes uint8 rather than float input. */
+    public boolean isQuantized() {
+        return isModelQuantized;
+    }
+
+    /** Side length in pixels of the square image the model expects. */
+    public int getInputSize() {
+        return inputSize;
+    }
+
+    /**
+     * Returns the class id of {@code label}, compared case-insensitively, or -1 if the model has no
+     * such label.
+     */
+    public int getLabelIndex(String label) {
+        for (int i = 0; i < labels.size(); i++) {
+            if (labels.get(i).equalsIgnoreCase(label)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Restricts detection to the given labels. Only their score columns are read from the model
+     * output and all other classes are dropped before boxes are built, which for a person-only
+     * deployment cuts the per-anchor work from every class to one. Unknown labels are ignored;
+     * call with no labels to detect every class again.
+     *
+     * @return the class ids detection is now restricted to.
+     */
+    public int[] setTargetLabels(String... targetLabels) {
+        int[] classIds = new int[targetLabels.length];
+        int count = 0;
+        for (String label : targetLabels) {
+            int classId = getLabelIndex(label);
+            if (classId < 0 || classId >= decoder.getNumClasses()) {
+                LOGGER.w("Ignoring unknown target label %s", label);
+                continue;
+            }
+            classIds[count++] = classId;
+        }
+        classIds = Arrays.copyOf(classIds, count);
+        decoder.setTargetClasses(classIds);
+        if (batchDecoder != null) {
+            batchDecoder.setTargetClasses(classIds);
+        }
+        return classIds;
+    }
+
     @Override
     public float getObjThresh() {
         return MainActivity.MINIMUM_CONFIDENCE_TF_OD_API;
     }
 
     protected ArrayList<Recognition> nms(ArrayList<Recognition> list) {
-        ArrayList<Recognition> nmsList = new ArrayList<>();
-
-        for (int k = 0; k < labels.size(); k++) {
-            PriorityQueue<Recognition> pq =
-                    new PriorityQueue<>(
-                            50,
-                            new Comparator<Recognition>() {
-                                @Override
-                                public int compare(final Recognition lhs, final Recognition rhs) {
-                                    return Float.compare(rhs.getConfidence(), lhs.getConfidence());
-                                }
-                            });
-
-            for (int i = 0; i < list.size(); ++i) {
-                if (list.get(i).getDetectedClass() == k) {
-                    pq.add(list.get(i));
-                }
+        nmsCandidates.clear();
+        for (int i = 0; i < list.size(); ++i) {
+            final Recognition recognition = list.get(i);
+            final int detectedClass = recognition.getDetectedClass();
+            if (detectedClass < 0 || detectedClass >= labels.size()) {
+                continue;
             }
+            final RectF location = recognition.getLocation();
+            nmsCandidates.add(location.left, location.top, location.right, location.bottom,
+                    recognition.getConfidence(), detectedClass, i);
+        }
 
-            while (pq.size() > 0) {
-                Recognition[] a = new Recognition[pq.size()];
-                Recognition[] detections = pq.toArray(a);
-                Recognition max = detections[0];
-                nmsList.add(max);
-                pq.clear();
-
-                for (int j = 1; j < detections.length; j++) {
-                    Recognition detection = detections[j];
-                    RectF b = detection.getLocation();
-                    if (box_iou(max.getLocation(), b) < mNmsThresh) {
-                        pq.add(detection);
-                    }
-                }
+        final int keptCount = runNms(nmsCandidates);
+        ArrayList<Recognition> nmsList = new ArrayList<>(keptCount);
+        for (int k = 0; k < keptCount; k++) {
+            final Recognition recognition = list.get(nmsCandidates.getAnchor(nmsEngine.getKept(k)));
+            final float score = nmsEngine.getKeptScore(k);
+            if (score == recognition.getConfidence()) {
+                nmsList.add(recognition);
+            } else {
+                // Soft-NMS decayed the score
+                nmsList.add(new Recognition(recognition.getId(), recognition.getTitle(), score,
+                        recognition.getLocation(), recognition.getDetectedClass()));
             }
         }
         return nmsList;
     }
 
-    protected float box_iou(RectF a, RectF b) {
-        return box_intersection(a, b) / box_union(a, b);
+    private int runNms(CandidateBuffer buffer) {
+        nmsEngine.setMethod(nmsMethod);
+        nmsEngine.setIouThreshold(mNmsThresh);
+        nmsEngine.setScoreThreshold(getObjThresh());
+        return nmsEngine.run(buffer);
     }
 
-    protected float box_intersection(RectF a, RectF b) {
-        float w = overlap((a.left + a.right) / 2, a.right - a.left, (b.left + b.right) / 2, b.right - b.left);
-        float h = overlap((a.top + a.bottom) / 2, a.bottom - a.top, (b.top + b.bottom) / 2, b.bottom - b.top);
-        if (w < 0 || h < 0) return 0;
-        return w * h;
+    public NmsEngine.Method getNmsMethod() {
+        return nmsMethod;
     }
 
-    protected float box_union(RectF a, RectF b) {
-        float i = box_intersection(a, b);
-        return (a.right - a.left) * (a.bottom - a.top) + (b.right - b.left) * (b.bottom - b.top) - i;
+    /**
+     * Selects how overlapping boxes are suppressed. HARD is the classic IoU cut-off; DIOU and the
+     * soft methods keep more of the people standing shoulder to shoulder in a dense crowd.
+     */
+    public void setNmsMethod(NmsEngine.Method method) {
+        nmsMethod = method;
     }
 
-    protected float overlap(float x1, float w1, float x2, float w2) {
-        float l1 = x1 - w1 / 2;
-        float l2 = x2 - w2 / 2;
-        float left = l1 > l2 ? l1 : l2;
-        float r1 = x1 + w1 / 2;
-        float r2 = x2 + w2 / 2;
-        float right = r1 < r2 ? r1 : r2;
-        return right - left;
+    public ByteBuffer convertBitmapToByteBuffer(Bitmap bitmap) {
+        bitmap.getPixels(intValues, 0, inputSize, 0, 0, inputSize, inputSize);
+        return preprocessor.load(intValues);
     }
 
-    public ByteBuffer convertBitmapToByteBuffer(Bitmap bitmap) {
-        ByteBuffer byteBuffer = ByteBuffer.allocateDirect(4 * INPUT_SIZE * INPUT_SIZE * 3);
-        byteBuffer.order(ByteOrder.nativeOrder());
-        int[] intValues = new int[INPUT_SIZE * INPUT_SIZE];
-        bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
-        int pixel = 0;
-        for (int i = 0; i < INPUT_SIZE; ++i) {
-            for (int j = 0; j < INPUT_SIZE; ++j) {
-                final int val = intValues[pixel++];
-                byteBuffer.putFloat(((val >> 16) & 0xFF) / 255.0f);
-                byteBuffer.putFloat(((val >> 8) & 0xFF) / 255.0f);
-                byteBuffer.putFloat((val & 0xFF) / 255.0f);
-            }
+    private void runInference(ByteBuffer byteBuffer) {
+        resizeInterpreter(1);
+        Object[] inputArray = {byteBuffer};
+        final long startNanos = System.nanoTime();
+        tfLite.runForMultipleInputsOutputs(inputArray, decoder.prepareOutputs());
+        stageLatency[STAGE_INTERPRETER].record(System.nanoTime() - startNanos);
+    }
+
+    // The interpreter keeps its input shape between runs, so it is only resized when the batch
+    // size changes; the tensors are reallocated on the next run.
+    private void resizeInterpreter(int images) {
+        if (images == interpreterBatch) {
+            return;
         }
-        return byteBuffer;
+        final int[] shape = inputShape.clone();
+        shape[0] = images;
+        tfLite.resizeInput(0, shape);
+        interpreterBatch = images;
     }
 
-    private ArrayList<Recognition> getDetectionsForFull(ByteBuffer byteBuffer, Bitmap bitmap) {
-        ArrayList<Recognition> detections = new ArrayList<>();
-        Map<Integer, Object> outputMap = new HashMap<>();
-        outputMap.put(0, new float[1][10647][4]);
-        outputMap.put(1, new float[1][10647][labels.size()]);
+    private ArrayList<Recognition> getDetections(int width, int height) {
+        return getDetections(decoder, 0, width, height);
+    }
 
-        Object[] inputArray = {byteBuffer};
-        tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
-
-        int gridWidth = 10647;
-        float[][][] bboxes = (float[][][]) outputMap.get(0);
-        float[][][] outScore = (float[][][]) outputMap.get(1);
-
-        for (int i = 0; i < gridWidth; i++) {
-            float maxClass = 0;
-            int detectedClass = -1;
-            final float[] classes = new float[labels.size()];
-            for (int c = 0; c < labels.size(); c++) {
-                classes[c] = outScore[0][i][c];
-            }
-            for (int c = 0; c < labels.size(); c++) {
-                if (classes[c] > maxClass) {
-                    detectedClass = c;
-                    maxClass = classes[c];
-                }
-            }
-            final float score = maxClass;
-            if (score > getObjThresh()) {
-                final float xPos = bboxes[0][i][0];
-                final float yPos = bboxes[0][i][1];
-                final float w = bboxes[0][i][2];
-                final float h = bboxes[0][i][3];
-                final RectF rectF = new RectF(
-                        Math.max(0, xPos - w / 2),
-                        Math.max(0, yPos - h / 2),
-                        Math.min(bitmap.getWidth() - 1, xPos + w / 2),
-                        Math.min(bitmap.getHeight() - 1, yPos + h / 2));
-                detections.add(new Recognition("" + i, labels.get(detectedClass), score, rectF, detectedClass));
-            }
+    // Decodes one image of the last inference into candidates, suppresses overlaps and builds
+    // Recognition objects for the survivors only.
+    private ArrayList<Recognition> getDetections(YoloOutputDecoder decoder, int image, int width, int height) {
+        final long startNanos = System.nanoTime();
+        decoder.decode(image, getObjThresh(), width - 1, height - 1, candidates);
+        final long decodedNanos = System.nanoTime();
+        stageLatency[STAGE_DECODE].record(decodedNanos - startNanos);
+
+        final int keptCount = runNms(candidates);
+        ArrayList<Recognition> detections = new ArrayList<>(keptCount);
+        for (int k = 0; k < keptCount; k++) {
+            final int i = nmsEngine.getKept(k);
+            final int detectedClass = candidates.getDetectedClass(i);
+            final RectF rectF = new RectF(
+                    candidates.getLeft(i),
+                    candidates.getTop(i),
+                    candidates.getRight(i),
+                    candidates.getBottom(i));
+            detections.add(new Recognition("" + candidates.getAnchor(i), getLabel(detectedClass),
+                    nmsEngine.getKeptScore(k), rectF, detectedClass));
         }
+        stageLatency[STAGE_NMS].record(System.nanoTime() - decodedNanos);
+        recognitionDone();
         return detections;
     }
 
-    private ArrayList<Recognition> getDetectionsForTiny(ByteBuffer byteBuffer, Bitmap bitmap) {
-        ArrayList<Recognition> detections = new ArrayList<>();
-        Map<Integer, Object> outputMap = new HashMap<>();
-        outputMap.put(0, new float[1][2535][4]);
-        outputMap.put(1, new float[1][2535][labels.size()]);
+    private String getLabel(int detectedClass) {
+        return detectedClass < labels.size() ? labels.get(detectedClass) : String.valueOf(detectedClass);
+    }
 
-        Object[] inputArray = {byteBuffer};
-        tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
-
-        int gridWidth = 2535;
-        float[][][] bboxes = (float[][][]) outputMap.get(0);
-        float[][][] outScore = (float[][][]) outputMap.get(1);
-
-        for (int i = 0; i < gridWidth; i++) {
-            float maxClass = 0;
-            int detectedClass = -1;
-            final float[] classes = new float[labels.size()];
-            for (int c = 0; c < labels.size(); c++) {
-                classes[c] = outScore[0][i][c];
+    public ArrayList<Recognition> recognizeImage(Bitmap bitmap) {
+        final long startNanos = System.nanoTime();
+        ByteBuffer byteBuffer = convertBitmapToByteBuffer(bitmap);
+        stageLatency[STAGE_PREPROCESS].record(System.nanoTime() - startNanos);
+        runInference(byteBuffer);
+
+        ArrayList<Recognition> recognitions = getDetections(bitmap.getWidth(), bitmap.getHeight());
+        LOGGER.v("Number of persons detected: %d", countPersons(recognitions));
+
+        return recognitions;
+    }
+
+    /**
+     * Number of images {@link #recognizeImages(List)} runs through the model at once, from 1 to
+     * {@value #MAX_BATCH_SIZE}. Larger batches amortize the per-run overhead on some hardware and
+     * only cost memory on others; compare {@link #getBatchStatString()} to choose.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException(
+                    "Batch size must be in [1, " + MAX_BATCH_SIZE + "], got " + batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Runs detection on a set of images, {@link #getBatchSize()} at a time, e.g. a folder of photos
+     * from a search. Like {@link #recognizeImage(Bitmap)}, each bitmap must be at least
+     * {@link #getInputSize()} square.
+     *
+     * <p>The interpreter input is resized to the batch, the images are packed into one reused
+     * buffer and the outputs of the whole batch are decoded together. If the model or delegate
+     * cannot run batches, the images are recognized one at a time from then on.
+     *
+     * @return the recognitions of each image, in the order of {@code bitmaps}.
+     */
+    public List<List<Recognition>> recognizeImages(List<Bitmap> bitmaps) {
+        final List<List<Recognition>> results = new ArrayList<>(bitmaps.size());
+        final int maxBatch = batchingSupported ? batchSize : 1;
+        if (maxBatch == 1) {
+            for (Bitmap bitmap : bitmaps) {
+                final long startNanos = System.nanoTime();
+                results.add(recognizeImage(bitmap));
+                recordBatch(1, System.nanoTime() - startNanos);
             }
-            for (int c = 0; c < labels.size(); c++) {
-                if (classes[c] > maxClass) {
-                    detectedClass = c;
-                    maxClass = classes[c];
-                }
+            return results;
+        }
+        if (batchPreprocessor == null || batchPreprocessor.getBatchSize() < maxBatch) {
+            batchPreprocessor = new InputPreprocessor(inputSize, isModelQuantized, maxBatch);
+            batchDecoder = decoder.withBatchSize(maxBatch);
+        }
+
+        for (int first = 0; first < bitmaps.size(); first += maxBatch) {
+            final int images = Math.min(maxBatch, bitmaps.size() - first);
+            final long startNanos = System.nanoTime();
+            for (int i = 0; i < images; i++) {
+                final long imageStartNanos = System.nanoTime();
+                bitmaps.get(first + i).getPixels(intValues, 0, inputSize, 0, 0, inputSize, inputSize);
+                batchPreprocessor.load(intValues, i);
+                stageLatency[STAGE_PREPROCESS].record(System.nanoTime() - imageStartNanos);
             }
-            final float score = maxClass;
-            if (score > getObjThresh()) {
-                final float xPos = bboxes[0][i][0];
-                final float yPos = bboxes[0][i][1];
-                final float w = bboxes[0][i][2];
-                final float h = bboxes[0][i][3];
-                final RectF rectF = new RectF(
-                        Math.max(0, xPos - w / 2),
-                        Math.max(0, yPos - h / 2),
-                        Math.min(bitmap.getWidth() - 1, xPos + w / 2),
-                        Math.min(bitmap.getHeight() - 1, yPos + h / 2));
-                detections.add(new Recognition("" + i, labels.get(detectedClass), score, rectF, detectedClass));
+            try {
+                resizeInterpreter(images);
+                Object[] inputArray = {batchPreprocessor.getBatch(images)};
+                final long runStartNanos = System.nanoTime();
+                tfLite.runForMultipleInputsOutputs(inputArray, batchDecoder.prepareOutputs());
+                // Per image, like the other stages.
+                stageLatency[STAGE_INTERPRETER].record((System.nanoTime() - runStartNanos) / images);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                LOGGER.w(e, "Batched inference failed, recognizing images one at a time");
+                batchingSupported = false;
+                results.addAll(recognizeImages(bitmaps.subList(first, bitmaps.size())));
+                return results;
             }
+            for (int i = 0; i < images; i++) {
+                final Bitmap bitmap = bitmaps.get(first + i);
+                results.add(getDetections(batchDecoder, i, bitmap.getWidth(), bitmap.getHeight()));
+            }
+            recordBatch(images, System.nanoTime() - startNanos);
         }
-        return detections;
+        return results;
     }
 
-    public ArrayList<Recognition> recognizeImage(Bitmap bitmap) {
-        ByteBuffer byteBuffer = convertBitmapToByteBuffer(bitmap);
-        ArrayList<Recognition> detections;
+    private synchronized void recordBatch(int images, long nanos) {
+        batchImages[images] += images;
+        batchNanos[images] += nanos;
+    }
 
-        if (isTiny) {
-            detections = getDetectionsForTiny(byteBuffer, bitmap);
-        } else {
-            detections = getDetectionsForFull(byteBuffer, bitmap);
+    /** Measured throughput of {@link #recognizeImages(List)} per batch size, e.g. "1: 3.1 img/s". */
+    public synchronized String getBatchStatString() {
+        final StringBuilder builder = new StringBuilder();
+        for (int size = 1; size <= MAX_BATCH_SIZE; size++) {
+            if (batchNanos[size] == 0) {
+                continue;
+            }
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(String.format(Locale.US, "%d: %.1f img/s", size, batchImages[size] * 1e9 / batchNanos[size]));
         }
+        return builder.toString();
+    }
 
-        ArrayList<Recognition> recognitions = nms(detections);
-
-        // Count detected persons
-        int personCount = countPersons(recognitions);
-        Log.i("YoloV4Classifier", "Number of persons detected: " + personCount);
+    /**
+     * Runs detection on an input tensor that is already in the model's format, e.g. one filled by
+     * {@link org.tensorflow.lite.examples.detection.env.YuvToTensorConverter}. Boxes are in input
+     * pixel coordinates, as for a {@link #getInputSize()} square bitmap.
+     *
+     * @throws IllegalArgumentException if the buffer does not have the input tensor's size.
+     */
+    public ArrayList<Recognition> recognizeTensor(ByteBuffer input) {
+        if (input.capacity() != preprocessor.getBuffer().capacity()) {
+            throw new IllegalArgumentException("Input buffer has " + input.capacity()
+                    + " bytes, the model takes " + preprocessor.getBuffer().capacity());
+        }
+        input.rewind();
+        runInference(input);
 
-        return recognitions;
+        return getDetections(inputSize, inputSize);
     }
 
     // Count the number of people in the recognitions
     public int countPersons(ArrayList<Recognition> recognitions) {
         int count = 0;
         for (Recognition recognition : recognitions) {
-            if (recognition.getTitle().equals("person")) {
+            if (recognition.getDetectedClass() == personClass) {
                 count++;
             }
         }
@@ -0,0 +1,190 @@
+package org.tensorflow.lite.examples.detection.tracking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Colour histogram embedding of a person box, for telling people apart without another model.
+ *
+ * <p>The box is split into an upper and a lower half, roughly clothing above and below the waist,
+ * and each half gets a histogram of {@link #HUE_BINS} hues by {@link #SATURATION_BINS} saturations
+ * plus {@link #GRAY_BINS} brightness bins for unsaturated pixels. Only the middle of the box is
+ * sampled, where the person rather than the background is, on a grid of at most {@link
+ * #SAMPLES_PER_AXIS} points per axis, so the cost does not depend on the box size. Each half is
+ * normalized and square-rooted, so the dot product of two halves is their Bhattacharyya
+ * coefficient, and embeddings compare with {@link #similarity}.
+ */
+public final class AppearanceEmbedder {
+  static final int HUE_BINS = 8;
+  static final int SATURATION_BINS = 3;
+  static final int GRAY_BINS = 4;
+  private static final int HALF_DIMS = HUE_BINS * SATURATION_BINS + GRAY_BINS;
+  /** Length of an embedding. */
+  public static final int DIMS = 2 * HALF_DIMS;
+
+  static final int SAMPLES_PER_AXIS = 12;
+  // Fraction of the box width sampled, centered, and of the height, from the top.
+  private static final float WIDTH_FRACTION = 0.5f;
+  private static final float TOP_FRACTION = 0.1f;
+  private static final float BOTTOM_FRACTION = 0.9f;
+  // Below this saturation or brightness the hue is noise.
+  private static final float MIN_SATURATION = 0.2f;
+  private static final int MIN_BRIGHTNESS = 40;
+
+  private final int[] rgb = new int[3];
+
+  /** Each embedder keeps scratch space, so use one per thread. */
+  public AppearanceEmbedder() {}
+
+  /**
+   * Embeds a box of a model input tensor.
+   *
+   * @param tensor square RGB input, {@code size} by {@code size}, floats in [0, 1] or uint8.
+   */
+  public void embed(
+      final ByteBuffer tensor,
+      final boolean quantized,
+      final int size,
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final float[] out) {
+    embed(null, tensor, quantized, size, size, left, top, right, bottom, out);
+  }
+
+  /** Embeds a box of ARGB pixels, {@code width} by {@code height}. */
+  public void embed(
+      final int[] argb,
+      final int width,
+      final int height,
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final float[] out) {
+    embed(argb, null, false, width, height, left, top, right, bottom, out);
+  }
+
+  /** Cosine similarity of two embeddings, in [0, 1]; 0 if either is empty. */
+  public static float similarity(final float[] a, final int aOffset, final float[] b, final int bOffset) {
+    float dot = 0;
+    float normA = 0;
+    float normB = 0;
+    for (int i = 0; i < DIMS; ++i) {
+      final float x = a[aOffset + i];
+      final float y = b[bOffset + i];
+      dot += x * y;
+      normA += x * x;
+      normB += y * y;
+    }
+    if (normA == 0 || normB == 0) {
+      return 0;
+    }
+    return dot / (float) Math.sqrt(normA * normB);
+  }
+
+  private void embed(
+      final int[] argb,
+      final ByteBuffer tensor,
+      final boolean quantized,
+      final int width,
+      final int height,
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final float[] out) {
+    final float boxWidth = right - left;
+    final float x0 = left + boxWidth * (1 - WIDTH_FRACTION) / 2;
+    final float x1 = x0 + boxWidth * WIDTH_FRACTION;
+    final float y0 = top + (bottom - top) * TOP_FRACTION;
+    final float y1 = top + (bottom - top) * BOTTOM_FRACTION;
+    final float yMid = (y0 + y1) / 2;
+    histogram(argb, tensor, quantized, width, height, x0, y0, x1, yMid, out, 0);
+    histogram(argb, tensor, quantized, width, height, x0, yMid, x1, y1, out, HALF_DIMS);
+  }
+
+  private void histogram(
+      final int[] argb,
+      final ByteBuffer tensor,
+      final boolean quantized,
+      final int width,
+      final int height,
+      final float x0,
+      final float y0,
+      final float x1,
+      final float y1,
+      final float[] out,
+      final int offset) {
+    for (int i = offset; i < offset + HALF_DIMS; ++i) {
+      out[i] = 0;
+    }
+    final int left = clamp((int) x0, width);
+    final int right = clamp((int) Math.ceil(x1) - 1, width);
+    final int top = clamp((int) y0, height);
+    final int bottom = clamp((int) Math.ceil(y1) - 1, height);
+    final int stepX = Math.max(1, (right - left + SAMPLES_PER_AXIS) / SAMPLES_PER_AXIS);
+    final int stepY = Math.max(1, (bottom - top + SAMPLES_PER_AXIS) / SAMPLES_PER_AXIS);
+
+    int samples = 0;
+    for (int y = top; y <= bottom; y += stepY) {
+      for (int x = left; x <= right; x += stepX) {
+        final int p = y * width + x;
+        if (argb != null) {
+          final int pixel = argb[p];
+          rgb[0] = (pixel >> 16) & 0xff;
+          rgb[1] = (pixel >> 8) & 0xff;
+          rgb[2] = pixel & 0xff;
+        } else if (quantized) {
+          rgb[0] = 0xff & tensor.get(3 * p);
+          rgb[1] = 0xff & tensor.get(3 * p + 1);
+          rgb[2] = 0xff & tensor.get(3 * p + 2);
+        } else {
+          rgb[0] = (int) (tensor.getFloat(12 * p) * 255 + 0.5f);
+          rgb[1] = (int) (tensor.getFloat(12 * p + 4) * 255 + 0.5f);
+          rgb[2] = (int) (tensor.getFloat(12 * p + 8) * 255 + 0.5f);
+        }
+        ++out[offset + bin(rgb[0], rgb[1], rgb[2])];
+        ++samples;
+      }
+    }
+    if (samples == 0) {
+      return;
+    }
+    for (int i = offset; i < offset + HALF_DIMS; ++i) {
+      out[i] = (float) Math.sqrt(out[i] / samples);
+    }
+  }
+
+  // Hue-saturation bin, or a brightness bin after them for pixels without a reliable hue.
+  private static int bin(final int r, final int g, final int b) {
+    final int max = Math.max(r, Math.max(g, b));
+    final int min = Math.min(r, Math.min(g, b));
+    final int delta = max - min;
+    final float saturation = max == 0 ? 0 : delta / (float) max;
+    if (saturation < MIN_SATURATION || max < MIN_BRIGHTNESS) {
+      return HUE_BINS * SATURATION_BINS + Math.min(GRAY_BINS - 1, max * GRAY_BINS / 256);
+    }
+    float hue;
+    if (max == r) {
+      hue = (g - b) / (float) delta;
+    } else if (max == g) {
+      hue = 2 + (b - r) / (float) delta;
+    } else {
+      hue = 4 + (r - g) / (float) delta;
+    }
+    if (hue < 0) {
+      hue += 6;
+    }
+    final int hueBin = Math.min(HUE_BINS - 1, (int) (hue * HUE_BINS / 6));
+    final int saturationBin =
+        Math.min(
+            SATURATION_BINS - 1,
+            (int) ((saturation - MIN_SATURATION) / (1 - MIN_SATURATION) * SATURATION_BINS));
+    return hueBin * SATURATION_BINS + saturationBin;
+  }
+
+  private static int clamp(final int value, final int size) {
+    return value < 0 ? 0 : (value >= size ? size - 1 : value);
+  }
+}
@@ -0,0 +1,192 @@
+package org.tensorflow.lite.examples.detection.tracking;
+
+/**
+ * Sparse optical flow on luminance thumbnails by block matching.
+ *
+ * <p>The motion of a box is estimated from a 3x3 grid of points inside it. Around each point a
+ * {@link #BLOCK_SIZE} square block of the previous image is searched for in the current one,
+ * exhaustively within the given radius, by least sum of absolute differences; a parabola through
+ * the neighbouring sums refines the match to a fraction of a pixel. Blocks too flat to match
+ * reliably are skipped, and the box moves by the median displacement of the rest, which ignores a
+ * minority of points that landed on the background or on a neighbour.
+ *
+ * <p>Scratch space is reused across calls. Not thread-safe.
+ */
+public final class LumaFlow {
+  static final int BLOCK_SIZE = 8;
+  private static final int GRID = 3;
+  private static final int MIN_POINTS = 2;
+  // Mean absolute deviation from the block mean, in grey levels, below which a block is too flat.
+  private static final int MIN_TEXTURE = 3;
+
+  private final float[] pointDx = new float[GRID * GRID];
+  private final float[] pointDy = new float[GRID * GRID];
+
+  /**
+   * Estimates how far the content of a box moved between two images of the same size.
+   *
+   * @param previous image the box was located in, {@code width} by {@code height}, no padding.
+   * @param current image to find the box in.
+   * @param searchRadius largest displacement considered along each axis, in pixels.
+   * @param out receives the displacement, x then y, if one was found.
+   * @return whether enough of the box was textured to estimate a displacement.
+   */
+  public boolean estimate(
+      final byte[] previous,
+      final byte[] current,
+      final int width,
+      final int height,
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final int searchRadius,
+      final float[] out) {
+    int points = 0;
+    for (int gy = 1; gy <= GRID; ++gy) {
+      for (int gx = 1; gx <= GRID; ++gx) {
+        final int cx = Math.round(left + (right - left) * gx / (GRID + 1));
+        final int cy = Math.round(top + (bottom - top) * gy / (GRID + 1));
+        if (matchBlock(
+            previous,
+            current,
+            width,
+            height,
+            cx - BLOCK_SIZE / 2,
+            cy - BLOCK_SIZE / 2,
+            searchRadius,
+            points)) {
+          ++points;
+        }
+      }
+    }
+    if (points < MIN_POINTS) {
+      return false;
+    }
+    out[0] = median(pointDx, points);
+    out[1] = median(pointDy, points);
+    return true;
+  }
+
+  private boolean matchBlock(
+      final byte[] previous,
+      final byte[] current,
+      final int width,
+      final int height,
+      final int bx,
+      final int by,
+      final int searchRadius,
+      final int point) {
+    if (bx < 0 || by < 0 || bx + BLOCK_SIZE > width || by + BLOCK_SIZE > height) {
+      return false;
+    }
+    if (texture(previous, width, bx, by) < MIN_TEXTURE * BLOCK_SIZE * BLOCK_SIZE) {
+      return false;
+    }
+    final int minDx = Math.max(-searchRadius, -bx);
+    final int maxDx = Math.min(searchRadius, width - BLOCK_SIZE - bx);
+    final int minDy = Math.max(-searchRadius, -by);
+    final int maxDy = Math.min(searchRadius, height - BLOCK_SIZE - by);
+
+    int bestSad = Integer.MAX_VALUE;
+    int bestDx = 0;
+    int bestDy = 0;
+    for (int dy = minDy; dy <= maxDy; ++dy) {
+      for (int dx = minDx; dx <= maxDx; ++dx) {
+        final int sad = sad(previous, current, width, bx, by, dx, dy, bestSad);
+        // Ties go to the smaller displacement, so a static block stays put.
+        if (sad < bestSad
+            || (sad == bestSad && Math.abs(dx) + Math.abs(dy) < Math.abs(bestDx) + Math.abs(bestDy))) {
+          bestSad = sad;
+          bestDx = dx;
+          bestDy = dy;
+        }
+      }
+    }
+
+    float subDx = 0;
+    if (bestDx > minDx && bestDx < maxDx) {
+      subDx =
+          subPixel(
+              sad(previous, current, width, bx, by, bestDx - 1, bestDy, Integer.MAX_VALUE),
+              bestSad,
+              sad(previous, current, width, bx, by, bestDx + 1, bestDy, Integer.MAX_VALUE));
+    }
+    float subDy = 0;
+    if (bestDy > minDy && bestDy < maxDy) {
+      subDy =
+          subPixel(
+              sad(previous, current, width, bx, by, bestDx, bestDy - 1, Integer.MAX_VALUE),
+              bestSad,
+              sad(previous, current, width, bx, by, bestDx, bestDy + 1, Integer.MAX_VALUE));
+    }
+    pointDx[point] = bestDx + subDx;
+    pointDy[point] = bestDy + subDy;
+    return true;
+  }
+
+  // Sum of absolute differences, abandoned once it exceeds the best so far.
+  private static int sad(
+      final byte[] previous,
+      final byte[] current,
+      final int width,
+      final int bx,
+      final int by,
+      final int dx,
+      final int dy,
+      final int limit) {
+    int sum = 0;
+    for (int y = 0; y < BLOCK_SIZE; ++y) {
+      final int p = (by + y) * width + bx;
+      final int c = (by + y + dy) * width + bx + dx;
+      for (int x = 0; x < BLOCK_SIZE; ++x) {
+        sum += Math.abs((0xff & previous[p + x]) - (0xff & current[c + x]));
+      }
+      if (sum > limit) {
+        return sum;
+      }
+    }
+    return sum;
+  }
+
+  private static int texture(final byte[] image, final int width, final int bx, final int by) {
+    int total = 0;
+    for (int y = 0; y < BLOCK_SIZE; ++y) {
+      for (int x = 0; x < BLOCK_SIZE; ++x) {
+        total += 0xff & image[(by + y) * width + bx + x];
+      }
+    }
+    final int mean = total / (BLOCK_SIZE * BLOCK_SIZE);
+    int deviation = 0;
+    for (int y = 0; y < BLOCK_SIZE; ++y) {
+      for (int x = 0; x < BLOCK_SIZE; ++x) {
+        deviation += Math.abs((0xff & image[(by + y) * width + bx + x]) - mean);
+      }
+    }
+    return deviation;
+  }
+
+  // Vertex of the parabola through three equally spaced costs, relative to the middle one.
+  private static float subPixel(final int before, final int best, final int after) {
+    final int curvature = before - 2 * best + after;
+    if (curvature <= 0) {
+      return 0;
+    }
+    final float offset = (before - after) / (2f * curvature);
+    return Math.max(-0.5f, Math.min(0.5f, offset));
+  }
+
+  // Insertion sort of the first n values; n is at most GRID * GRID.
+  private static float median(final float[] values, final int n) {
+    for (int i = 1; i < n; ++i) {
+      final float value = values[i];
+      int j = i - 1;
+      while (j >= 0 && values[j] > value) {
+        values[j + 1] = values[j];
+        --j;
+      }
+      values[j + 1] = value;
+    }
+    return (n & 1) == 1 ? values[n / 2] : (values[n / 2 - 1] + values[n / 2]) / 2;
+  }
+}
@@ -22,8 +22,11 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.RectF;
 import android.text.TextUtils;
+import android.util.Log;
 import android.util.Pair;
+import android.util.SparseArray;
 import android.util.TypedValue;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -32,10 +35,27 @@ import org.tensorflow.lite.examples.detection.env.ImageUtils;
 import org.tensorflow.lite.examples.detection.env.Logger;
 import org.tensorflow.lite.examples.detection.tflite.Classifier.Recognition;
 
-/** A tracker that handles non-max suppression and matches existing objects to new detections. */
+/**
+ * A tracker that matches existing objects to new detections with a {@link TrackEngine} and draws
+ * the confirmed tracks. Every track keeps its id and color for as long as it lives; colors are
+ * taken from a pool and returned to it when the track is removed.
+ *
+ * <p>Between detections, {@link #propagate} moves the tracks along by the optical flow between
+ * luminance thumbnails of consecutive frames. Detections that come back after later frames have
+ * already been propagated are moved forward onto the newest frame the same way before they are
+ * matched, so the tracks never jump back in time.
+ *
+ * <p>{@link #draw} runs on every invalidate of the overlay, so it allocates nothing once the tracks
+ * exist: the frame-to-canvas matrix is rebuilt only when the canvas size or frame configuration
+ * changes, and each track keeps its label text and measured width until a new detection changes
+ * them.
+ */
 public class MultiBoxTracker {
   private static final float TEXT_SIZE_DIP = 18;
   private static final float MIN_SIZE = 16.0f;
+  // Block search radius in thumbnail pixels per frame elapsed, and its cap.
+  private static final int SEARCH_RADIUS = 4;
+  private static final int MAX_SEARCH_RADIUS = 8;
   private static final int[] COLORS = {
           Color.BLUE,
           Color.RED,
@@ -58,11 +78,30 @@ public class MultiBoxTracker {
   final List<Pair<Float, RectF>> screenRects = new LinkedList<Pair<Float, RectF>>();
   private final Logger logger = new Logger();
   private final Queue<Integer> availableColors = new LinkedList<Integer>();
-  private final List<TrackedRecognition> trackedObjects = new LinkedList<TrackedRecognition>();
+  private final List<TrackedRecognition> trackedObjects = new ArrayList<TrackedRecognition>();
+  private final SparseArray<TrackedRecognition> tracksById = new SparseArray<>();
+  private final TrackEngine trackEngine = new TrackEngine();
+  private final List<Recognition> rectsToTrack = new ArrayList<>();
+  private float[] boxesToTrack = new float[4 * 16];
+  private final LumaFlow lumaFlow = new LumaFlow();
+  private final float[] flowOut = new float[2];
+  private float[] trackFlow = new float[2 * 16];
+  // Thumbnail of the newest frame the tracks have been moved onto.
+  private byte[] referenceLuma;
+  private int referenceWidth;
+  private int referenceHeight;
+  private long referenceTimestamp = -1;
+  private TrackListener trackListener;
+
   private final Paint boxPaint = new Paint();
   private final float textSizePx;
   private final BorderedText borderedText;
+  private final RectF canvasRect = new RectF();
+  private final StringBuilder labelBuilder = new StringBuilder();
   private Matrix frameToCanvasMatrix;
+  // Canvas size frameToCanvasMatrix was built for; -1 when the frame configuration changed since.
+  private int matrixCanvasWidth = -1;
+  private int matrixCanvasHeight = -1;
   private int frameWidth;
   private int frameHeight;
   private int sensorOrientation;
@@ -91,6 +130,8 @@ public class MultiBoxTracker {
     frameWidth = width;
     frameHeight = height;
     this.sensorOrientation = sensorOrientation;
+    trackEngine.setFrameSize(width, height);
+    matrixCanvasWidth = -1;
   }
 
   public synchronized void drawDebug(final Canvas canvas) {
@@ -112,8 +153,65 @@ public class MultiBoxTracker {
   }
 
   public synchronized void trackResults(final List<Recognition> results, final long timestamp) {
-    logger.i("Processing %d results from %d", results.size(), timestamp);
-    processResults(results);
+    logger.v("Processing %d results from %d", results.size(), timestamp);
+    processResults(results, timestamp, null, 0, 0);
+  }
+
+  /**
+   * As {@link #trackResults(List, long)}, with the luminance thumbnail of the frame the results
+   * were detected on, which enables {@link #propagate}.
+   */
+  public synchronized void trackResults(
+          final List<Recognition> results,
+          final long timestamp,
+          final byte[] luma,
+          final int lumaWidth,
+          final int lumaHeight) {
+    logger.v("Processing %d results from %d", results.size(), timestamp);
+    processResults(results, timestamp, luma, lumaWidth, lumaHeight);
+  }
+
+  /**
+   * Moves the tracks onto a frame that was not detected on, by the optical flow from the last
+   * frame they were placed on. Frames older than that are ignored.
+   */
+  public synchronized void propagate(
+          final byte[] luma, final int lumaWidth, final int lumaHeight, final long timestamp) {
+    if (timestamp <= referenceTimestamp) {
+      return;
+    }
+    if (referenceLuma == null || lumaWidth != referenceWidth || lumaHeight != referenceHeight) {
+      setReference(luma, lumaWidth, lumaHeight, timestamp);
+      return;
+    }
+    final int count = trackEngine.getTrackCount();
+    if (trackFlow.length < 2 * count) {
+      trackFlow = new float[2 * count];
+    }
+    final float scale = frameWidth / (float) lumaWidth;
+    final int radius = searchRadius(timestamp - referenceTimestamp);
+    for (int t = 0; t < count; ++t) {
+      if (lumaFlow.estimate(
+              referenceLuma,
+              luma,
+              lumaWidth,
+              lumaHeight,
+              trackEngine.getLeft(t) / scale,
+              trackEngine.getTop(t) / scale,
+              trackEngine.getRight(t) / scale,
+              trackEngine.getBottom(t) / scale,
+              radius,
+              flowOut)) {
+        trackFlow[2 * t] = flowOut[0] * scale;
+        trackFlow[2 * t + 1] = flowOut[1] * scale;
+      } else {
+        trackFlow[2 * t] = Float.NaN;
+        trackFlow[2 * t + 1] = Float.NaN;
+      }
+    }
+    trackEngine.propagate(trackFlow);
+    setReference(luma, lumaWidth, lumaHeight, timestamp);
+    refreshTrackedObjects(false);
   }
 
   private Matrix getFrameToCanvasMatrix() {
@@ -121,11 +219,38 @@ public class MultiBoxTracker {
   }
 
   public synchronized void draw(final Canvas canvas) {
+    updateFrameToCanvasMatrix(canvas.getWidth(), canvas.getHeight());
+    for (int i = 0; i < trackedObjects.size(); ++i) {
+      final TrackedRecognition recognition = trackedObjects.get(i);
+      frameToCanvasMatrix.mapRect(canvasRect, recognition.location);
+      boxPaint.setColor(recognition.color);
+
+      float cornerSize = Math.min(canvasRect.width(), canvasRect.height()) / 8.0f;
+      canvas.drawRoundRect(canvasRect, cornerSize, cornerSize, boxPaint);
+
+      if (recognition.labelDirty) {
+        updateLabel(recognition);
+      }
+      borderedText.drawText(
+              canvas,
+              canvasRect.left + cornerSize,
+              canvasRect.top,
+              recognition.label,
+              recognition.labelLength,
+              recognition.labelWidth,
+              recognition.color);
+    }
+  }
+
+  private void updateFrameToCanvasMatrix(final int canvasWidth, final int canvasHeight) {
+    if (canvasWidth == matrixCanvasWidth && canvasHeight == matrixCanvasHeight) {
+      return;
+    }
     final boolean rotated = sensorOrientation % 180 == 90;
     final float multiplier =
             Math.min(
-                    canvas.getHeight() / (float) (rotated ? frameWidth : frameHeight),
-                    canvas.getWidth() / (float) (rotated ? frameHeight : frameWidth));
+                    canvasHeight / (float) (rotated ? frameWidth : frameHeight),
+                    canvasWidth / (float) (rotated ? frameHeight : frameWidth));
     frameToCanvasMatrix =
             ImageUtils.getTransformationMatrix(
                     frameWidth,
@@ -134,30 +259,53 @@ public class MultiBoxTracker {
                     (int) (multiplier * (rotated ? frameWidth : frameHeight)),
                     sensorOrientation,
                     false);
-    for (final TrackedRecognition recognition : trackedObjects) {
-      final RectF trackedPos = new RectF(recognition.location);
-
-      getFrameToCanvasMatrix().mapRect(trackedPos);
-      boxPaint.setColor(recognition.color);
+    matrixCanvasWidth = canvasWidth;
+    matrixCanvasHeight = canvasHeight;
+  }
 
-      float cornerSize = Math.min(trackedPos.width(), trackedPos.height()) / 8.0f;
-      canvas.drawRoundRect(trackedPos, cornerSize, cornerSize, boxPaint);
+  // Formats "#id title 87.50%" into the track's label buffer, as String.format would, and
+  // measures it.
+  private void updateLabel(final TrackedRecognition recognition) {
+    labelBuilder.setLength(0);
+    labelBuilder.append('#').append(recognition.id).append(' ');
+    if (!TextUtils.isEmpty(recognition.title)) {
+      labelBuilder.append(recognition.title).append(' ');
+    }
+    final int hundredths = Math.round(10000 * recognition.detectionConfidence);
+    final int fraction = hundredths % 100;
+    labelBuilder.append(hundredths / 100).append(fraction < 10 ? ".0" : ".").append(fraction);
+    labelBuilder.append('%');
 
-      final String labelString;
-      labelString =
-              !TextUtils.isEmpty(recognition.title)
-                      ? String.format("%s %.2f", recognition.title, (100 * recognition.detectionConfidence))
-                      : String.format("%.2f", (100 * recognition.detectionConfidence));
-      borderedText.drawText(
-              canvas, trackedPos.left + cornerSize, trackedPos.top, labelString + "%", boxPaint);
+    final int length = labelBuilder.length();
+    if (recognition.label == null || recognition.label.length < length) {
+      recognition.label = new char[length + 8];
     }
+    labelBuilder.getChars(0, length, recognition.label, 0);
+    recognition.labelLength = length;
+    recognition.labelWidth = borderedText.measureText(recognition.label, length);
+    recognition.labelDirty = false;
+  }
+
+  public synchronized void setTrackListener(final TrackListener trackListener) {
+    this.trackListener = trackListener;
+  }
+
+  /** Distinct objects confirmed since the tracker was created. */
+  public synchronized int getDistinctTrackCount() {
+    return trackEngine.getConfirmedTotal();
   }
 
-  private void processResults(final List<Recognition> results) {
-    final List<Pair<Float, Recognition>> rectsToTrack = new LinkedList<>();
+  private void processResults(
+          final List<Recognition> results,
+          final long timestamp,
+          final byte[] luma,
+          final int lumaWidth,
+          final int lumaHeight) {
+    rectsToTrack.clear();
 
     screenRects.clear();
     final Matrix rgbFrameToScreen = new Matrix(getFrameToCanvasMatrix());
+    final boolean verbose = logger.isLoggable(Log.VERBOSE);
 
     for (final Recognition result : results) {
       if (result.getLocation() == null) {
@@ -168,42 +316,174 @@ public class MultiBoxTracker {
       final RectF detectionScreenRect = new RectF();
       rgbFrameToScreen.mapRect(detectionScreenRect, detectionFrameRect);
 
-      logger.v(
-              "Result! Frame: " + result.getLocation() + " mapped to screen:" + detectionScreenRect);
+      if (verbose) {
+        logger.v("Result! Frame: %s mapped to screen: %s", result.getLocation(), detectionScreenRect);
+      }
 
       screenRects.add(new Pair<>(result.getConfidence(), detectionScreenRect));
 
       if (detectionFrameRect.width() < MIN_SIZE || detectionFrameRect.height() < MIN_SIZE) {
-        logger.w("Degenerate rectangle! " + detectionFrameRect);
+        logger.w("Degenerate rectangle! %s", detectionFrameRect);
         continue;
       }
 
       // Only track if confidence is above the threshold
       if (result.getConfidence() >= confidenceThreshold) {
-        rectsToTrack.add(new Pair<>(result.getConfidence(), result));
+        rectsToTrack.add(result);
       }
     }
 
-    trackedObjects.clear();
-    if (rectsToTrack.isEmpty()) {
-      logger.v("Nothing to track, aborting.");
-      return;
+    final int count = rectsToTrack.size();
+    if (boxesToTrack.length < 4 * count) {
+      boxesToTrack = new float[4 * count];
+    }
+    for (int i = 0; i < count; ++i) {
+      final RectF location = rectsToTrack.get(i).getLocation();
+      boxesToTrack[4 * i] = location.left;
+      boxesToTrack[4 * i + 1] = location.top;
+      boxesToTrack[4 * i + 2] = location.right;
+      boxesToTrack[4 * i + 3] = location.bottom;
+    }
+
+    boolean predict = true;
+    if (luma != null) {
+      if (referenceLuma != null
+              && timestamp < referenceTimestamp
+              && lumaWidth == referenceWidth
+              && lumaHeight == referenceHeight) {
+        // The tracks are already on a newer frame; bring the detections there too.
+        moveForward(luma, lumaWidth, lumaHeight, count, searchRadius(referenceTimestamp - timestamp));
+        predict = false;
+      } else {
+        setReference(luma, lumaWidth, lumaHeight, timestamp);
+      }
+    }
+    trackEngine.update(boxesToTrack, count, predict);
+
+    for (int i = 0; i < trackEngine.getRemovedCount(); ++i) {
+      final int id = trackEngine.getRemovedId(i);
+      if (trackListener != null) {
+        trackListener.onTrackRemoved(id);
+      }
+      final TrackedRecognition removed = tracksById.get(id);
+      if (removed != null) {
+        if (removed.pooledColor) {
+          availableColors.add(removed.color);
+        }
+        tracksById.remove(id);
+      }
     }
 
-    for (final Pair<Float, Recognition> potential : rectsToTrack) {
-      final TrackedRecognition trackedRecognition = new TrackedRecognition();
-      trackedRecognition.detectionConfidence = potential.first;
-      trackedRecognition.location = new RectF(potential.second.getLocation());
-      trackedRecognition.title = potential.second.getTitle();
-      trackedRecognition.color = COLORS[trackedObjects.size() % COLORS.length]; // Cycle through colors for multiple objects
+    refreshTrackedObjects(true);
+  }
+
+  // Shifts each box in boxesToTrack by the flow from the given thumbnail to the reference one.
+  private void moveForward(
+          final byte[] luma, final int lumaWidth, final int lumaHeight, final int count, final int radius) {
+    final float scale = frameWidth / (float) lumaWidth;
+    for (int i = 0; i < count; ++i) {
+      if (lumaFlow.estimate(
+              luma,
+              referenceLuma,
+              lumaWidth,
+              lumaHeight,
+              boxesToTrack[4 * i] / scale,
+              boxesToTrack[4 * i + 1] / scale,
+              boxesToTrack[4 * i + 2] / scale,
+              boxesToTrack[4 * i + 3] / scale,
+              radius,
+              flowOut)) {
+        final float dx = flowOut[0] * scale;
+        final float dy = flowOut[1] * scale;
+        boxesToTrack[4 * i] += dx;
+        boxesToTrack[4 * i + 1] += dy;
+        boxesToTrack[4 * i + 2] += dx;
+        boxesToTrack[4 * i + 3] += dy;
+      }
+    }
+  }
+
+  private void setReference(
+          final byte[] luma, final int lumaWidth, final int lumaHeight, final long timestamp) {
+    if (referenceLuma == null || referenceLuma.length != luma.length) {
+      referenceLuma = new byte[luma.length];
+    }
+    System.arraycopy(luma, 0, referenceLuma, 0, luma.length);
+    referenceWidth = lumaWidth;
+    referenceHeight = lumaHeight;
+    referenceTimestamp = timestamp;
+  }
+
+  private static int searchRadius(final long framesElapsed) {
+    return (int) Math.min(MAX_SEARCH_RADIUS, SEARCH_RADIUS * Math.max(1, framesElapsed));
+  }
+
+  /**
+   * Rebuilds the drawn objects from the confirmed tracks, taking titles and confidences from the
+   * matched detections if {@code fromDetections}.
+   */
+  private void refreshTrackedObjects(final boolean fromDetections) {
+    trackedObjects.clear();
+    for (int t = 0; t < trackEngine.getTrackCount(); ++t) {
+      if (!trackEngine.isConfirmed(t)) {
+        continue;
+      }
+      final int id = trackEngine.getId(t);
+      TrackedRecognition trackedRecognition = tracksById.get(id);
+      if (trackedRecognition == null) {
+        trackedRecognition = new TrackedRecognition();
+        trackedRecognition.id = id;
+        trackedRecognition.location = new RectF();
+        trackedRecognition.labelDirty = true;
+        final Integer color = availableColors.poll();
+        trackedRecognition.pooledColor = color != null;
+        // More live tracks than colors: share one rather than leave a track uncolored.
+        trackedRecognition.color = color != null ? color : COLORS[id % COLORS.length];
+        tracksById.put(id, trackedRecognition);
+      }
+      // A coasting track keeps the title and confidence of its last detection.
+      final int detection = fromDetections ? trackEngine.getDetection(t) : -1;
+      if (detection >= 0) {
+        final Recognition result = rectsToTrack.get(detection);
+        trackedRecognition.detectionConfidence = result.getConfidence();
+        trackedRecognition.title = result.getTitle();
+        trackedRecognition.labelDirty = true;
+        if (trackListener != null) {
+          trackListener.onTrackMatched(id, result);
+        }
+      }
+      trackedRecognition.location.set(
+              trackEngine.getLeft(t),
+              trackEngine.getTop(t),
+              trackEngine.getRight(t),
+              trackEngine.getBottom(t));
       trackedObjects.add(trackedRecognition);
     }
+    if (trackedObjects.isEmpty()) {
+      logger.v("Nothing to track.");
+    }
+  }
+
+  /** Receives track events on the thread passing results to {@link #trackResults}. */
+  public interface TrackListener {
+    /** A confirmed track was matched to a detection, whose location is in frame coordinates. */
+    void onTrackMatched(int trackId, Recognition recognition);
+
+    /** A track ended. Tentative tracks that were never matched as confirmed are reported too. */
+    void onTrackRemoved(int trackId);
   }
 
   private static class TrackedRecognition {
+    int id;
     RectF location;
     float detectionConfidence;
     int color;
+    boolean pooledColor;
     String title;
+    // "#id title confidence%", rebuilt on the next draw when labelDirty.
+    char[] label;
+    int labelLength;
+    float labelWidth;
+    boolean labelDirty;
   }
 }
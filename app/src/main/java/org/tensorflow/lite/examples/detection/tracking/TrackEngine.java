@@ -0,0 +1,443 @@
+package org.tensorflow.lite.examples.detection.tracking;
+
+import java.util.Arrays;
+import org.tensorflow.lite.examples.detection.env.BoxGrid;
+
+/**
+ * Frame-to-frame multi-object tracking of detection boxes.
+ *
+ * <p>Each track runs a constant-velocity Kalman filter on its box center, width and height, one
+ * decoupled position/velocity filter per coordinate, advanced one step per {@link #update} call.
+ * Detections are associated with the predicted boxes greedily by descending IoU, which for the
+ * sparse overlaps between people gives the same assignment as the Hungarian method at a fraction of
+ * the cost.
+ *
+ * <p>A new track is tentative until it has been matched in {@link #setMinHits(int) minHits}
+ * consecutive frames; a tentative track that misses a frame is dropped. A confirmed track coasts on
+ * its prediction for up to {@link #setMaxMisses(int) maxMisses} frames before it is removed. Track
+ * ids are never reused, so an id identifies one object for as long as it is tracked.
+ *
+ * <p>Between detections the tracks can be moved along by measured image motion with {@link
+ * #propagate(float[])}, which advances the filters one step and corrects their centers without
+ * touching the match counts.
+ *
+ * <p>All state is kept in flat arrays that grow on demand and are reused across calls. Not
+ * thread-safe.
+ */
+public final class TrackEngine {
+  private static final int DEFAULT_CAPACITY = 32;
+  private static final float DEFAULT_IOU_THRESHOLD = 0.3f;
+  private static final int DEFAULT_MIN_HITS = 3;
+  private static final int DEFAULT_MAX_MISSES = 5;
+
+  // Noise standard deviations relative to the box height, as in DeepSORT.
+  private static final float MEASUREMENT_NOISE = 1 / 20f;
+  // Positions carried by optical flow are trusted less than detections.
+  private static final float FLOW_NOISE_FACTOR = 2;
+  private static final float ACCELERATION_NOISE = 1 / 160f;
+  private static final float INITIAL_VELOCITY_VARIANCE = 10;
+
+  // Coordinates filtered per track: center x, center y, width, height.
+  private static final int DIMS = 4;
+  // Below this many track/detection pairs comparing all of them is cheaper than the grid.
+  private static final int MIN_GRID_PAIRS = 256;
+
+  private float iouThreshold = DEFAULT_IOU_THRESHOLD;
+  private int minHits = DEFAULT_MIN_HITS;
+  private int maxMisses = DEFAULT_MAX_MISSES;
+
+  private int capacity;
+  private int count;
+  private int nextId = 1;
+  private int confirmedTotal;
+
+  // Per track.
+  private int[] ids;
+  private int[] hits;
+  private int[] misses;
+  private boolean[] confirmed;
+  private int[] detection;
+  // Per track and coordinate: position, velocity and the position/velocity covariance.
+  private float[] pos;
+  private float[] vel;
+  private float[] p00;
+  private float[] p01;
+  private float[] p11;
+
+  // Per update.
+  private int[] removedIds = new int[DEFAULT_CAPACITY];
+  private int removedCount;
+  private boolean[] detectionMatched = new boolean[0];
+  private long[] pairs = new long[0];
+  private int pairCount;
+  private final BoxGrid grid = new BoxGrid();
+  private float frameWidth;
+  private float frameHeight;
+
+  public TrackEngine() {
+    allocate(DEFAULT_CAPACITY);
+  }
+
+  /** Minimum IoU between a predicted box and a detection for them to be associated. */
+  public void setIouThreshold(final float iouThreshold) {
+    this.iouThreshold = iouThreshold;
+  }
+
+  /** Consecutive matches after which a new track is confirmed. */
+  public void setMinHits(final int minHits) {
+    this.minHits = Math.max(1, minHits);
+  }
+
+  /** Consecutive frames a confirmed track survives without a match. */
+  public void setMaxMisses(final int maxMisses) {
+    this.maxMisses = Math.max(0, maxMisses);
+  }
+
+  /** Size of the frame the boxes are in, which the association grid is laid over. */
+  public void setFrameSize(final float frameWidth, final float frameHeight) {
+    this.frameWidth = frameWidth;
+    this.frameHeight = frameHeight;
+  }
+
+  /** Drops all tracks. Ids keep counting up. */
+  public void clear() {
+    count = 0;
+    removedCount = 0;
+  }
+
+  /**
+   * Advances every track by one frame and associates it with this frame's detections.
+   *
+   * @param boxes left, top, right, bottom of each detection, four floats per detection.
+   * @param detectionCount number of detections in {@code boxes}.
+   */
+  public void update(final float[] boxes, final int detectionCount) {
+    update(boxes, detectionCount, true);
+  }
+
+  /**
+   * As {@link #update(float[], int)}, optionally without advancing the tracks first. Pass false
+   * when they were already propagated onto the frame the detections belong to.
+   */
+  public void update(final float[] boxes, final int detectionCount, final boolean predict) {
+    if (detectionCount > 0xffff) {
+      throw new IllegalArgumentException("Too many detections: " + detectionCount);
+    }
+    removedCount = 0;
+    if (predict) {
+      for (int t = 0; t < count; ++t) {
+        predict(t);
+      }
+    }
+    associate(boxes, detectionCount);
+
+    for (int t = 0; t < count; ) {
+      if (detection[t] >= 0) {
+        final int d = detection[t] * 4;
+        correct(t, boxes[d], boxes[d + 1], boxes[d + 2], boxes[d + 3]);
+        misses[t] = 0;
+        if (++hits[t] >= minHits && !confirmed[t]) {
+          confirmed[t] = true;
+          ++confirmedTotal;
+        }
+        ++t;
+      } else {
+        hits[t] = 0;
+        if (!confirmed[t] || ++misses[t] > maxMisses) {
+          remove(t);
+        } else {
+          ++t;
+        }
+      }
+    }
+
+    for (int d = 0; d < detectionCount; ++d) {
+      if (!detectionMatched[d]) {
+        start(d, boxes[4 * d], boxes[4 * d + 1], boxes[4 * d + 2], boxes[4 * d + 3]);
+      }
+    }
+  }
+
+  /**
+   * Advances every track by one frame without detections, moving each by the measured motion of
+   * its content.
+   *
+   * @param flow displacement of each track since the last call, x then y, NaN where unknown. A
+   *     track without a displacement coasts on its velocity.
+   */
+  public void propagate(final float[] flow) {
+    for (int t = 0; t < count; ++t) {
+      final int base = t * DIMS;
+      final float measuredX = pos[base] + flow[2 * t];
+      final float measuredY = pos[base + 1] + flow[2 * t + 1];
+      final float r = FLOW_NOISE_FACTOR * FLOW_NOISE_FACTOR * measurementVariance(pos[base + 3]);
+      predict(t);
+      if (!Float.isNaN(measuredX) && !Float.isNaN(measuredY)) {
+        correctCoordinate(base, measuredX, r);
+        correctCoordinate(base + 1, measuredY, r);
+      }
+    }
+  }
+
+  /** Tracks alive after the last update, tentative ones included. */
+  public int getTrackCount() {
+    return count;
+  }
+
+  public int getId(final int track) {
+    return ids[track];
+  }
+
+  public boolean isConfirmed(final int track) {
+    return confirmed[track];
+  }
+
+  /** Index of the detection matched in the last update, or -1 if the track is coasting. */
+  public int getDetection(final int track) {
+    return detection[track];
+  }
+
+  /** Frames since the track was last matched. */
+  public int getMisses(final int track) {
+    return misses[track];
+  }
+
+  public float getLeft(final int track) {
+    return pos[track * DIMS] - pos[track * DIMS + 2] / 2;
+  }
+
+  public float getTop(final int track) {
+    return pos[track * DIMS + 1] - pos[track * DIMS + 3] / 2;
+  }
+
+  public float getRight(final int track) {
+    return pos[track * DIMS] + pos[track * DIMS + 2] / 2;
+  }
+
+  public float getBottom(final int track) {
+    return pos[track * DIMS + 1] + pos[track * DIMS + 3] / 2;
+  }
+
+  /** Number of tracks removed by the last update. */
+  public int getRemovedCount() {
+    return removedCount;
+  }
+
+  /** Id of a track removed by the last update. */
+  public int getRemovedId(final int i) {
+    return removedIds[i];
+  }
+
+  /** Tracks confirmed since the engine was created, i.e. distinct objects seen. */
+  public int getConfirmedTotal() {
+    return confirmedTotal;
+  }
+
+  private void predict(final int t) {
+    final int base = t * DIMS;
+    final float sigma = ACCELERATION_NOISE * Math.max(pos[base + 3], 1);
+    final float q = sigma * sigma;
+    for (int k = base; k < base + DIMS; ++k) {
+      pos[k] += vel[k];
+      // Discrete white-noise acceleration over one step.
+      p00[k] += 2 * p01[k] + p11[k] + q / 4;
+      p01[k] += p11[k] + q / 2;
+      p11[k] += q;
+    }
+  }
+
+  private void correct(
+      final int t, final float left, final float top, final float right, final float bottom) {
+    final int base = t * DIMS;
+    final float r = measurementVariance(bottom - top);
+    correctCoordinate(base, (left + right) / 2, r);
+    correctCoordinate(base + 1, (top + bottom) / 2, r);
+    correctCoordinate(base + 2, right - left, r);
+    correctCoordinate(base + 3, bottom - top, r);
+  }
+
+  private void correctCoordinate(final int k, final float measured, final float r) {
+    final float s = p00[k] + r;
+    final float k0 = p00[k] / s;
+    final float k1 = p01[k] / s;
+    final float residual = measured - pos[k];
+    pos[k] += k0 * residual;
+    vel[k] += k1 * residual;
+    p11[k] -= k1 * p01[k];
+    p01[k] -= k0 * p01[k];
+    p00[k] -= k0 * p00[k];
+  }
+
+  // Greedy assignment: all pairs above the threshold sorted by IoU, best first, each track and
+  // detection used at most once. Pairs that do not overlap never qualify, so with many boxes only
+  // the detections the grid finds near each track are compared.
+  private void associate(final float[] boxes, final int detectionCount) {
+    if (detectionMatched.length < detectionCount) {
+      detectionMatched = new boolean[Math.max(detectionCount, 2 * detectionMatched.length)];
+    }
+    Arrays.fill(detectionMatched, 0, detectionCount, false);
+    Arrays.fill(detection, 0, count, -1);
+
+    pairCount = 0;
+    if (count * detectionCount < MIN_GRID_PAIRS) {
+      for (int t = 0; t < count; ++t) {
+        for (int d = 0; d < detectionCount; ++d) {
+          considerPair(t, boxes, d);
+        }
+      }
+    } else {
+      buildGrid(boxes, detectionCount);
+      for (int t = 0; t < count; ++t) {
+        final int found = grid.query(getLeft(t), getTop(t), getRight(t), getBottom(t));
+        for (int i = 0; i < found; ++i) {
+          considerPair(t, boxes, grid.getFound(i));
+        }
+      }
+    }
+
+    Arrays.sort(pairs, 0, pairCount);
+    for (int i = pairCount - 1; i >= 0; --i) {
+      final int t = (int) (pairs[i] >>> 16) & 0xffff;
+      final int d = (int) pairs[i] & 0xffff;
+      if (detection[t] < 0 && !detectionMatched[d]) {
+        detection[t] = d;
+        detectionMatched[d] = true;
+      }
+    }
+  }
+
+  private void considerPair(final int t, final float[] boxes, final int d) {
+    final float tl = getLeft(t);
+    final float tt = getTop(t);
+    final float tr = getRight(t);
+    final float tb = getBottom(t);
+    final float dl = boxes[4 * d];
+    final float dt = boxes[4 * d + 1];
+    final float dr = boxes[4 * d + 2];
+    final float db = boxes[4 * d + 3];
+    final float w = Math.min(tr, dr) - Math.max(tl, dl);
+    final float h = Math.min(tb, db) - Math.max(tt, dt);
+    if (w <= 0 || h <= 0) {
+      return;
+    }
+    final float intersection = w * h;
+    final float iou =
+        intersection / ((tr - tl) * (tb - tt) + (dr - dl) * (db - dt) - intersection);
+    if (iou >= iouThreshold) {
+      if (pairCount == pairs.length) {
+        pairs = Arrays.copyOf(pairs, Math.max(64, 2 * pairs.length));
+      }
+      // Positive floats order like their bit patterns, so the IoU sorts as the high word.
+      pairs[pairCount++] = ((long) Float.floatToIntBits(iou) << 32) | ((long) t << 16) | d;
+    }
+  }
+
+  // Cells the size of an average detection, over the frame if its size is known.
+  private void buildGrid(final float[] boxes, final int detectionCount) {
+    float minX = 0;
+    float minY = 0;
+    float maxX = frameWidth;
+    float maxY = frameHeight;
+    if (frameWidth <= 0 || frameHeight <= 0) {
+      minX = minY = Float.MAX_VALUE;
+      maxX = maxY = -Float.MAX_VALUE;
+      for (int d = 0; d < detectionCount; ++d) {
+        minX = Math.min(minX, boxes[4 * d]);
+        minY = Math.min(minY, boxes[4 * d + 1]);
+        maxX = Math.max(maxX, boxes[4 * d + 2]);
+        maxY = Math.max(maxY, boxes[4 * d + 3]);
+      }
+    }
+    float widthSum = 0;
+    float heightSum = 0;
+    for (int d = 0; d < detectionCount; ++d) {
+      widthSum += boxes[4 * d + 2] - boxes[4 * d];
+      heightSum += boxes[4 * d + 3] - boxes[4 * d + 1];
+    }
+    grid.reset(
+        minX,
+        minY,
+        maxX,
+        maxY,
+        widthSum / detectionCount,
+        heightSum / detectionCount,
+        detectionCount);
+    for (int d = 0; d < detectionCount; ++d) {
+      grid.insert(d, boxes[4 * d], boxes[4 * d + 1], boxes[4 * d + 2], boxes[4 * d + 3]);
+    }
+  }
+
+  private void start(
+      final int d, final float left, final float top, final float right, final float bottom) {
+    if (count == capacity) {
+      allocate(2 * capacity);
+    }
+    final int t = count++;
+    ids[t] = nextId++;
+    hits[t] = 1;
+    misses[t] = 0;
+    confirmed[t] = minHits <= 1;
+    if (confirmed[t]) {
+      ++confirmedTotal;
+    }
+    detection[t] = d;
+
+    final int base = t * DIMS;
+    pos[base] = (left + right) / 2;
+    pos[base + 1] = (top + bottom) / 2;
+    pos[base + 2] = right - left;
+    pos[base + 3] = bottom - top;
+    final float r = measurementVariance(bottom - top);
+    for (int k = base; k < base + DIMS; ++k) {
+      vel[k] = 0;
+      p00[k] = r;
+      p01[k] = 0;
+      p11[k] = INITIAL_VELOCITY_VARIANCE * r;
+    }
+  }
+
+  // Moves the last track into slot t. Track order carries no meaning.
+  private void remove(final int t) {
+    if (removedCount == removedIds.length) {
+      removedIds = Arrays.copyOf(removedIds, 2 * removedIds.length);
+    }
+    removedIds[removedCount++] = ids[t];
+    final int last = --count;
+    if (t == last) {
+      return;
+    }
+    ids[t] = ids[last];
+    hits[t] = hits[last];
+    misses[t] = misses[last];
+    confirmed[t] = confirmed[last];
+    detection[t] = detection[last];
+    System.arraycopy(pos, last * DIMS, pos, t * DIMS, DIMS);
+    System.arraycopy(vel, last * DIMS, vel, t * DIMS, DIMS);
+    System.arraycopy(p00, last * DIMS, p00, t * DIMS, DIMS);
+    System.arraycopy(p01, last * DIMS, p01, t * DIMS, DIMS);
+    System.arraycopy(p11, last * DIMS, p11, t * DIMS, DIMS);
+  }
+
+  private void allocate(final int newCapacity) {
+    // Track and detection indices are packed into 16 bits each during association.
+    if (newCapacity > 0xffff) {
+      throw new IllegalStateException("Too many tracks: " + newCapacity);
+    }
+    capacity = newCapacity;
+    ids = ids == null ? new int[capacity] : Arrays.copyOf(ids, capacity);
+    hits = hits == null ? new int[capacity] : Arrays.copyOf(hits, capacity);
+    misses = misses == null ? new int[capacity] : Arrays.copyOf(misses, capacity);
+    confirmed = confirmed == null ? new boolean[capacity] : Arrays.copyOf(confirmed, capacity);
+    detection = detection == null ? new int[capacity] : Arrays.copyOf(detection, capacity);
+    pos = pos == null ? new float[capacity * DIMS] : Arrays.copyOf(pos, capacity * DIMS);
+    vel = vel == null ? new float[capacity * DIMS] : Arrays.copyOf(vel, capacity * DIMS);
+    p00 = p00 == null ? new float[capacity * DIMS] : Arrays.copyOf(p00, capacity * DIMS);
+    p01 = p01 == null ? new float[capacity * DIMS] : Arrays.copyOf(p01, capacity * DIMS);
+    p11 = p11 == null ? new float[capacity * DIMS] : Arrays.copyOf(p11, capacity * DIMS);
+  }
+
+  private static float measurementVariance(final float height) {
+    final float sigma = MEASUREMENT_NOISE * Math.max(height, 1);
+    return sigma * sigma;
+  }
+}
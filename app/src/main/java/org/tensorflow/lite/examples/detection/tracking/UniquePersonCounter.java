@@ -0,0 +1,232 @@
+package org.tensorflow.lite.examples.detection.tracking;
+
+import java.util.Arrays;
+
+/**
+ * Counts distinct people over a session from track identities, re-identifying people who leave
+ * and come back.
+ *
+ * <p>Every confirmed track is one person unless its appearance, an {@link AppearanceEmbedder}
+ * embedding, matches someone recently lost: when a track ends its person moves into a gallery of
+ * the last {@code galleryCapacity} lost people, and a new track similar enough to one of them takes
+ * over that person instead of counting a new one. A track that is matched is taken out of the
+ * gallery, so two people present at once are never merged.
+ *
+ * <p>Live tracks sit in an open-addressing table keyed by track id, so an observation of a known
+ * track is a lookup and a blend of its embedding. Only the first observation of a track searches
+ * the gallery, whose size is fixed; the oldest entry is overwritten when it is full. Memory is
+ * therefore bounded by the number of people in view plus the gallery, however long the session
+ * runs. Not thread-safe.
+ */
+public final class UniquePersonCounter {
+  private static final int DIMS = AppearanceEmbedder.DIMS;
+  private static final int DEFAULT_GALLERY_CAPACITY = 256;
+  private static final float DEFAULT_MATCH_THRESHOLD = 0.9f;
+  // Weight of the newest observation in a track's running embedding.
+  private static final float BLEND = 0.2f;
+  private static final int EMPTY = 0;
+
+  private final float matchThreshold;
+
+  // Live tracks: open addressing on track id with linear probing; ids are never 0.
+  private int[] keys = new int[64];
+  private int[] slotOfKey = new int[64];
+  private int liveCount;
+  private float[] liveEmbeddings = new float[16 * DIMS];
+  private int[] livePerson = new int[16];
+  private int[] freeSlots = new int[16];
+  private int freeCount;
+  private int slotCount;
+
+  // People whose track ended, newest at galleryHead - 1.
+  private final float[] galleryEmbeddings;
+  private final int[] galleryPerson;
+  private int galleryHead;
+  private int gallerySize;
+
+  private int uniqueCount;
+  private int reidentifiedCount;
+
+  public UniquePersonCounter() {
+    this(DEFAULT_GALLERY_CAPACITY, DEFAULT_MATCH_THRESHOLD);
+  }
+
+  /**
+   * @param galleryCapacity how many lost people are remembered for re-identification.
+   * @param matchThreshold smallest {@link AppearanceEmbedder#similarity} to count as the same
+   *     person.
+   */
+  public UniquePersonCounter(final int galleryCapacity, final float matchThreshold) {
+    this.matchThreshold = matchThreshold;
+    galleryEmbeddings = new float[galleryCapacity * DIMS];
+    galleryPerson = new int[galleryCapacity];
+  }
+
+  /** Records the appearance of a confirmed track in the current frame. */
+  public void observe(final int trackId, final float[] embedding) {
+    int slot = find(trackId);
+    if (slot >= 0) {
+      final int base = slot * DIMS;
+      for (int i = 0; i < DIMS; ++i) {
+        liveEmbeddings[base + i] += BLEND * (embedding[i] - liveEmbeddings[base + i]);
+      }
+      return;
+    }
+
+    slot = allocateSlot();
+    insert(trackId, slot);
+    System.arraycopy(embedding, 0, liveEmbeddings, slot * DIMS, DIMS);
+    final int match = bestGalleryMatch(embedding);
+    if (match >= 0) {
+      livePerson[slot] = galleryPerson[match];
+      removeFromGallery(match);
+      ++reidentifiedCount;
+    } else {
+      livePerson[slot] = ++uniqueCount;
+    }
+  }
+
+  /** Moves the person of an ended track into the gallery. Unknown ids are ignored. */
+  public void trackRemoved(final int trackId) {
+    final int slot = remove(trackId);
+    if (slot < 0) {
+      return;
+    }
+    freeSlots[freeCount++] = slot;
+    if (galleryPerson.length == 0) {
+      return;
+    }
+    System.arraycopy(liveEmbeddings, slot * DIMS, galleryEmbeddings, galleryHead * DIMS, DIMS);
+    galleryPerson[galleryHead] = livePerson[slot];
+    galleryHead = (galleryHead + 1) % galleryPerson.length;
+    gallerySize = Math.min(gallerySize + 1, galleryPerson.length);
+  }
+
+  /** Distinct people seen so far. */
+  public int getUniqueCount() {
+    return uniqueCount;
+  }
+
+  /** New tracks recognized as someone seen before. */
+  public int getReidentifiedCount() {
+    return reidentifiedCount;
+  }
+
+  /** Tracks currently being observed. */
+  public int getLiveCount() {
+    return liveCount;
+  }
+
+  private int bestGalleryMatch(final float[] embedding) {
+    int best = -1;
+    float bestSimilarity = matchThreshold;
+    for (int i = 0; i < gallerySize; ++i) {
+      final int entry = (galleryHead - 1 - i + galleryPerson.length) % galleryPerson.length;
+      final float similarity =
+          AppearanceEmbedder.similarity(embedding, 0, galleryEmbeddings, entry * DIMS);
+      if (similarity >= bestSimilarity) {
+        best = entry;
+        bestSimilarity = similarity;
+      }
+    }
+    return best;
+  }
+
+  // Closes the gap by moving the entries newer than the removed one back by one.
+  private void removeFromGallery(final int entry) {
+    final int capacity = galleryPerson.length;
+    int from = (entry + 1) % capacity;
+    int to = entry;
+    while (from != galleryHead) {
+      System.arraycopy(galleryEmbeddings, from * DIMS, galleryEmbeddings, to * DIMS, DIMS);
+      galleryPerson[to] = galleryPerson[from];
+      to = from;
+      from = (from + 1) % capacity;
+    }
+    galleryHead = to;
+    --gallerySize;
+  }
+
+  private int allocateSlot() {
+    if (freeCount > 0) {
+      return freeSlots[--freeCount];
+    }
+    if (slotCount == livePerson.length) {
+      final int capacity = 2 * slotCount;
+      liveEmbeddings = Arrays.copyOf(liveEmbeddings, capacity * DIMS);
+      livePerson = Arrays.copyOf(livePerson, capacity);
+      freeSlots = Arrays.copyOf(freeSlots, capacity);
+    }
+    return slotCount++;
+  }
+
+  private int find(final int key) {
+    final int mask = keys.length - 1;
+    for (int i = hash(key) & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        return slotOfKey[i];
+      }
+    }
+    return -1;
+  }
+
+  private void insert(final int key, final int slot) {
+    // Keep the table at most half full.
+    if (2 * (liveCount + 1) > keys.length) {
+      rehash(2 * keys.length);
+    }
+    final int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    while (keys[i] != EMPTY) {
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    slotOfKey[i] = slot;
+    ++liveCount;
+  }
+
+  // Removes key and returns its slot, or -1. Later entries of the probe run are shifted back so
+  // lookups never need tombstones.
+  private int remove(final int key) {
+    final int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    while (keys[i] != key) {
+      if (keys[i] == EMPTY) {
+        return -1;
+      }
+      i = (i + 1) & mask;
+    }
+    final int slot = slotOfKey[i];
+    int gap = i;
+    for (int j = (gap + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+      final int home = hash(keys[j]) & mask;
+      // Move j into the gap unless its home lies cyclically in (gap, j].
+      if (((j - home) & mask) >= ((j - gap) & mask)) {
+        keys[gap] = keys[j];
+        slotOfKey[gap] = slotOfKey[j];
+        gap = j;
+      }
+    }
+    keys[gap] = EMPTY;
+    --liveCount;
+    return slot;
+  }
+
+  private void rehash(final int capacity) {
+    final int[] oldKeys = keys;
+    final int[] oldSlots = slotOfKey;
+    keys = new int[capacity];
+    slotOfKey = new int[capacity];
+    liveCount = 0;
+    for (int i = 0; i < oldKeys.length; ++i) {
+      if (oldKeys[i] != EMPTY) {
+        insert(oldKeys[i], oldSlots[i]);
+      }
+    }
+  }
+
+  private static int hash(final int key) {
+    final int h = key * 0x9E3779B1;
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,86 @@
+package org.tensorflow.lite.examples.detection.env;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+/** Checks that the table-driven conversion matches ImageUtils bit for bit. */
+public class YuvLookupKernelTest {
+
+  @Test
+  public void yuvToArgb_matchesReferenceForAllInputs() {
+    for (int y = 0; y < 256; ++y) {
+      for (int u = 0; u < 256; ++u) {
+        for (int v = 0; v < 256; ++v) {
+          final int expected = ImageUtils.YUV2RGB(y, u, v);
+          final int actual = YuvLookupKernel.yuvToArgb(y, u, v);
+          if (expected != actual) {
+            assertEquals("y=" + y + " u=" + u + " v=" + v, expected, actual);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void convertPlanarRows_matchesReference() {
+    final Random random = new Random(42);
+    // Odd sizes exercise the row and column that have no 2x2 partner.
+    final int[][] sizes = {{640, 480}, {37, 21}, {1, 1}, {2, 3}};
+    for (final int[] size : sizes) {
+      final int width = size[0];
+      final int height = size[1];
+      final int yRowStride = width + 7;
+      final int uvPixelStride = 2;
+      final int uvRowStride = ((width + 1) / 2) * uvPixelStride + 5;
+      final byte[] y = randomBytes(random, yRowStride * height);
+      final byte[] u = randomBytes(random, uvRowStride * ((height + 1) / 2));
+      final byte[] v = randomBytes(random, uvRowStride * ((height + 1) / 2));
+
+      final int[] expected = new int[width * height];
+      ImageUtils.convertYUV420ToARGB8888(
+          y, u, v, width, height, yRowStride, uvRowStride, uvPixelStride, expected);
+      final int[] actual = new int[width * height];
+      YuvLookupKernel.convertPlanarRows(
+          ByteBuffer.wrap(y),
+          ByteBuffer.wrap(u),
+          ByteBuffer.wrap(v),
+          width,
+          yRowStride,
+          uvRowStride,
+          uvPixelStride,
+          actual,
+          0,
+          height);
+
+      assertArrayEquals(width + "x" + height, expected, actual);
+    }
+  }
+
+  @Test
+  public void convertSemiPlanarRows_matchesReference() {
+    final Random random = new Random(7);
+    final int[][] sizes = {{640, 480}, {38, 22}, {2, 2}};
+    for (final int[] size : sizes) {
+      final int width = size[0];
+      final int height = size[1];
+      final byte[] nv21 = randomBytes(random, ImageUtils.getYUVByteSize(width, height));
+
+      final int[] expected = new int[width * height];
+      ImageUtils.convertYUV420SPToARGB8888(nv21, width, height, expected);
+      final int[] actual = new int[width * height];
+      YuvLookupKernel.convertSemiPlanarRows(nv21, width, height, actual, 0, height);
+
+      assertArrayEquals(width + "x" + height, expected, actual);
+    }
+  }
+
+  private static byte[] randomBytes(final Random random, final int size) {
+    final byte[] bytes = new byte[size];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+}
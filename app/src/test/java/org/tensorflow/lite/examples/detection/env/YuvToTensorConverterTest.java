@@ -0,0 +1,172 @@
+package org.tensorflow.lite.examples.detection.env;
+
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+import org.tensorflow.lite.examples.detection.tflite.InputPreprocessor;
+
+/**
+ * Checks the fused conversion against the chain it replaces: ImageUtils' ARGB conversion, the crop
+ * transform drawn without filtering, and InputPreprocessor.
+ */
+public class YuvToTensorConverterTest {
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+  private static final int INPUT_SIZE = 300;
+  // Pixels on the edge between two source pixels may round either way, as they would between two
+  // Skia versions; everything else has to match exactly.
+  private static final double MAX_MISMATCHED_PIXELS = 0.005;
+
+  @Test
+  public void convert_matchesBitmapChain() {
+    for (final int rotation : new int[] {0, 90}) {
+      for (final int uvPixelStride : new int[] {1, 2}) {
+        for (final boolean quantized : new boolean[] {false, true}) {
+          checkConvert(rotation, uvPixelStride, quantized);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void convert_readsFromCropOrigin() {
+    // Odd offsets put the crop's first pixel in the second column and row of a chroma sample.
+    checkConvert(90, 2, false, 3, 5);
+    checkConvert(0, 1, true, 16, 8);
+  }
+
+  private static void checkConvert(
+      final int rotation, final int uvPixelStride, final boolean quantized) {
+    checkConvert(rotation, uvPixelStride, quantized, 0, 0);
+  }
+
+  // Converts a WIDTH x HEIGHT crop at (cropLeft, cropTop) of larger planes.
+  private static void checkConvert(
+      final int rotation,
+      final int uvPixelStride,
+      final boolean quantized,
+      final int cropLeft,
+      final int cropTop) {
+    final Random random = new Random(rotation + uvPixelStride);
+    final int planeWidth = WIDTH + cropLeft;
+    final int planeHeight = HEIGHT + cropTop;
+    final int yRowStride = planeWidth + 16;
+    final int uvRowStride = ((planeWidth + 1) / 2) * uvPixelStride + 8;
+    final byte[] y = randomBytes(random, yRowStride * planeHeight);
+    final byte[] u = randomBytes(random, uvRowStride * ((planeHeight + 1) / 2));
+    final byte[] v = randomBytes(random, uvRowStride * ((planeHeight + 1) / 2));
+
+    final int[] planeArgb = new int[planeWidth * planeHeight];
+    ImageUtils.convertYUV420ToARGB8888(
+        y, u, v, planeWidth, planeHeight, yRowStride, uvRowStride, uvPixelStride, planeArgb);
+    final int[] argb = new int[WIDTH * HEIGHT];
+    for (int row = 0; row < HEIGHT; ++row) {
+      System.arraycopy(
+          planeArgb, (row + cropTop) * planeWidth + cropLeft, argb, row * WIDTH, WIDTH);
+    }
+    final int[] crop = drawCrop(argb, rotation);
+    final ByteBuffer expected = new InputPreprocessor(INPUT_SIZE, quantized).load(crop);
+
+    final YuvToTensorConverter converter =
+        new YuvToTensorConverter(WIDTH, HEIGHT, INPUT_SIZE, rotation, false, quantized);
+    final ByteBuffer actual =
+        converter.convert(
+            ByteBuffer.wrap(y),
+            ByteBuffer.wrap(u),
+            ByteBuffer.wrap(v),
+            yRowStride,
+            uvRowStride,
+            uvPixelStride,
+            cropLeft,
+            cropTop,
+            converter.allocateOutput());
+
+    final int mismatched = countMismatchedPixels(expected, actual, quantized);
+    final String config =
+        "rotation " + rotation + ", uvPixelStride " + uvPixelStride + ", quantized " + quantized
+            + ", crop at " + cropLeft + "," + cropTop;
+    assertTrue(
+        config + ": " + mismatched + " pixels differ",
+        mismatched <= MAX_MISMATCHED_PIXELS * INPUT_SIZE * INPUT_SIZE);
+  }
+
+  // What Canvas.drawBitmap with ImageUtils.getTransformationMatrix and no filtering produces: the
+  // center of each destination pixel is mapped back through the inverse matrix and the source
+  // pixel containing it is taken. The matrix is composed in floats, as android.graphics.Matrix
+  // does, and inverted as a general affine transform.
+  private static int[] drawCrop(final int[] argb, final int rotation) {
+    // Row-major 2x3 affine matrix: x' = m[0] x + m[1] y + m[2], y' = m[3] x + m[4] y + m[5].
+    float[] m = {1, 0, 0, 0, 1, 0};
+    if (rotation != 0) {
+      m = concat(new float[] {1, 0, -WIDTH / 2.0f, 0, 1, -HEIGHT / 2.0f}, m);
+      final double radians = Math.toRadians(rotation);
+      final float cos = (float) Math.round(Math.cos(radians));
+      final float sin = (float) Math.round(Math.sin(radians));
+      m = concat(new float[] {cos, -sin, 0, sin, cos, 0}, m);
+    }
+    final boolean transpose = (Math.abs(rotation) + 90) % 180 == 0;
+    final int inWidth = transpose ? HEIGHT : WIDTH;
+    final int inHeight = transpose ? WIDTH : HEIGHT;
+    m =
+        concat(
+            new float[] {INPUT_SIZE / (float) inWidth, 0, 0, 0, INPUT_SIZE / (float) inHeight, 0},
+            m);
+    if (rotation != 0) {
+      m = concat(new float[] {1, 0, INPUT_SIZE / 2.0f, 0, 1, INPUT_SIZE / 2.0f}, m);
+    }
+
+    final double det = (double) m[0] * m[4] - (double) m[1] * m[3];
+    final int[] crop = new int[INPUT_SIZE * INPUT_SIZE];
+    for (int dy = 0; dy < INPUT_SIZE; ++dy) {
+      for (int dx = 0; dx < INPUT_SIZE; ++dx) {
+        final double px = dx + 0.5 - m[2];
+        final double py = dy + 0.5 - m[5];
+        final int sx = (int) Math.floor((m[4] * px - m[1] * py) / det);
+        final int sy = (int) Math.floor((-m[3] * px + m[0] * py) / det);
+        if (sx >= 0 && sx < WIDTH && sy >= 0 && sy < HEIGHT) {
+          crop[dy * INPUT_SIZE + dx] = argb[sy * WIDTH + sx];
+        }
+      }
+    }
+    return crop;
+  }
+
+  // Returns a * b, i.e. b applied first.
+  private static float[] concat(final float[] a, final float[] b) {
+    return new float[] {
+      a[0] * b[0] + a[1] * b[3],
+      a[0] * b[1] + a[1] * b[4],
+      a[0] * b[2] + a[1] * b[5] + a[2],
+      a[3] * b[0] + a[4] * b[3],
+      a[3] * b[1] + a[4] * b[4],
+      a[3] * b[2] + a[4] * b[5] + a[5]
+    };
+  }
+
+  private static int countMismatchedPixels(
+      final ByteBuffer expected, final ByteBuffer actual, final boolean quantized) {
+    int mismatched = 0;
+    for (int pixel = 0; pixel < INPUT_SIZE * INPUT_SIZE; ++pixel) {
+      for (int c = 0; c < 3; ++c) {
+        final int index = pixel * 3 + c;
+        final boolean equal =
+            quantized
+                ? expected.get(index) == actual.get(index)
+                : Math.abs(expected.getFloat(index * 4) - actual.getFloat(index * 4)) < 1e-6f;
+        if (!equal) {
+          ++mismatched;
+          break;
+        }
+      }
+    }
+    return mismatched;
+  }
+
+  private static byte[] randomBytes(final Random random, final int size) {
+    final byte[] bytes = new byte[size];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+}
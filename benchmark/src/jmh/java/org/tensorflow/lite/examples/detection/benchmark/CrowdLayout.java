@@ -0,0 +1,70 @@
+package org.tensorflow.lite.examples.detection.benchmark;
+
+import java.util.Random;
+
+import org.tensorflow.lite.examples.detection.tflite.CandidateBuffer;
+
+/**
+ * Synthetic dense crowd: people standing in rows, shoulder to shoulder, so neighbouring
+ * ground-truth boxes overlap with an IoU between roughly 0.3 and 0.75. Every person yields a few
+ * jittered candidate boxes, as a detector does before suppression.
+ */
+final class CrowdLayout {
+    static final float FRAME_SIZE = 416;
+    private static final int CANDIDATES_PER_PERSON = 4;
+
+    final int people;
+    final float[] left;
+    final float[] top;
+    final float[] right;
+    final float[] bottom;
+    final CandidateBuffer candidates;
+
+    CrowdLayout(final int people, final long seed) {
+        this.people = people;
+        left = new float[people];
+        top = new float[people];
+        right = new float[people];
+        bottom = new float[people];
+        candidates = new CandidateBuffer(people * CANDIDATES_PER_PERSON);
+
+        final Random random = new Random(seed);
+        final float w = 24;
+        final float h = 64;
+        float x = 0;
+        float y = 0;
+        for (int p = 0; p < people; p++) {
+            if (x + w > FRAME_SIZE) {
+                x = random.nextFloat() * w;
+                y += h * 0.6f;
+                if (y + h > FRAME_SIZE) {
+                    y = random.nextFloat() * h * 0.3f;
+                }
+            }
+            left[p] = x;
+            top[p] = y + (random.nextFloat() - 0.5f) * 4;
+            right[p] = x + w;
+            bottom[p] = top[p] + h;
+            // Spacing of 0.15 to 0.55 box widths between neighbours.
+            x += w * (0.15f + random.nextFloat() * 0.4f);
+
+            for (int c = 0; c < CANDIDATES_PER_PERSON; c++) {
+                final float jx = (random.nextFloat() - 0.5f) * w * 0.12f;
+                final float jy = (random.nextFloat() - 0.5f) * h * 0.12f;
+                final float score = c == 0 ? 0.75f + random.nextFloat() * 0.2f : 0.5f + random.nextFloat() * 0.25f;
+                candidates.add(left[p] + jx, top[p] + jy, right[p] + jx, bottom[p] + jy, score, 0, p);
+            }
+        }
+    }
+
+    static float iou(final float l1, final float t1, final float r1, final float b1,
+                     final float l2, final float t2, final float r2, final float b2) {
+        final float w = Math.min(r1, r2) - Math.max(l1, l2);
+        final float h = Math.min(b1, b2) - Math.max(t1, t2);
+        if (w <= 0 || h <= 0) {
+            return 0;
+        }
+        final float intersection = w * h;
+        return intersection / ((r1 - l1) * (b1 - t1) + (r2 - l2) * (b2 - t2) - intersection);
+    }
+}
@@ -0,0 +1,57 @@
+package org.tensorflow.lite.examples.detection.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tensorflow.lite.examples.detection.env.LatencyHistogram;
+
+/**
+ * Cost of timing a stage: reading the clock, and recording the duration into a histogram from one
+ * thread and from four at once, as the camera, inference, postprocess and UI threads do. Recording
+ * must allocate nothing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LatencyHistogramBenchmark {
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    /** Durations cycling over 30 to 60 ms, a typical inference stage. */
+    @State(Scope.Thread)
+    public static class Durations {
+        private long next = 30_000_000;
+
+        long next() {
+            next = next < 60_000_000 ? next + 7_919 : 30_000_000;
+            return next;
+        }
+    }
+
+    @Benchmark
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Benchmark
+    public void record(final Durations durations) {
+        histogram.record(durations.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended(final Durations durations) {
+        histogram.record(durations.next());
+    }
+}
@@ -0,0 +1,152 @@
+package org.tensorflow.lite.examples.detection.benchmark;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tensorflow.lite.examples.detection.tflite.CandidateBuffer;
+import org.tensorflow.lite.examples.detection.tflite.NmsEngine;
+
+/**
+ * Class-aware NMS over clustered candidates, as produced by a crowded scene: every object yields a
+ * handful of jittered boxes. The legacy benchmark is the original PriorityQueue-per-label loop.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NmsEngineBenchmark {
+    private static final float IOU_THRESHOLD = 0.6f;
+    private static final float FRAME_SIZE = 416;
+    private static final int BOXES_PER_OBJECT = 5;
+
+    @Param({"100", "1000", "10000"})
+    public int candidates;
+
+    @Param({"1", "80"})
+    public int numClasses;
+
+    private CandidateBuffer buffer;
+    private NmsEngine engine;
+    private ArrayList<Box> boxes;
+
+    @Setup
+    public void setUp() {
+        buffer = new CandidateBuffer(candidates);
+        engine = new NmsEngine(IOU_THRESHOLD);
+        boxes = new ArrayList<>(candidates);
+
+        final Random random = new Random(42);
+        for (int i = 0; i < candidates; i += BOXES_PER_OBJECT) {
+            final float w = 10 + random.nextFloat() * 40;
+            final float h = 2 * w;
+            final float x = random.nextFloat() * (FRAME_SIZE - w);
+            final float y = random.nextFloat() * (FRAME_SIZE - h);
+            final int detectedClass = random.nextInt(numClasses);
+            for (int j = i; j < Math.min(candidates, i + BOXES_PER_OBJECT); j++) {
+                final float dx = (random.nextFloat() - 0.5f) * w * 0.3f;
+                final float dy = (random.nextFloat() - 0.5f) * h * 0.3f;
+                final float score = 0.5f + random.nextFloat() * 0.5f;
+                buffer.add(x + dx, y + dy, x + dx + w, y + dy + h, score, detectedClass, j);
+                boxes.add(new Box(x + dx, y + dy, x + dx + w, y + dy + h, score, detectedClass));
+            }
+        }
+    }
+
+    @Benchmark
+    public int engine() {
+        return engine.run(buffer);
+    }
+
+    @Benchmark
+    public int legacy() {
+        return legacyNms(boxes).size();
+    }
+
+    private ArrayList<Box> legacyNms(ArrayList<Box> list) {
+        ArrayList<Box> nmsList = new ArrayList<>();
+
+        for (int k = 0; k < numClasses; k++) {
+            PriorityQueue<Box> pq =
+                    new PriorityQueue<>(
+                            50,
+                            new Comparator<Box>() {
+                                @Override
+                                public int compare(final Box lhs, final Box rhs) {
+                                    return Float.compare(rhs.score, lhs.score);
+                                }
+                            });
+
+            for (int i = 0; i < list.size(); ++i) {
+                if (list.get(i).detectedClass == k) {
+                    pq.add(list.get(i));
+                }
+            }
+
+            while (pq.size() > 0) {
+                Box[] a = new Box[pq.size()];
+                Box[] detections = pq.toArray(a);
+                Box max = detections[0];
+                nmsList.add(max);
+                pq.clear();
+
+                for (int j = 1; j < detections.length; j++) {
+                    Box detection = detections[j];
+                    if (boxIou(max, detection) < IOU_THRESHOLD) {
+                        pq.add(detection);
+                    }
+                }
+            }
+        }
+        return nmsList;
+    }
+
+    private static float boxIou(Box a, Box b) {
+        return boxIntersection(a, b) / boxUnion(a, b);
+    }
+
+    private static float boxIntersection(Box a, Box b) {
+        float w = Math.min(a.right, b.right) - Math.max(a.left, b.left);
+        float h = Math.min(a.bottom, b.bottom) - Math.max(a.top, b.top);
+        if (w < 0 || h < 0) return 0;
+        return w * h;
+    }
+
+    private static float boxUnion(Box a, Box b) {
+        float i = boxIntersection(a, b);
+        return (a.right - a.left) * (a.bottom - a.top) + (b.right - b.left) * (b.bottom - b.top) - i;
+    }
+
+    private static final class Box {
+        final float left;
+        final float top;
+        final float right;
+        final float bottom;
+        final float score;
+        final int detectedClass;
+
+        Box(float left, float top, float right, float bottom, float score, int detectedClass) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.score = score;
+            this.detectedClass = detectedClass;
+        }
+    }
+}
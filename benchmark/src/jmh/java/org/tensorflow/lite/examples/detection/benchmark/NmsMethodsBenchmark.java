@@ -0,0 +1,50 @@
+package org.tensorflow.lite.examples.detection.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tensorflow.lite.examples.detection.tflite.NmsEngine;
+
+/**
+ * Latency of each suppression method on a synthetic dense crowd. Recall for the same layouts is
+ * printed by {@link NmsRecallReport}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NmsMethodsBenchmark {
+    @Param({"HARD", "DIOU", "SOFT_LINEAR", "SOFT_GAUSSIAN"})
+    public NmsEngine.Method method;
+
+    @Param({"50", "200", "500"})
+    public int people;
+
+    private CrowdLayout crowd;
+    private NmsEngine engine;
+
+    @Setup
+    public void setUp() {
+        crowd = new CrowdLayout(people, 42);
+        engine = new NmsEngine(NmsRecallReport.IOU_THRESHOLD);
+        engine.setMethod(method);
+        engine.setScoreThreshold(NmsRecallReport.SCORE_THRESHOLD);
+    }
+
+    @Benchmark
+    public int suppress() {
+        return engine.run(crowd.candidates);
+    }
+}
@@ -0,0 +1,74 @@
+package org.tensorflow.lite.examples.detection.benchmark;
+
+import org.tensorflow.lite.examples.detection.tflite.CandidateBuffer;
+import org.tensorflow.lite.examples.detection.tflite.NmsEngine;
+
+/**
+ * Prints recall and precision of each suppression method on synthetic dense crowds. A person
+ * counts as found when a kept box with a score at or above the detection threshold overlaps it
+ * with IoU 0.5 or more; each kept box can match one person only.
+ *
+ * <p>Run with {@code ./gradlew :benchmark:nmsRecall}.
+ */
+public final class NmsRecallReport {
+    static final float IOU_THRESHOLD = 0.6f;
+    static final float SCORE_THRESHOLD = 0.5f;
+    private static final float MATCH_IOU = 0.5f;
+    private static final int LAYOUTS = 20;
+
+    private NmsRecallReport() {}
+
+    public static void main(final String[] args) {
+        System.out.printf("%-14s %8s %8s %10s%n", "method", "people", "recall", "precision");
+        for (final int people : new int[] {50, 200, 500}) {
+            for (final NmsEngine.Method method : NmsEngine.Method.values()) {
+                final NmsEngine engine = new NmsEngine(IOU_THRESHOLD);
+                engine.setMethod(method);
+                engine.setScoreThreshold(SCORE_THRESHOLD);
+
+                int found = 0;
+                int kept = 0;
+                for (int seed = 0; seed < LAYOUTS; seed++) {
+                    final CrowdLayout crowd = new CrowdLayout(people, seed);
+                    engine.run(crowd.candidates);
+                    found += match(crowd, engine);
+                    kept += engine.getKeptCount();
+                }
+                System.out.printf("%-14s %8d %8.3f %10.3f%n",
+                        method, people, found / (float) (people * LAYOUTS), found / (float) Math.max(1, kept));
+            }
+        }
+    }
+
+    // Greedy one-to-one matching in the engine's output order (descending score within a class).
+    private static int match(final CrowdLayout crowd, final NmsEngine engine) {
+        final CandidateBuffer candidates = crowd.candidates;
+        final boolean[] matched = new boolean[crowd.people];
+        int found = 0;
+        for (int k = 0; k < engine.getKeptCount(); k++) {
+            if (engine.getKeptScore(k) < SCORE_THRESHOLD) {
+                continue;
+            }
+            final int i = engine.getKept(k);
+            int best = -1;
+            float bestIou = MATCH_IOU;
+            for (int p = 0; p < crowd.people; p++) {
+                if (matched[p]) {
+                    continue;
+                }
+                final float iou = CrowdLayout.iou(
+                        candidates.getLeft(i), candidates.getTop(i), candidates.getRight(i), candidates.getBottom(i),
+                        crowd.left[p], crowd.top[p], crowd.right[p], crowd.bottom[p]);
+                if (iou >= bestIou) {
+                    best = p;
+                    bestIou = iou;
+                }
+            }
+            if (best >= 0) {
+                matched[best] = true;
+                found++;
+            }
+        }
+        return found;
+    }
+}
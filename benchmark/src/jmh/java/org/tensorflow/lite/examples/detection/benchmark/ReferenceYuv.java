@@ -0,0 +1,79 @@
+package org.tensorflow.lite.examples.detection.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * The original per-pixel ImageUtils conversion, copied here because ImageUtils depends on
+ * android.graphics and cannot be linked into the benchmarks, plus synthetic camera planes.
+ */
+final class ReferenceYuv {
+    private static final int MAX_CHANNEL_VALUE = 262143;
+
+    private ReferenceYuv() {}
+
+    /** ImageUtils.convertYUV420ToARGB8888 over plane buffers. */
+    static void convertYUV420ToARGB8888(
+            final ByteBuffer yData,
+            final ByteBuffer uData,
+            final ByteBuffer vData,
+            final int width,
+            final int height,
+            final int yRowStride,
+            final int uvRowStride,
+            final int uvPixelStride,
+            final int[] out) {
+        int yp = 0;
+        for (int j = 0; j < height; j++) {
+            final int pY = yRowStride * j;
+            final int pUV = uvRowStride * (j >> 1);
+            for (int i = 0; i < width; i++) {
+                final int uvOffset = pUV + (i >> 1) * uvPixelStride;
+                out[yp++] = yuv2Rgb(0xff & yData.get(pY + i), 0xff & uData.get(uvOffset), 0xff & vData.get(uvOffset));
+            }
+        }
+    }
+
+    /** ImageUtils.convertYUV420SPToARGB8888, for NV21 frames from the legacy camera API. */
+    static void convertYUV420SPToARGB8888(final byte[] input, final int width, final int height, final int[] output) {
+        final int frameSize = width * height;
+        for (int j = 0, yp = 0; j < height; j++) {
+            int uvp = frameSize + (j >> 1) * width;
+            int u = 0;
+            int v = 0;
+            for (int i = 0; i < width; i++, yp++) {
+                final int y = 0xff & input[yp];
+                if ((i & 1) == 0) {
+                    v = 0xff & input[uvp++];
+                    u = 0xff & input[uvp++];
+                }
+                output[yp] = yuv2Rgb(y, u, v);
+            }
+        }
+    }
+
+    /** ImageUtils.YUV2RGB. */
+    static int yuv2Rgb(int y, int u, int v) {
+        y = (y - 16) < 0 ? 0 : (y - 16);
+        u -= 128;
+        v -= 128;
+        final int y1192 = 1192 * y;
+        int r = y1192 + 1634 * v;
+        int g = y1192 - 833 * v - 400 * u;
+        int b = y1192 + 2066 * u;
+        r = r > MAX_CHANNEL_VALUE ? MAX_CHANNEL_VALUE : (r < 0 ? 0 : r);
+        g = g > MAX_CHANNEL_VALUE ? MAX_CHANNEL_VALUE : (g < 0 ? 0 : g);
+        b = b > MAX_CHANNEL_VALUE ? MAX_CHANNEL_VALUE : (b < 0 ? 0 : b);
+        return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    }
+
+    /** A direct buffer of random bytes, like an Image.Plane buffer. */
+    static ByteBuffer randomPlane(final Random random, final int size) {
+        final byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        final ByteBuffer plane = ByteBuffer.allocateDirect(size);
+        plane.put(bytes);
+        plane.rewind();
+        return plane;
+    }
+}
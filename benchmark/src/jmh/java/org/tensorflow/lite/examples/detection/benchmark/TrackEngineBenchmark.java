@@ -0,0 +1,96 @@
+package org.tensorflow.lite.examples.detection.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tensorflow.lite.examples.detection.tracking.TrackEngine;
+
+/**
+ * One tracker update per invocation over a looping sequence of frames in which people walk at
+ * constant velocity with jittered boxes and the occasional missed detection. Larger crowds stand
+ * further away, so boxes shrink and cover the same share of the frame; association goes through a
+ * spatial grid, so the time per person should then stay roughly flat as the crowd grows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TrackEngineBenchmark {
+    private static final int FRAMES = 64;
+    private static final float FRAME_WIDTH = 1920;
+    private static final float FRAME_HEIGHT = 1080;
+    private static final float MISS_RATE = 0.05f;
+    // Box size for a crowd of REFERENCE_PEOPLE.
+    private static final int REFERENCE_PEOPLE = 200;
+    private static final float BOX_WIDTH = 30;
+    private static final float BOX_HEIGHT = 80;
+
+    @Param({"20", "200", "500", "1000"})
+    public int people;
+
+    private float[][] frames;
+    private int[] counts;
+    private TrackEngine engine;
+    private int frame;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        final float scale = (float) Math.sqrt(REFERENCE_PEOPLE / (double) people);
+        final float boxWidth = BOX_WIDTH * scale;
+        final float boxHeight = BOX_HEIGHT * scale;
+        final float[] x = new float[people];
+        final float[] y = new float[people];
+        final float[] vx = new float[people];
+        final float[] vy = new float[people];
+        for (int p = 0; p < people; p++) {
+            x[p] = random.nextFloat() * FRAME_WIDTH;
+            y[p] = random.nextFloat() * FRAME_HEIGHT;
+            vx[p] = (random.nextFloat() - 0.5f) * 6;
+            vy[p] = (random.nextFloat() - 0.5f) * 3;
+        }
+        frames = new float[FRAMES][4 * people];
+        counts = new int[FRAMES];
+        for (int f = 0; f < FRAMES; f++) {
+            int count = 0;
+            for (int p = 0; p < people; p++) {
+                // Walk back and forth so the sequence can loop without teleporting anyone.
+                final int step = f < FRAMES / 2 ? f : FRAMES - f;
+                if (random.nextFloat() < MISS_RATE) {
+                    continue;
+                }
+                final float jitter = (random.nextFloat() - 0.5f) * 2;
+                final float left = x[p] + vx[p] * step + jitter;
+                final float top = y[p] + vy[p] * step + jitter;
+                frames[f][4 * count] = left;
+                frames[f][4 * count + 1] = top;
+                frames[f][4 * count + 2] = left + boxWidth;
+                frames[f][4 * count + 3] = top + boxHeight;
+                count++;
+            }
+            counts[f] = count;
+        }
+        engine = new TrackEngine();
+        engine.setFrameSize(FRAME_WIDTH, FRAME_HEIGHT);
+    }
+
+    @Benchmark
+    public int update() {
+        engine.update(frames[frame], counts[frame]);
+        frame = (frame + 1) % FRAMES;
+        return engine.getTrackCount();
+    }
+}
@@ -0,0 +1,102 @@
+package org.tensorflow.lite.examples.detection.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tensorflow.lite.examples.detection.env.YuvLookupKernel;
+
+/**
+ * Single-threaded YUV to ARGB kernels: the per-pixel ImageUtils arithmetic against the table-driven
+ * 2x2 block kernel, and the per-pixel table lookup used when sampling single pixels. The planar
+ * benchmarks convert Camera2 YUV_420_888 planes, the semi-planar ones legacy-camera NV21 frames.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class YuvKernelBenchmark {
+    private static final int UV_PIXEL_STRIDE = 2;
+
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String resolution;
+
+    private int width;
+    private int height;
+    private int rowStride;
+    private ByteBuffer yPlane;
+    private ByteBuffer uPlane;
+    private ByteBuffer vPlane;
+    private byte[] nv21;
+    private int[] argb;
+
+    @Setup
+    public void setUp() {
+        final String[] size = resolution.split("x");
+        width = Integer.parseInt(size[0]);
+        height = Integer.parseInt(size[1]);
+        rowStride = (width + 63) & ~63;
+
+        final Random random = new Random(42);
+        yPlane = ReferenceYuv.randomPlane(random, rowStride * height);
+        uPlane = ReferenceYuv.randomPlane(random, rowStride * height / 2);
+        vPlane = ReferenceYuv.randomPlane(random, rowStride * height / 2);
+        nv21 = new byte[width * height * 3 / 2];
+        random.nextBytes(nv21);
+        argb = new int[width * height];
+    }
+
+    @Benchmark
+    public int[] reference() {
+        ReferenceYuv.convertYUV420ToARGB8888(
+                yPlane, uPlane, vPlane, width, height, rowStride, rowStride, UV_PIXEL_STRIDE, argb);
+        return argb;
+    }
+
+    @Benchmark
+    public int[] lookupPerPixel() {
+        int yp = 0;
+        for (int j = 0; j < height; j++) {
+            final int pY = rowStride * j;
+            final int pUV = rowStride * (j >> 1);
+            for (int i = 0; i < width; i++) {
+                final int uvOffset = pUV + (i >> 1) * UV_PIXEL_STRIDE;
+                argb[yp++] = YuvLookupKernel.yuvToArgb(
+                        0xff & yPlane.get(pY + i), 0xff & uPlane.get(uvOffset), 0xff & vPlane.get(uvOffset));
+            }
+        }
+        return argb;
+    }
+
+    @Benchmark
+    public int[] lookupBlocks() {
+        YuvLookupKernel.convertPlanarRows(
+                yPlane, uPlane, vPlane, width, rowStride, rowStride, UV_PIXEL_STRIDE, argb, 0, height);
+        return argb;
+    }
+
+    @Benchmark
+    public int[] semiPlanarReference() {
+        ReferenceYuv.convertYUV420SPToARGB8888(nv21, width, height, argb);
+        return argb;
+    }
+
+    @Benchmark
+    public int[] semiPlanarBlocks() {
+        YuvLookupKernel.convertSemiPlanarRows(nv21, width, height, argb, 0, height);
+        return argb;
+    }
+}
@@ -0,0 +1,83 @@
+package org.tensorflow.lite.examples.detection.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tensorflow.lite.examples.detection.env.ParallelYuvConverter;
+
+/**
+ * Full-frame YUV_420_888 to ARGB conversion at common preview sizes, by worker count. The
+ * reference is the single-threaded ImageUtils loop and does not depend on the worker count.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class YuvToArgbBenchmark {
+    private static final int UV_PIXEL_STRIDE = 2;
+
+    @Param({"640x480", "1280x720", "1920x1080"})
+    public String resolution;
+
+    @Param({"1", "2", "4", "8"})
+    public int workers;
+
+    private int width;
+    private int height;
+    private int rowStride;
+    private ByteBuffer yPlane;
+    private ByteBuffer uPlane;
+    private ByteBuffer vPlane;
+    private int[] argb;
+    private ParallelYuvConverter converter;
+
+    @Setup
+    public void setUp() {
+        final String[] size = resolution.split("x");
+        width = Integer.parseInt(size[0]);
+        height = Integer.parseInt(size[1]);
+        // Row strides are commonly padded to a multiple of 64 bytes.
+        rowStride = (width + 63) & ~63;
+
+        final Random random = new Random(42);
+        yPlane = ReferenceYuv.randomPlane(random, rowStride * height);
+        uPlane = ReferenceYuv.randomPlane(random, rowStride * height / 2);
+        vPlane = ReferenceYuv.randomPlane(random, rowStride * height / 2);
+        argb = new int[width * height];
+        converter = new ParallelYuvConverter(workers);
+    }
+
+    @TearDown
+    public void tearDown() {
+        converter.close();
+    }
+
+    @Benchmark
+    public int[] reference() {
+        ReferenceYuv.convertYUV420ToARGB8888(
+                yPlane, uPlane, vPlane, width, height, rowStride, rowStride, UV_PIXEL_STRIDE, argb);
+        return argb;
+    }
+
+    @Benchmark
+    public int[] parallel() {
+        converter.convertYUV420ToARGB8888(
+                yPlane, uPlane, vPlane, width, height, rowStride, rowStride, UV_PIXEL_STRIDE, argb);
+        return argb;
+    }
+}
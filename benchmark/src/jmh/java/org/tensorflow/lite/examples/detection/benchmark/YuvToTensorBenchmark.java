@@ -0,0 +1,92 @@
+package org.tensorflow.lite.examples.detection.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.tensorflow.lite.examples.detection.env.YuvToTensorConverter;
+import org.tensorflow.lite.examples.detection.tflite.InputPreprocessor;
+
+/**
+ * A 640x480 YUV_420_888 camera frame to a 416x416 model input, fused against the chain it
+ * replaces: full-frame ARGB conversion, crop and preprocessing. On the device the crop is a
+ * {@code Canvas.drawBitmap}; here it is the same nearest-neighbour lookup done in Java.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class YuvToTensorBenchmark {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int INPUT_SIZE = 416;
+    // Row strides are padded on many devices; chroma is semi-planar (pixel stride 2).
+    private static final int ROW_STRIDE = 672;
+    private static final int UV_PIXEL_STRIDE = 2;
+
+    @Param({"0", "90"})
+    public int rotation;
+
+    @Param({"false", "true"})
+    public boolean quantized;
+
+    private ByteBuffer yPlane;
+    private ByteBuffer uPlane;
+    private ByteBuffer vPlane;
+    private YuvToTensorConverter converter;
+    private ByteBuffer tensor;
+
+    private int[] argb;
+    private int[] cropIndex;
+    private int[] crop;
+    private InputPreprocessor preprocessor;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        yPlane = ReferenceYuv.randomPlane(random, ROW_STRIDE * HEIGHT);
+        uPlane = ReferenceYuv.randomPlane(random, ROW_STRIDE * HEIGHT / 2);
+        vPlane = ReferenceYuv.randomPlane(random, ROW_STRIDE * HEIGHT / 2);
+
+        converter = new YuvToTensorConverter(WIDTH, HEIGHT, INPUT_SIZE, rotation, false, quantized);
+        tensor = converter.allocateOutput();
+
+        argb = new int[WIDTH * HEIGHT];
+        crop = new int[INPUT_SIZE * INPUT_SIZE];
+        cropIndex = new int[INPUT_SIZE * INPUT_SIZE];
+        for (int y = 0; y < INPUT_SIZE; y++) {
+            for (int x = 0; x < INPUT_SIZE; x++) {
+                cropIndex[y * INPUT_SIZE + x] = converter.getSourceY(x, y) * WIDTH + converter.getSourceX(x, y);
+            }
+        }
+        preprocessor = new InputPreprocessor(INPUT_SIZE, quantized);
+    }
+
+    @Benchmark
+    public ByteBuffer chain() {
+        ReferenceYuv.convertYUV420ToARGB8888(
+                yPlane, uPlane, vPlane, WIDTH, HEIGHT, ROW_STRIDE, ROW_STRIDE, UV_PIXEL_STRIDE, argb);
+        for (int i = 0; i < crop.length; i++) {
+            crop[i] = argb[cropIndex[i]];
+        }
+        return preprocessor.load(crop);
+    }
+
+    @Benchmark
+    public ByteBuffer fused() {
+        return converter.convert(yPlane, uPlane, vPlane, ROW_STRIDE, ROW_STRIDE, UV_PIXEL_STRIDE, tensor);
+    }
+}